@@ -0,0 +1,78 @@
+package org.reactome.sbml.rel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.gk.model.GKInstance;
+import org.gk.model.InstanceUtilities;
+import org.gk.model.ReactomeJavaConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link InstanceToModelConverter#convert(GKInstance)} for the events and participants of a pathway
+ * read from a release snapshot, which has to be passed as a JMH parameter, e.g. -p snapshot=release.snapshot.
+ * @author wug
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceConverterBenchmark {
+
+    @Param({""})
+    public String snapshot;
+
+    // Signaling by Insulin receptor
+    @Param({"R-HSA-74752"})
+    public String pathway;
+
+    private InstanceToModelConverter converter;
+    private List<GKInstance> instances;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setUp() throws Exception {
+        if (snapshot.isEmpty())
+            throw new IllegalStateException("Pass a release snapshot with -p snapshot=<file>");
+        InstanceSource source = new SnapshotInstanceSource(new File(snapshot));
+        GKInstance event = source.fetchEvent(pathway);
+        if (event == null)
+            throw new IllegalStateException(pathway + " is not in " + snapshot);
+        Set<GKInstance> collected = new LinkedHashSet<>();
+        collected.add(event);
+        Set<GKInstance> contained = InstanceUtilities.getContainedEvents(event);
+        for (GKInstance inst : contained) {
+            collected.add(inst);
+            if (inst.getSchemClass().isa(ReactomeJavaConstants.ReactionlikeEvent))
+                collected.addAll((Set<GKInstance>) InstanceUtilities.getReactionParticipants(inst));
+        }
+        instances = new ArrayList<>(collected);
+        converter = new InstanceToModelConverter();
+    }
+
+    @Benchmark
+    public void convert(Blackhole bh) throws Exception {
+        // Otherwise the converted objects are returned from the converter's map
+        converter.reset();
+        for (GKInstance instance : instances)
+            bh.consume(converter.convert(instance));
+    }
+}
@@ -0,0 +1,85 @@
+package org.reactome.server.tools.sbml.converter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SBMLException;
+
+/**
+ * Benchmarks the conversion of synthetic pathways of increasing size and the serialization of the documents
+ * with the TidySBMLWriter used for the exported files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int reactions;
+
+    private SyntheticPathway pathway;
+    private SbmlConverter converter;
+    private OutputStream sink;
+
+    @Setup
+    public void setUp() {
+        pathway = new SyntheticPathway(reactions);
+        converter = pathway.createConverter();
+        // The document written by the write benchmarks
+        converter.convert();
+        sink = new NullOutputStream();
+    }
+
+    @Benchmark
+    public SBMLDocument convert() {
+        return converter.convert(ExportOptions.DEFAULT);
+    }
+
+    @Benchmark
+    public void write() throws IOException, XMLStreamException, SBMLException {
+        converter.write(sink, SbmlConverter.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Benchmark
+    public void convertAndWrite() throws IOException, XMLStreamException, SBMLException {
+        // convert() keeps its document, so a new converter is needed every time
+        SbmlConverter fresh = pathway.createConverter();
+        fresh.convert();
+        fresh.write(sink, SbmlConverter.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Only counts the bytes so that the disk is not measured.
+     */
+    private static class NullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.reactome.server.tools.sbml.converter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.reactome.server.graph.domain.model.PhysicalEntity;
+import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
+import org.sbml.jsbml.Species;
+
+/**
+ * Micro benchmarks of the methods called for every species, reaction and annotation of a document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelperBenchmark {
+
+    private static final String[] URLS = {
+            "http://www.ebi.ac.uk/chebi/searchId.do?chebiId=CHEBI:15422",
+            "http://purl.uniprot.org/uniprot/P04637",
+            "http://www.ncbi.nlm.nih.gov/pubmed/20000000",
+            "https://reactome.org/content/detail/R-HSA-109582"
+    };
+
+    private ExportOptions urls;
+    private ExportOptions identifiers;
+    private List<PhysicalEntity> entities;
+    private Species species;
+
+    @Setup
+    public void setUp() {
+        urls = ExportOptions.DEFAULT;
+        identifiers = ExportOptions.DEFAULT.withUseIdentifierURL(true);
+        entities = new ArrayList<>();
+        for (ParticipantDetails details : new SyntheticPathway(3).getParticipantDetails())
+            entities.add(details.getPhysicalEntity());
+        species = new Species(SbmlConverter.SBML_LEVEL, SbmlConverter.SBML_VERSION);
+        // Load the url mapping before measuring
+        Helper.convertUrl(URLS[0], identifiers);
+    }
+
+    @Benchmark
+    public String removeTags() {
+        return Helper.removeTags(SyntheticPathway.SUMMATION);
+    }
+
+    @Benchmark
+    public void convertUrl(Blackhole bh) {
+        for (String url : URLS) bh.consume(Helper.convertUrl(url, urls));
+    }
+
+    @Benchmark
+    public void convertUrlToIdentifier(Blackhole bh) {
+        for (String url : URLS) bh.consume(Helper.convertUrl(url, identifiers));
+    }
+
+    @Benchmark
+    public Species addNotes() {
+        species.unsetNotes();
+        Helper.addNotes(species, SyntheticPathway.SUMMATION, SyntheticPathway.SUMMATION);
+        return species;
+    }
+
+    @Benchmark
+    public Date formatDate() {
+        return Helper.formatDate("2020-01-01 12:00:00");
+    }
+
+    @Benchmark
+    public void sboTermLookup(Blackhole bh) {
+        for (PhysicalEntity pe : entities) bh.consume(SBOTermLookup.get(pe));
+    }
+
+    @Benchmark
+    public void roleIdentifier(Blackhole bh) {
+        for (PhysicalEntity pe : entities) {
+            for (Role role : Role.values()) bh.consume(role.getIdentifier(109582L, pe));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.reactome.server.tools.sbml.converter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.reactome.server.graph.domain.model.AbstractModifiedResidue;
+import org.reactome.server.graph.domain.model.Affiliation;
+import org.reactome.server.graph.domain.model.Compartment;
+import org.reactome.server.graph.domain.model.Complex;
+import org.reactome.server.graph.domain.model.DatabaseObject;
+import org.reactome.server.graph.domain.model.EntityWithAccessionedSequence;
+import org.reactome.server.graph.domain.model.Event;
+import org.reactome.server.graph.domain.model.InstanceEdit;
+import org.reactome.server.graph.domain.model.LiteratureReference;
+import org.reactome.server.graph.domain.model.Pathway;
+import org.reactome.server.graph.domain.model.Person;
+import org.reactome.server.graph.domain.model.PhysicalEntity;
+import org.reactome.server.graph.domain.model.Publication;
+import org.reactome.server.graph.domain.model.Reaction;
+import org.reactome.server.graph.domain.model.SimpleEntity;
+import org.reactome.server.graph.domain.model.Summation;
+import org.reactome.server.tools.sbml.data.model.Participant;
+import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
+import org.reactome.server.tools.sbml.data.model.ReactionBase;
+
+/**
+ * Builds the target data of a pathway without any database so that the conversion can be benchmarked for
+ * pathways of different sizes. Every reaction has two inputs, two outputs and a catalyst taken from a pool of
+ * simple entities, proteins and complexes, which is about twice as large as the number of reactions, so that
+ * entities are shared between reactions as in curated pathways.
+ */
+class SyntheticPathway {
+
+    static final String SUMMATION = "The <i>synthetic</i> reaction converts A <-> B & C in the <b>cytosol</b>.\n" +
+            "It is catalysed by a <a href=\"https://reactome.org\">complex</a> <> which needs no cofactors.";
+
+    private static final String[] COMPARTMENTS = {"cytosol", "nucleoplasm", "plasma membrane"};
+
+    private final Pathway pathway;
+    private final List<ParticipantDetails> participantDetails;
+    private final List<ReactionBase> reactionList;
+    private long dbId = 1000000L;
+
+    /**
+     * @param reactions the number of reactions in the pathway
+     */
+    SyntheticPathway(int reactions) {
+        List<Compartment> compartments = new ArrayList<>();
+        for (String name : COMPARTMENTS) {
+            Compartment compartment = new Compartment();
+            setIds(compartment, name);
+            compartment.setUrl("http://www.ebi.ac.uk/QuickGO/GTerm?id=GO:" + (5000000 + compartment.getDbId()));
+            compartments.add(compartment);
+        }
+        InstanceEdit created = createInstanceEdit();
+
+        pathway = new Pathway();
+        setIds(pathway, "Synthetic pathway of " + reactions + " reactions");
+        fillIn(pathway, compartments, created);
+
+        participantDetails = new ArrayList<>();
+        List<PhysicalEntity> entities = new ArrayList<>();
+        for (int i = 0; i < 2 * reactions + 3; i++) {
+            PhysicalEntity pe = createEntity(i, compartments.get(i % compartments.size()));
+            entities.add(pe);
+            ParticipantDetails details = new ParticipantDetails();
+            details.setPhysicalEntity(pe);
+            if (!(pe instanceof Complex)) {
+                details.addUrl(pe instanceof SimpleEntity ?
+                        "http://www.ebi.ac.uk/chebi/searchId.do?chebiId=CHEBI:" + (15000 + i) :
+                        "http://purl.uniprot.org/uniprot/P" + (10000 + i));
+            }
+            participantDetails.add(details);
+        }
+
+        reactionList = new ArrayList<>();
+        for (int i = 0; i < reactions; i++) {
+            Reaction reaction = new Reaction();
+            setIds(reaction, "Synthetic reaction " + i);
+            fillIn(reaction, Collections.singletonList(compartments.get(i % compartments.size())), created);
+            ReactionBase rxn = new ReactionBase();
+            rxn.setRle(reaction);
+            rxn.setGoTerms(Collections.singletonList("http://www.ebi.ac.uk/QuickGO/GTerm?id=GO:" + (3800000 + i)));
+            rxn.setEcNumbers(Collections.emptyList());
+            rxn.setLiteratureRefs(Collections.singletonList("http://www.ncbi.nlm.nih.gov/pubmed/" + (20000000 + i)));
+            rxn.setXrefs(Collections.emptyList());
+            rxn.setDiseases(Collections.emptyList());
+            rxn.setInputs(participants(entities, 2 * i, 2 * i + 1));
+            rxn.setOutputs(participants(entities, 2 * i + 2, 2 * i + 3));
+            rxn.setCatalysts(participants(entities, 2 * i + 1));
+            rxn.setPositiveRegulators(Collections.emptyList());
+            rxn.setNegativeRegulators(Collections.emptyList());
+            reactionList.add(rxn);
+        }
+    }
+
+    Pathway getPathway() {
+        return pathway;
+    }
+
+    List<ParticipantDetails> getParticipantDetails() {
+        return participantDetails;
+    }
+
+    List<ReactionBase> getReactionList() {
+        return reactionList;
+    }
+
+    /**
+     * @return a converter working on this pathway
+     */
+    SbmlConverter createConverter() {
+        return new Converter();
+    }
+
+    private PhysicalEntity createEntity(int index, Compartment compartment) {
+        PhysicalEntity pe;
+        switch (index % 3) {
+            case 0:
+                pe = new SimpleEntity();
+                break;
+            case 1:
+                EntityWithAccessionedSequence ewas = new EntityWithAccessionedSequence();
+                ewas.setHasModifiedResidue(new ArrayList<AbstractModifiedResidue>());
+                pe = ewas;
+                break;
+            default:
+                pe = new Complex();
+        }
+        setIds(pe, "Entity " + index + " [" + compartment.getDisplayName() + "]");
+        pe.setCompartment(Collections.singletonList(compartment));
+        pe.setSummation(createSummations());
+        pe.setLiteratureReference(createLiteratureReferences());
+        pe.setInferredTo(new ArrayList<PhysicalEntity>());
+        pe.setInferredFrom(new ArrayList<PhysicalEntity>());
+        return pe;
+    }
+
+    private void fillIn(Event event, List<Compartment> compartments, InstanceEdit created) {
+        event.setCompartment(compartments);
+        event.setSummation(createSummations());
+        event.setLiteratureReference(createLiteratureReferences());
+        event.setCreated(created);
+        event.setAuthored(Collections.singletonList(created));
+        event.setRevised(new ArrayList<InstanceEdit>());
+    }
+
+    private InstanceEdit createInstanceEdit() {
+        Affiliation affiliation = new Affiliation();
+        setIds(affiliation, "Synthetic institute");
+        affiliation.setName(Collections.singletonList("Synthetic institute"));
+        Person person = new Person();
+        setIds(person, "Curator, S");
+        person.setSurname("Curator");
+        person.setFirstname("Synthetic");
+        person.setAffiliation(Collections.singletonList(affiliation));
+        InstanceEdit ie = new InstanceEdit();
+        setIds(ie, "Curator, S, 2020-01-01");
+        ie.setAuthor(Collections.singletonList(person));
+        ie.setDateTime("2020-01-01 12:00:00");
+        return ie;
+    }
+
+    private List<Summation> createSummations() {
+        Summation summation = new Summation();
+        setIds(summation, "Synthetic summation");
+        summation.setText(SUMMATION);
+        return Collections.singletonList(summation);
+    }
+
+    private List<Publication> createLiteratureReferences() {
+        LiteratureReference reference = new LiteratureReference();
+        setIds(reference, "Synthetic reference");
+        reference.setPubMedIdentifier((int) (dbId % 30000000));
+        return Collections.singletonList(reference);
+    }
+
+    private List<Participant> participants(List<PhysicalEntity> entities, int... indices) {
+        List<Participant> rtn = new ArrayList<>();
+        for (int index : indices) {
+            Participant participant = new Participant();
+            participant.setPhysicalEntity(entities.get(index % entities.size()));
+            participant.setStoichiometry(1);
+            rtn.add(participant);
+        }
+        return rtn;
+    }
+
+    private void setIds(DatabaseObject obj, String name) {
+        long id = dbId++;
+        obj.setDbId(id);
+        obj.setStId("R-SYN-" + id);
+        obj.setDisplayName(name);
+    }
+
+    private class Converter extends SbmlConverter {
+
+        Converter() {
+            super(SyntheticPathway.this.pathway.getStId(), 0);
+            this.pathway = SyntheticPathway.this.pathway;
+        }
+
+        @Override
+        protected Collection<ParticipantDetails> getParticipantDetails() {
+            return participantDetails;
+        }
+
+        @Override
+        protected Collection<ReactionBase> getReactionList() {
+            return reactionList;
+        }
+    }
+}
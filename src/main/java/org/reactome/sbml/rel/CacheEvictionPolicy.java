@@ -0,0 +1,205 @@
+package org.reactome.sbml.rel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.reactome.server.tools.sbml.util.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evicts the least recently used entries from the caches of a run when the heap is under pressure, instead of
+ * clearing them after a fixed number of pathways. The heap is under pressure when a heap pool is still above a
+ * fraction of its maximum after a garbage collection, as reported by the collection usage thresholds of its
+ * MemoryPoolMXBean. DB_IDs are ordered by the last conversion using them: a part of the least recently used
+ * ones is then evicted from the {@link ConverterCache} and the {@link InstanceSource}s, and the graph cache,
+ * which can only be cleared as a whole, is cleared.
+ * <p>
+ * Pressure is checked via {@link #evictIfNeeded(InstanceSource)} between two conversions, which costs a few
+ * MXBean calls only. Since instance sources are not thread-safe, each worker thread using its own source passes
+ * it there and the DB_IDs evicted since its last call are released from it by its own thread. The evicted DB_IDs
+ * are logged until all sources have released them. A source falling more than {@link #MAX_LOGGED_EVICTIONS}
+ * evictions behind is cleared as a whole instead. Evictions are counted in {@link Metrics#EVICTIONS}.
+ * @author wug
+ *
+ */
+public class CacheEvictionPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(CacheEvictionPolicy.class);
+    // Fraction of the maximum of a heap pool used after a GC to start evicting
+    public static final double DEFAULT_THRESHOLD = 0.7;
+    // Fraction of the least recently used DB_IDs evicted under pressure
+    private static final double EVICTED_FRACTION = 0.5;
+    // Evictions kept for the sources that have not released them yet
+    static final int MAX_LOGGED_EVICTIONS = 8;
+
+    // Heap pools supporting collection usage thresholds, e.g. the old generation -> the threshold count seen last
+    private final Map<MemoryPoolMXBean, Long> poolToCount;
+    // DB_IDs in the order of their last use
+    private final LinkedHashMap<Long, Boolean> recentlyUsed;
+    // Instance source -> the number of the last eviction applied to it
+    private final Map<InstanceSource, Long> sourceToEviction;
+    // DB_IDs of the last evictions, the latest last
+    private final Deque<List<Long>> evictionLog;
+    private ConverterCache converterCache;
+    private Runnable graphCacheCleaner;
+    // Statistics
+    private long evictions;
+    private long evictedIds;
+
+    public CacheEvictionPolicy() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold fraction of the maximum size of a heap pool
+     */
+    public CacheEvictionPolicy(double threshold) {
+        if (threshold <= 0.0d || threshold >= 1.0d)
+            throw new IllegalArgumentException("The heap threshold should be between 0 and 1: " + threshold);
+        poolToCount = new HashMap<>();
+        recentlyUsed = new LinkedHashMap<>(1024, 0.75f, true);
+        sourceToEviction = new IdentityHashMap<>();
+        evictionLog = new ArrayDeque<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+                continue;
+            long max = pool.getUsage().getMax();
+            if (max <= 0) // Undefined
+                continue;
+            pool.setCollectionUsageThreshold((long) (max * threshold));
+            poolToCount.put(pool, pool.getCollectionUsageThresholdCount());
+        }
+        if (poolToCount.isEmpty())
+            logger.warn("No heap pool supports collection usage thresholds. Caches are not evicted.");
+    }
+
+    public void setConverterCache(ConverterCache converterCache) {
+        this.converterCache = converterCache;
+    }
+
+    /**
+     * @param graphCacheCleaner clears the cache of the graph database, if used
+     */
+    public void setGraphCacheCleaner(Runnable graphCacheCleaner) {
+        this.graphCacheCleaner = graphCacheCleaner;
+    }
+
+    /**
+     * Record the DB_IDs used by a conversion as the most recently used.
+     */
+    public synchronized void used(Collection<Long> dbIds) {
+        for (Long dbId : dbIds)
+            recentlyUsed.put(dbId, Boolean.TRUE);
+    }
+
+    /**
+     * Evict the least recently used entries if a heap pool has been above its threshold after a GC since the
+     * last call, and release all DB_IDs evicted since the last call from the passed source.
+     * @param source the instance source used by the calling thread
+     * @return true if entries have been evicted
+     */
+    public synchronized boolean evictIfNeeded(InstanceSource source) {
+        MemoryPoolMXBean pressured = null;
+        for (Map.Entry<MemoryPoolMXBean, Long> entry : poolToCount.entrySet()) {
+            long count = entry.getKey().getCollectionUsageThresholdCount();
+            if (count > entry.getValue()) {
+                entry.setValue(count);
+                pressured = entry.getKey();
+            }
+        }
+        if (pressured != null)
+            evict(pressured, source);
+        else if (source != null)
+            release(source);
+        return pressured != null;
+    }
+
+    /**
+     * Release the DB_IDs of the evictions not applied to the source yet.
+     * @return the number of released instances
+     */
+    private int release(InstanceSource source) {
+        long first = evictions - evictionLog.size() + 1; // The number of the oldest logged eviction
+        // A new source may have cached any DB_ID in the log
+        long applied = sourceToEviction.getOrDefault(source, first - 1);
+        int rtn = 0;
+        if (applied < first - 1) {
+            // Some evictions are not logged anymore
+            source.clearCache();
+        }
+        else {
+            long number = first;
+            for (List<Long> dbIds : evictionLog) {
+                if (number++ > applied)
+                    rtn += source.evict(dbIds);
+            }
+        }
+        sourceToEviction.put(source, evictions);
+        trimLog();
+        return rtn;
+    }
+
+    /**
+     * Drop the evictions applied to all sources and the oldest ones beyond {@link #MAX_LOGGED_EVICTIONS}.
+     */
+    private void trimLog() {
+        long applied = sourceToEviction.values().stream().mapToLong(Long::longValue).min().orElse(evictions);
+        long first = evictions - evictionLog.size() + 1;
+        while (!evictionLog.isEmpty() && (first <= applied || evictionLog.size() > MAX_LOGGED_EVICTIONS)) {
+            evictionLog.removeFirst();
+            first++;
+        }
+    }
+
+    private void evict(MemoryPoolMXBean pool, InstanceSource source) {
+        long start = System.currentTimeMillis();
+        int total = recentlyUsed.size();
+        List<Long> dbIds = new ArrayList<>((int) (total * EVICTED_FRACTION));
+        Iterator<Long> it = recentlyUsed.keySet().iterator();
+        while (it.hasNext() && dbIds.size() < total * EVICTED_FRACTION) {
+            dbIds.add(it.next());
+            it.remove();
+        }
+        int entries = converterCache == null ? 0 : converterCache.evict(dbIds);
+        if (graphCacheCleaner != null)
+            graphCacheCleaner.run();
+        evictions++;
+        evictionLog.addLast(dbIds);
+        int instances = 0;
+        if (source != null)
+            instances = release(source);
+        else
+            trimLog();
+        evictedIds += dbIds.size();
+        Metrics.count(Metrics.EVICTIONS);
+        MemoryUsage usage = pool.getCollectionUsage();
+        logger.info(String.format("%s at %d of %d MB after GC. Evicted %d of %d DB_IDs (%d instances, %d converter entries) in %d ms. %d evictions of %d DB_IDs so far.",
+                                  pool.getName(),
+                                  usage.getUsed() / (1024 * 1024),
+                                  usage.getMax() / (1024 * 1024),
+                                  dbIds.size(),
+                                  total,
+                                  instances,
+                                  entries,
+                                  System.currentTimeMillis() - start,
+                                  evictions,
+                                  evictedIds));
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
@@ -0,0 +1,230 @@
+package org.reactome.sbml.rel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.gk.persistence.MySQLAdaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the relational database for instances created or modified by InstanceEdits added since the last poll,
+ * maps them to the pathways that used them via a {@link DependencyIndex} and hands those pathways to a
+ * {@link Listener} for re-export. A pathway is queued only after no change has touched it for the debounce
+ * period, so that a curator saving several times re-exports it once. The work queue is bounded: pathways
+ * that do not fit stay pending until the next poll. Changed instances are reloaded in place so that the
+ * caches stay warm between polls. The most recent InstanceEdits are read again by every poll, so that an edit
+ * committed after one with a higher DB_ID is not missed.
+ * @author wug
+ *
+ */
+public class ChangeWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeWatcher.class);
+    // Instances with a new InstanceEdit in modified or created. InstanceEdits are compared by their DB_IDs,
+    // which increase with every new instance, since dateTime has a resolution of seconds and is set by clients.
+    private static final String CHANGED_QUERY =
+            "SELECT m.DB_ID, m.modified FROM DatabaseObject_2_modified m WHERE m.modified > ? " +
+            "UNION " +
+            "SELECT d.DB_ID, d.created FROM DatabaseObject d WHERE d.created > ?";
+    private static final String LATEST_QUERY = "SELECT MAX(DB_ID) FROM InstanceEdit";
+    private static final String RECENT_QUERY = "SELECT DB_ID FROM InstanceEdit WHERE DB_ID > ?";
+    // An InstanceEdit committed late may have a lower DB_ID than one seen already. The InstanceEdits this many
+    // DB_IDs below the watermark are read again and skipped if they have been seen.
+    private static final long OVERLAP = 1000L;
+    private MySQLInstanceSource source;
+    private DependencyIndex dependencyIndex;
+    private Listener listener;
+    private long pollInterval = 60 * 1000L;
+    private long debounce = 2 * 60 * 1000L;
+    private int queueCapacity = 100;
+    // Pathway id -> time of the last change affecting it
+    private Map<String, Long> pending;
+    private BlockingQueue<String> queue;
+    // DB_ID of the latest InstanceEdit seen
+    private long watermark;
+    // DB_IDs of the InstanceEdits seen within the overlap below the watermark
+    private Set<Long> seenEdits = new HashSet<>();
+
+    public ChangeWatcher(MySQLInstanceSource source, DependencyIndex dependencyIndex, Listener listener) {
+        this.source = source;
+        this.dependencyIndex = dependencyIndex;
+        this.listener = listener;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Keep polling until the calling thread is interrupted.
+     * @throws Exception
+     */
+    public void watch() throws Exception {
+        MySQLAdaptor dba = source.getDBA();
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        synchronized (dba) {
+            watermark = fetchLatest(dba);
+            seenEdits = fetchRecent(dba);
+        }
+        logger.info("Watching for InstanceEdits after DB_ID = " + watermark);
+        Thread worker = new Thread(this::export, "sbml-watch-export");
+        worker.setDaemon(true);
+        worker.start();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                poll(dba);
+                Thread.sleep(pollInterval);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            worker.interrupt();
+        }
+    }
+
+    private void poll(MySQLAdaptor dba) throws Exception {
+        Set<Long> changed;
+        // The adaptor is shared with the export thread
+        synchronized (dba) {
+            changed = fetchChanged(dba);
+            if (!changed.isEmpty()) {
+                source.refresh(changed);
+                listener.instancesChanged(changed);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (!changed.isEmpty()) {
+            Set<String> affected = dependencyIndex.getAffectedPathways(changed);
+            logger.info(String.format("%d changed instances affect %d pathways", changed.size(), affected.size()));
+            for (String pathwayId : affected) {
+                pending.remove(pathwayId); // Keep the map in the order of the last change
+                pending.put(pathwayId, now);
+            }
+        }
+        for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Long> entry = it.next();
+            // Later entries were changed later
+            if (now - entry.getValue() < debounce)
+                break;
+            if (queue.contains(entry.getKey())) {
+                it.remove();
+                continue;
+            }
+            if (!queue.offer(entry.getKey()))
+                break; // Full. Try again after the next poll.
+            it.remove();
+        }
+    }
+
+    private void export() {
+        MySQLAdaptor dba = source.getDBA();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                String pathwayId = queue.take();
+                synchronized (dba) {
+                    listener.export(pathwayId);
+                    if (queue.isEmpty())
+                        listener.exported();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private long fetchLatest(MySQLAdaptor dba) throws Exception {
+        Connection connection = dba.getConnection();
+        try (PreparedStatement stat = connection.prepareStatement(LATEST_QUERY);
+             ResultSet result = stat.executeQuery()) {
+            if (result.next())
+                return result.getLong(1); // 0 if there is no InstanceEdit
+        }
+        return 0L;
+    }
+
+    /**
+     * @return DB_IDs of the InstanceEdits within the overlap below the watermark
+     */
+    private Set<Long> fetchRecent(MySQLAdaptor dba) throws Exception {
+        Set<Long> rtn = new HashSet<>();
+        Connection connection = dba.getConnection();
+        try (PreparedStatement stat = connection.prepareStatement(RECENT_QUERY)) {
+            stat.setLong(1, watermark - OVERLAP);
+            try (ResultSet result = stat.executeQuery()) {
+                while (result.next())
+                    rtn.add(result.getLong(1));
+            }
+        }
+        return rtn;
+    }
+
+    private Set<Long> fetchChanged(MySQLAdaptor dba) throws Exception {
+        Set<Long> rtn = new HashSet<>();
+        Set<Long> edits = new HashSet<>();
+        long latest = watermark;
+        Connection connection = dba.getConnection();
+        try (PreparedStatement stat = connection.prepareStatement(CHANGED_QUERY)) {
+            stat.setLong(1, watermark - OVERLAP);
+            stat.setLong(2, watermark - OVERLAP);
+            try (ResultSet result = stat.executeQuery()) {
+                while (result.next()) {
+                    long edit = result.getLong(2);
+                    if (seenEdits.contains(edit))
+                        continue;
+                    rtn.add(result.getLong(1));
+                    edits.add(edit);
+                    latest = Math.max(latest, edit);
+                }
+            }
+        }
+        watermark = latest;
+        seenEdits.addAll(edits);
+        seenEdits.removeIf(edit -> edit <= watermark - OVERLAP);
+        return rtn;
+    }
+
+    /**
+     * Called by a {@link ChangeWatcher}. All methods are called while holding the lock of the MySQLAdaptor.
+     */
+    public interface Listener {
+
+        /**
+         * Changed instances have been reloaded. Anything derived from them should be discarded.
+         */
+        void instancesChanged(Set<Long> dbIds) throws Exception;
+
+        /**
+         * Re-export a pathway affected by changes. This is called in a separate thread.
+         */
+        void export(String pathwayId) throws Exception;
+
+        /**
+         * The work queue has been drained.
+         */
+        void exported() throws Exception;
+    }
+
+}
@@ -0,0 +1,73 @@
+package org.reactome.sbml.rel;
+
+import java.util.List;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.reactome.server.tools.sbml.converter.SbmlConverter;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.ext.comp.CompConstants;
+import org.sbml.jsbml.ext.comp.CompModelPlugin;
+import org.sbml.jsbml.ext.comp.CompSBMLDocumentPlugin;
+import org.sbml.jsbml.ext.comp.ExternalModelDefinition;
+import org.sbml.jsbml.ext.comp.Submodel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uses the SBML hierarchical model composition (comp) package to reference the models of sub-pathways from
+ * the model of their parent pathway. Each sub-pathway model is expected in its own file in the same directory,
+ * as written by the exporter for every pathway in a run.
+ * @author wug
+ *
+ */
+public class CompConverter {
+    public static final String EXTERNAL_MODEL_PREFIX = "external_";
+    public static final String SUBMODEL_PREFIX = "submodel_";
+    private static final Logger logger = LoggerFactory.getLogger(CompConverter.class);
+
+    public CompConverter() {
+    }
+
+    /**
+     * @param doc the document of the parent pathway
+     * @param subPathways pathways directly contained by the parent pathway
+     * @param suffix the suffix of the file names of the variant being converted
+     */
+    public void addSubmodels(SBMLDocument doc,
+                             List<GKInstance> subPathways,
+                             String suffix) {
+        if (subPathways.isEmpty())
+            return;
+        try {
+            CompSBMLDocumentPlugin docPlugin = new CompSBMLDocumentPlugin(doc);
+            doc.addExtension(CompConstants.namespaceURI, docPlugin);
+            doc.setPackageRequired(CompConstants.shortLabel, true);
+            CompModelPlugin modelPlugin = new CompModelPlugin(doc.getModel());
+            doc.getModel().addExtension(CompConstants.namespaceURI, modelPlugin);
+            for (GKInstance subPathway : subPathways) {
+                String modelId = SbmlConverter.PATHWAY_PREFIX + subPathway.getDBID();
+                ExternalModelDefinition definition = docPlugin.createExternalModelDefinition(EXTERNAL_MODEL_PREFIX + modelId);
+                definition.setName(subPathway.getDisplayName());
+                definition.setSource(getFileName(subPathway) + suffix + ".sbml");
+                definition.setModelRef(modelId);
+                Submodel submodel = modelPlugin.createSubmodel(SUBMODEL_PREFIX + modelId);
+                submodel.setModelRef(definition.getId());
+            }
+        }
+        catch(Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The same name as used for the file of a pathway: its stable id or DB_ID if there is none.
+     */
+    private String getFileName(GKInstance pathway) throws Exception {
+        GKInstance stableId = (GKInstance) pathway.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
+        if (stableId == null)
+            return pathway.getDBID().toString();
+        return (String) stableId.getAttributeValue(ReactomeJavaConstants.identifier);
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.reactome.sbml.rel;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.reactome.server.graph.domain.model.DatabaseObject;
+import org.reactome.server.graph.domain.model.InstanceEdit;
+import org.reactome.server.graph.domain.model.Person;
+import org.reactome.server.tools.sbml.util.Metrics;
+
+/**
+ * Results shared by all conversions in a run. Everything is keyed by DB_IDs so that entries stay valid after
+ * the instances have been released by an {@link InstanceSource}. A cache should not be used across releases.
+ * Lookups are counted in {@link Metrics#CACHE_HITS} and {@link Metrics#CACHE_MISSES}.
+ * @author wug
+ *
+ */
+public class ConverterCache {
+    // PhysicalEntity DB_ID -> ReferenceEntity DB_ID -> stoichiometry
+    private Map<Long, Map<Long, Integer>> peToRefEntities;
+    // PhysicalEntity DB_ID -> DB_IDs of entities contained at any level via the same attributes
+    private Map<Long, long[]> peToSubunits;
+    // ReferenceEntity DB_ID -> identifier and url
+    private Map<Long, ReferenceEntry> refEntityToEntry;
+    // Converted InstanceEdits, Persons and Affiliations
+    private Map<Long, DatabaseObject> curationObjects;
+    // Source pathway DB_ID -> layout template for the pathways inferred from it
+    private Map<Long, OrthologyTemplate> templates;
+
+    public ConverterCache() {
+        peToRefEntities = new ConcurrentHashMap<>();
+        peToSubunits = new ConcurrentHashMap<>();
+        refEntityToEntry = new ConcurrentHashMap<>();
+        curationObjects = new ConcurrentHashMap<>();
+        templates = new ConcurrentHashMap<>();
+    }
+
+    Map<Long, Integer> getReferenceEntities(Long peId) {
+        return count(peToRefEntities.get(peId));
+    }
+
+    void putReferenceEntities(Long peId, Map<Long, Integer> refIdToCount) {
+        peToRefEntities.put(peId, refIdToCount);
+    }
+
+    /**
+     * This should be called after {@link #getReferenceEntities(Long)} returns a non-null value.
+     */
+    long[] getSubunits(Long peId) {
+        return peToSubunits.getOrDefault(peId, new long[0]);
+    }
+
+    void putSubunits(Long peId, long[] subunitIds) {
+        peToSubunits.put(peId, subunitIds);
+    }
+
+    ReferenceEntry getReferenceEntry(Long refId) {
+        return refEntityToEntry.get(refId);
+    }
+
+    /**
+     * @return true if there are entries for all passed ReferenceEntities
+     */
+    boolean hasReferenceEntries(Collection<Long> refIds) {
+        return refEntityToEntry.keySet().containsAll(refIds);
+    }
+
+    void putReferenceEntry(Long refId, ReferenceEntry entry) {
+        refEntityToEntry.put(refId, entry);
+    }
+
+    DatabaseObject getCurationObject(Long dbId) {
+        return count(curationObjects.get(dbId));
+    }
+
+    void putCurationObject(Long dbId, DatabaseObject obj) {
+        curationObjects.put(dbId, obj);
+    }
+
+    OrthologyTemplate getTemplate(Long pathwayId) {
+        return count(templates.get(pathwayId));
+    }
+
+    void putTemplate(Long pathwayId, OrthologyTemplate template) {
+        templates.put(pathwayId, template);
+    }
+
+    private <T> T count(T cached) {
+        Metrics.count(cached == null ? Metrics.CACHE_MISSES : Metrics.CACHE_HITS);
+        return cached;
+    }
+
+    /**
+     * Remove everything built from the passed instances so that they are converted again.
+     * @param dbIds DB_IDs of changed instances
+     */
+    public void invalidate(Collection<Long> dbIds) {
+        Set<Long> changed = new HashSet<>(dbIds);
+        // ReferenceEntities whose urls come from changed ReferenceDatabases
+        refEntityToEntry.forEach((refId, entry) -> {
+            if (entry.refDbId != null && changed.contains(entry.refDbId))
+                changed.add(refId);
+        });
+        // Remove entities whose closures include changed entities first
+        peToRefEntities.keySet().removeIf(peId -> changed.contains(peId) ||
+                                                  peToRefEntities.get(peId).keySet().stream().anyMatch(changed::contains) ||
+                                                  Arrays.stream(getSubunits(peId)).anyMatch(changed::contains));
+        peToSubunits.keySet().retainAll(peToRefEntities.keySet());
+        refEntityToEntry.keySet().removeAll(changed);
+        // Persons referring to changed Affiliations and InstanceEdits referring to changed Persons
+        for (DatabaseObject obj : curationObjects.values()) {
+            if (obj instanceof Person && ((Person) obj).getAffiliation() != null) {
+                if (((Person) obj).getAffiliation().stream().anyMatch(a -> changed.contains(a.getDbId())))
+                    changed.add(obj.getDbId());
+            }
+        }
+        for (DatabaseObject obj : curationObjects.values()) {
+            if (obj instanceof InstanceEdit && ((InstanceEdit) obj).getAuthor() != null) {
+                if (((InstanceEdit) obj).getAuthor().stream().anyMatch(p -> changed.contains(p.getDbId())))
+                    changed.add(obj.getDbId());
+            }
+        }
+        curationObjects.keySet().removeAll(changed);
+        // Layouts depend on whole diagrams and are cheap to rebuild with their source pathways
+        templates.clear();
+    }
+
+    /**
+     * Remove the entries keyed by the passed DB_IDs to release memory. Unlike {@link #invalidate(Collection)}
+     * entries depending on them are kept since they are still valid. The subunits of an entity are removed with
+     * its ReferenceEntities, and the entries of ReferenceEntities still referred to by kept entities are kept.
+     * @return the number of removed entries
+     */
+    public int evict(Collection<Long> dbIds) {
+        int rtn = 0;
+        for (Long dbId : dbIds) {
+            if (peToRefEntities.remove(dbId) != null)
+                rtn++;
+            if (peToSubunits.remove(dbId) != null)
+                rtn++;
+            if (curationObjects.remove(dbId) != null)
+                rtn++;
+            if (templates.remove(dbId) != null)
+                rtn++;
+        }
+        Set<Long> refIds = new HashSet<>(dbIds);
+        refIds.retainAll(refEntityToEntry.keySet());
+        if (refIds.isEmpty())
+            return rtn;
+        for (Map<Long, Integer> refIdToCount : peToRefEntities.values())
+            refIds.removeAll(refIdToCount.keySet());
+        for (Long refId : refIds) {
+            if (refEntityToEntry.remove(refId) != null)
+                rtn++;
+        }
+        return rtn;
+    }
+
+    public void clear() {
+        peToRefEntities.clear();
+        peToSubunits.clear();
+        refEntityToEntry.clear();
+        curationObjects.clear();
+        templates.clear();
+    }
+
+    /**
+     * The identifier of a ReferenceEntity and its url resolved via the ReferenceDatabase.
+     */
+    static class ReferenceEntry {
+        final String identifier;
+        final String url;
+        // The ReferenceDatabase the url comes from
+        final Long refDbId;
+
+        ReferenceEntry(String identifier, String url, Long refDbId) {
+            this.identifier = identifier;
+            this.url = url;
+            this.refDbId = refDbId;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.reactome.sbml.rel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A reverse index from the DB_IDs of instances used in conversions to the pathways whose SBML files
+ * they ended up in. It is persisted as a tab-delimited file in the output directory, one DB_ID per line
+ * followed by comma-separated pathway ids, so that the pathways affected by changed instances can be
+ * re-exported without converting everything.
+ * @author wug
+ *
+ */
+public class DependencyIndex {
+    public static final String FILE_NAME = "dependencies.tsv";
+    private Map<Long, Set<String>> dbIdToPathways;
+    // Forward index so that a pathway can be updated without scanning the reverse one.
+    // Its keys are also the only copies of pathway ids used in the reverse index.
+    private Map<String, Set<Long>> pathwayToDbIds;
+
+    public DependencyIndex() {
+        dbIdToPathways = new TreeMap<>();
+        pathwayToDbIds = new HashMap<>();
+    }
+
+    /**
+     * Load the index from the output directory. An empty index is returned if there is no file.
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static DependencyIndex load(String dir) throws IOException {
+        DependencyIndex index = new DependencyIndex();
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists())
+            return index;
+        Map<String, String> pathwayIds = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                if (tokens.length < 2)
+                    continue;
+                Long dbId = Long.valueOf(tokens[0]);
+                for (String pathway : tokens[1].split(","))
+                    index.add(pathwayIds.computeIfAbsent(pathway, k -> k), dbId);
+            }
+        }
+        return index;
+    }
+
+    private void add(String pathwayId, Long dbId) {
+        pathwayToDbIds.computeIfAbsent(pathwayId, k -> new HashSet<>()).add(dbId);
+        dbIdToPathways.computeIfAbsent(dbId, k -> new TreeSet<>()).add(pathwayId);
+    }
+
+    /**
+     * Replace the dependencies of a pathway with the passed DB_IDs.
+     * @param pathwayId the id used for the SBML file
+     * @param dbIds
+     */
+    public synchronized void update(String pathwayId, Collection<Long> dbIds) {
+        Set<Long> oldIds = pathwayToDbIds.remove(pathwayId);
+        if (oldIds != null) {
+            for (Long dbId : oldIds) {
+                Set<String> pathways = dbIdToPathways.get(dbId);
+                pathways.remove(pathwayId);
+                if (pathways.isEmpty())
+                    dbIdToPathways.remove(dbId);
+            }
+        }
+        for (Long dbId : dbIds)
+            add(pathwayId, dbId);
+    }
+
+    /**
+     * @return ids of the pathways whose SBML files used any of the passed instances
+     */
+    public synchronized Set<String> getAffectedPathways(Collection<Long> dbIds) {
+        Set<String> rtn = new TreeSet<>();
+        for (Long dbId : dbIds) {
+            Set<String> pathways = dbIdToPathways.get(dbId);
+            if (pathways != null)
+                rtn.addAll(pathways);
+        }
+        return rtn;
+    }
+
+    public synchronized boolean isEmpty() {
+        return dbIdToPathways.isEmpty();
+    }
+
+    public synchronized void save(String dir) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            for (Long dbId : dbIdToPathways.keySet())
+                writer.println(dbId + "\t" + String.join(",", dbIdToPathways.get(dbId)));
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.reactome.sbml.rel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+
+/**
+ * An index of the whole event hierarchy built once per run via {@link InstanceSource#buildEventHierarchyIndex()}.
+ * All ReactionlikeEvents contained in a pathway at any level are kept as a sorted long[] of DB_IDs so that
+ * membership can be checked by a binary search instead of walking hasEvent for every pathway.
+ * @author wug
+ *
+ */
+public class EventHierarchyIndex {
+    private static final long[] EMPTY = new long[0];
+    // Pathway DB_ID -> DB_IDs of directly contained pathways
+    private Map<Long, long[]> pathwayToSubPathways;
+    // Pathway DB_ID -> DB_IDs of directly contained reactions
+    private Map<Long, long[]> pathwayToDirectReactions;
+    // Pathway DB_ID -> sorted DB_IDs of reactions contained at any level. Calculated on demand.
+    private Map<Long, long[]> pathwayToReactions;
+    // Reaction DB_ID -> sorted DB_IDs of pathways containing it at any level. Calculated on demand.
+    private Map<Long, long[]> reactionToPathways;
+
+    public EventHierarchyIndex() {
+        pathwayToSubPathways = new HashMap<>();
+        pathwayToDirectReactions = new HashMap<>();
+        pathwayToReactions = new HashMap<>();
+    }
+
+    /**
+     * @param pathwayId
+     * @param events values in the hasEvent slot of the pathway
+     */
+    public void addPathway(Long pathwayId, List<GKInstance> events) {
+        long[] pathways = events.stream()
+                .filter(e -> e.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+                .mapToLong(GKInstance::getDBID)
+                .toArray();
+        long[] reactions = events.stream()
+                .filter(e -> e.getSchemClass().isa(ReactomeJavaConstants.ReactionlikeEvent))
+                .mapToLong(GKInstance::getDBID)
+                .toArray();
+        addPathway(pathwayId, pathways, reactions);
+    }
+
+    public synchronized void addPathway(Long pathwayId, long[] subPathways, long[] reactions) {
+        pathwayToSubPathways.put(pathwayId, subPathways);
+        pathwayToDirectReactions.put(pathwayId, reactions);
+        // Added after a query
+        pathwayToReactions.clear();
+        reactionToPathways = null;
+    }
+
+    /**
+     * Removes a pathway, e.g. after it has been deleted. Pathways containing it keep it until they are added again.
+     */
+    public synchronized void removePathway(Long pathwayId) {
+        if (pathwayToDirectReactions.remove(pathwayId) == null)
+            return;
+        pathwayToSubPathways.remove(pathwayId);
+        pathwayToReactions.clear();
+        reactionToPathways = null;
+    }
+
+    public synchronized boolean isIndexed(Long pathwayId) {
+        return pathwayToDirectReactions.containsKey(pathwayId);
+    }
+
+    public synchronized Set<Long> getPathways() {
+        return new HashSet<>(pathwayToDirectReactions.keySet());
+    }
+
+    /**
+     * @return sorted DB_IDs of ReactionlikeEvents contained in the pathway at any level. Null if the pathway
+     * is not in this index.
+     */
+    public synchronized long[] getReactions(Long pathwayId) {
+        if (!isIndexed(pathwayId))
+            return null;
+        return getReactions(pathwayId, new HashSet<>());
+    }
+
+    private long[] getReactions(Long pathwayId, Set<Long> visiting) {
+        long[] rtn = pathwayToReactions.get(pathwayId);
+        if (rtn != null)
+            return rtn;
+        // Guards against cycles in the event hierarchy
+        if (!visiting.add(pathwayId))
+            return EMPTY;
+        long[] direct = pathwayToDirectReactions.getOrDefault(pathwayId, EMPTY);
+        long[][] subs = Arrays.stream(pathwayToSubPathways.getOrDefault(pathwayId, EMPTY))
+                .mapToObj(sub -> getReactions(sub, visiting))
+                .toArray(long[][]::new);
+        int size = direct.length;
+        for (long[] sub : subs)
+            size += sub.length;
+        long[] all = Arrays.copyOf(direct, size);
+        int pos = direct.length;
+        for (long[] sub : subs) {
+            System.arraycopy(sub, 0, all, pos, sub.length);
+            pos += sub.length;
+        }
+        rtn = sortDistinct(all);
+        visiting.remove(pathwayId);
+        pathwayToReactions.put(pathwayId, rtn);
+        return rtn;
+    }
+
+    private long[] sortDistinct(long[] values) {
+        if (values.length == 0)
+            return EMPTY;
+        Arrays.sort(values);
+        int size = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != values[size - 1])
+                values[size++] = values[i];
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return sorted DB_IDs of pathways contained in the pathway at any level, not including the pathway itself
+     */
+    public synchronized long[] getSubPathways(Long pathwayId) {
+        Set<Long> visited = new HashSet<>();
+        Deque<Long> pending = new ArrayDeque<>();
+        pending.push(pathwayId);
+        while (!pending.isEmpty()) {
+            for (long sub : pathwayToSubPathways.getOrDefault(pending.pop(), EMPTY)) {
+                if (visited.add(sub))
+                    pending.push(sub);
+            }
+        }
+        visited.remove(pathwayId);
+        return sortDistinct(visited.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    public synchronized boolean contains(Long pathwayId, Long reactionId) {
+        long[] reactions = getReactions(pathwayId);
+        return reactions != null && Arrays.binarySearch(reactions, reactionId) >= 0;
+    }
+
+    /**
+     * @return sorted DB_IDs of pathways containing the reaction at any level
+     */
+    public synchronized long[] getContainingPathways(Long reactionId) {
+        if (reactionToPathways == null)
+            buildReverseIndex();
+        return reactionToPathways.getOrDefault(reactionId, EMPTY);
+    }
+
+    private void buildReverseIndex() {
+        Map<Long, long[]> reverse = new HashMap<>();
+        Map<Long, Integer> sizes = new HashMap<>();
+        for (Long pathwayId : pathwayToDirectReactions.keySet()) {
+            for (long reactionId : getReactions(pathwayId))
+                sizes.merge(reactionId, 1, Integer::sum);
+        }
+        sizes.forEach((reactionId, size) -> reverse.put(reactionId, new long[size]));
+        Map<Long, Integer> filled = new HashMap<>();
+        // Pathways are visited in order so that each array is sorted
+        pathwayToDirectReactions.keySet().stream().sorted().forEach(pathwayId -> {
+            for (long reactionId : getReactions(pathwayId)) {
+                int pos = filled.merge(reactionId, 1, Integer::sum) - 1;
+                reverse.get(reactionId)[pos] = pathwayId;
+            }
+        });
+        reactionToPathways = reverse;
+    }
+
+}
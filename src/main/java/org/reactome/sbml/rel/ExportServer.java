@@ -0,0 +1,388 @@
+package org.reactome.sbml.rel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactome.server.tools.sbml.util.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running HTTP server that keeps an {@link InstanceSource} and the run-wide caches resident and
+ * converts events on demand:
+ * <ul>
+ * <li>GET /sbml/{stId or DB_ID} returns the SBML of the event.</li>
+ * <li>GET /stats returns request counts and latency percentiles of the recent requests.</li>
+ * <li>GET /metrics returns the {@link Metrics} of all conversions in the Prometheus text format.</li>
+ * </ul>
+ * Instance sources are not thread-safe, so conversions run in a single thread. Documents are streamed into the
+ * responses while they are written. Recently converted documents are kept in a small LRU cache, and concurrent
+ * requests for the same event share one conversion via the copy made for the cache.
+ * @author wug
+ *
+ */
+public class ExportServer {
+    private static final Logger logger = LoggerFactory.getLogger(ExportServer.class);
+    private static final String SBML_PATH = "/sbml/";
+    private static final String STATS_PATH = "/stats";
+    private static final String METRICS_PATH = "/metrics";
+    // Result of a conversion streamed into its response without a copy
+    private static final byte[] STREAMED = new byte[0];
+    private InstanceSource source;
+    private ConverterCache converterCache;
+    private EventHierarchyIndex eventIndex;
+    private Integer version;
+    private int cacheSize = 100;
+    private int threads = 8;
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    private ExecutorService converterExecutor;
+    private CountDownLatch stopped;
+    // Conversions in progress keyed by the requested id
+    private Map<String, CompletableFuture<byte[]>> inFlight;
+    // Recently converted documents in the access order
+    private Map<String, byte[]> documents;
+    private LatencyRecorder latencies;
+    private AtomicLong requests;
+    private AtomicLong coalesced;
+    private AtomicLong cacheHits;
+
+    public ExportServer(InstanceSource source, ConverterCache converterCache, EventHierarchyIndex eventIndex, Integer version) {
+        this.source = source;
+        this.converterCache = converterCache;
+        this.eventIndex = eventIndex;
+        this.version = version;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.latencies = new LatencyRecorder(1024);
+        this.requests = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.cacheHits = new AtomicLong();
+    }
+
+    /**
+     * @param cacheSize the number of converted documents kept in memory. 0 to disable.
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param threads the number of threads handling HTTP requests
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void start(int port) throws IOException {
+        documents = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        stopped = new CountDownLatch(1);
+        converterExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "sbml-converter"));
+        httpExecutor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(SBML_PATH, this::handleSbml);
+        server.createContext(STATS_PATH, this::handleStats);
+        server.createContext(METRICS_PATH, this::handleMetrics);
+        server.setExecutor(httpExecutor);
+        server.start();
+        logger.info("Serving SBML on port " + port);
+    }
+
+    public void stop() {
+        if (server == null)
+            return;
+        server.stop(1);
+        httpExecutor.shutdown();
+        converterExecutor.shutdown();
+        logger.info(getStats());
+        server = null;
+        stopped.countDown();
+    }
+
+    /**
+     * Block until {@link #stop()} is called.
+     */
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void handleSbml(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        ResponseStream response = new ResponseStream(exchange);
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "text/plain", "Only GET is supported".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String id = exchange.getRequestURI().getPath().substring(SBML_PATH.length());
+            if (!writeSbml(id, response))
+                send(exchange, 404, "text/plain", (id + " is not an event").getBytes(StandardCharsets.UTF_8));
+            else
+                response.close();
+        }
+        catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            // Otherwise the client gets a truncated document
+            if (!response.isCommitted())
+                send(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            latencies.record(System.nanoTime() - start);
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, "text/plain", getStats().getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, "text/plain; version=0.0.4", Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Write the SBML of the event into the response.
+     * @return false if there is no such event
+     */
+    private boolean writeSbml(String id, ResponseStream response) throws Exception {
+        byte[] sbml = getDocument(id);
+        if (sbml != null) {
+            cacheHits.incrementAndGet();
+            response.write(sbml);
+            return true;
+        }
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> future = inFlight.putIfAbsent(id, created);
+        if (future != null) {
+            coalesced.incrementAndGet();
+            sbml = join(future);
+            if (sbml == null)
+                return false;
+            if (sbml != STREAMED) {
+                response.write(sbml);
+                return true;
+            }
+            // Nothing was kept for the cache. Convert it again.
+            return join(submit(id, response, new CompletableFuture<>())) != null;
+        }
+        try {
+            return join(submit(id, response, created)) != null;
+        }
+        finally {
+            inFlight.remove(id, created);
+        }
+    }
+
+    private CompletableFuture<byte[]> submit(String id, ResponseStream response, CompletableFuture<byte[]> future) {
+        converterExecutor.execute(() -> {
+            try {
+                future.complete(convert(id, response));
+            }
+            catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    private byte[] join(CompletableFuture<byte[]> future) throws Exception {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Convert the event and stream it into the response. This is called in the converter thread.
+     * @return the document if it is cached, {@link #STREAMED} if it is not, or null if there is no such event
+     */
+    private byte[] convert(String id, ResponseStream response) throws Exception {
+        // Another request may have converted it while this one was queued
+        byte[] sbml = getDocument(id);
+        if (sbml != null) {
+            response.write(sbml);
+            return sbml;
+        }
+        if (cacheSize > 0)
+            response.keepCopy();
+        int written = SbmlConverterForRel.write(Collections.singletonList(id),
+                                                version,
+                                                source,
+                                                converterCache,
+                                                eventIndex,
+                                                stId -> response,
+                                                SbmlConverterForRel.DEFAULT_BUFFER_SIZE);
+        if (written == 0)
+            return null;
+        sbml = response.getCopy();
+        if (sbml == null)
+            return STREAMED;
+        synchronized (documents) {
+            documents.put(id, sbml);
+        }
+        return sbml;
+    }
+
+    private byte[] getDocument(String id) {
+        synchronized (documents) {
+            return documents.get(id);
+        }
+    }
+
+    public String getStats() {
+        long[] percentiles = latencies.getPercentiles(50, 90, 99, 100);
+        return String.format("requests: %d, cache hits: %d, coalesced: %d, latency (ms) p50: %.1f, p90: %.1f, p99: %.1f, max: %.1f",
+                             requests.get(),
+                             cacheHits.get(),
+                             coalesced.get(),
+                             percentiles[0] / 1.0e6,
+                             percentiles[1] / 1.0e6,
+                             percentiles[2] / 1.0e6,
+                             percentiles[3] / 1.0e6);
+    }
+
+    /**
+     * The body of an SBML response. The headers are sent with the first byte, so that a conversion failing
+     * before can still be answered with an error. The length is not known in advance and the body is chunked.
+     */
+    static class ResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream body;
+        // Copy of the body for the cache
+        private ByteArrayOutputStream copy;
+
+        ResponseStream(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void keepCopy() {
+            copy = new ByteArrayOutputStream();
+        }
+
+        /**
+         * @return null if no copy has been kept
+         */
+        byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+
+        boolean isCommitted() {
+            return body != null;
+        }
+
+        private OutputStream getBody() throws IOException {
+            if (body == null) {
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getBody().write(b);
+            if (copy != null)
+                copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getBody().write(b, off, len);
+            if (copy != null)
+                copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (body != null)
+                body.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body != null)
+                body.close();
+        }
+    }
+
+    /**
+     * Keeps the latencies of the most recent requests in a ring buffer.
+     */
+    static class LatencyRecorder {
+        private final long[] samples;
+        private int next;
+        private int size;
+
+        LatencyRecorder(int capacity) {
+            samples = new long[capacity];
+        }
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            if (size < samples.length)
+                size++;
+        }
+
+        synchronized long[] getPercentiles(int... percentiles) {
+            long[] rtn = new long[percentiles.length];
+            if (size == 0)
+                return rtn;
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            for (int i = 0; i < percentiles.length; i++) {
+                int index = (int) Math.ceil(percentiles[i] / 100.0 * size) - 1;
+                rtn[i] = sorted[Math.max(0, Math.min(index, size - 1))];
+            }
+            return rtn;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.reactome.sbml.rel;
+
+import java.util.Collection;
+
+import org.gk.model.GKInstance;
+import org.gk.render.RenderablePathway;
+
+/**
+ * The data access used by {@link SbmlConverterForRel} and {@link LayoutConverter}. Instances returned
+ * are expected to provide the attribute values read during the conversion.
+ * @author wug
+ *
+ */
+public interface InstanceSource {
+    
+    public GKInstance fetchInstance(Long dbId) throws Exception;
+    
+    /**
+     * @param eventId either a stable id (e.g. R-HSA-400253) or a DB_ID
+     * @return null if there is no Event for the provided id
+     */
+    public GKInstance fetchEvent(String eventId) throws Exception;
+    
+    /**
+     * @param speciesName the display name of a species (e.g. Homo sapiens). Null for all species.
+     */
+    public Collection<GKInstance> fetchPathways(String speciesName) throws Exception;
+    
+    /**
+     * @return the diagram of the passed pathway. Null if there is no diagram for it.
+     */
+    public RenderablePathway fetchDiagram(GKInstance pathway) throws Exception;
+    
+    /**
+     * @return the DB_ID of the PathwayDiagram of the passed pathway. Null if there is no diagram instance for it.
+     */
+    public Long getDiagramId(GKInstance pathway) throws Exception;
+    
+    public Integer getReleaseNumber() throws Exception;
+    
+    /**
+     * Index the hasEvent hierarchy of all pathways in this source.
+     */
+    public EventHierarchyIndex buildEventHierarchyIndex() throws Exception;
+    
+    /**
+     * Release the cached instances to keep the heap bounded during a long run.
+     */
+    public void clearCache();
+    
+    /**
+     * Release the cached instances with the passed DB_IDs if they are cached.
+     * @return the number of released instances
+     */
+    public int evict(Collection<Long> dbIds);
+    
+    /**
+     * @return the DB_ID in the passed event id. Null if it is not a number.
+     */
+    public static Long parseDbId(String eventId) {
+        try {
+            return Long.valueOf(eventId);
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
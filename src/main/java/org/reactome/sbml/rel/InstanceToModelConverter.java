@@ -16,15 +16,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import org.gk.model.GKInstance;
 import org.gk.model.ReactomeJavaConstants;
-import org.gk.schema.InvalidAttributeException;
+import org.reactome.sbml.rel.ConverterCache.ReferenceEntry;
 import org.reactome.server.graph.domain.model.AbstractModifiedResidue;
 import org.reactome.server.graph.domain.model.Affiliation;
 import org.reactome.server.graph.domain.model.Compartment;
@@ -41,6 +41,7 @@ import org.reactome.server.graph.domain.model.TranslationalModification;
 import org.reactome.server.tools.sbml.data.model.IdentifierBase;
 import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
 import org.reactome.server.tools.sbml.data.model.ReactionBase;
+import org.reactome.server.tools.sbml.util.FlightRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,20 +56,58 @@ public class InstanceToModelConverter {
     private static Logger logger = LoggerFactory.getLogger(InstanceToModelConverter.class);
     // This should be fixed and hard coded since it must be true!
     private final String MODEL_PACKAGE_NAME = "org.reactome.server.graph.domain.model";
+    // Attributes walked to collect ReferenceEntities. We need multiplicities and cannot use the methods in InstanceUtilities.
+    private static final String[] REFERENCE_ENTITY_ATTRIBUTES = new String[] {ReactomeJavaConstants.hasComponent,
+                                                                              ReactomeJavaConstants.hasMember,
+                                                                              ReactomeJavaConstants.hasCandidate,
+                                                                              ReactomeJavaConstants.repeatedUnit};
     // Converted values are catched
     private Map<GKInstance, DatabaseObject> instToObj;
     private ReactionHandler reactionHandler;
+    // Shared by the conversions in a run
+    private ConverterCache cache;
+    // DB_IDs of instances whose values have been used in the current conversion
+    private Set<Long> touchedIds;
     
     public InstanceToModelConverter() {
         instToObj = new HashMap<>();
         reactionHandler = new ReactionHandler(this);
+        cache = new ConverterCache();
+        touchedIds = new HashSet<>();
+    }
+    
+    public void setCache(ConverterCache cache) {
+        this.cache = cache;
     }
     
     void reset() {
         instToObj.clear();
+        touchedIds.clear();
+    }
+    
+    /**
+     * @return DB_IDs of instances whose values have been used since the last reset
+     */
+    Set<Long> getTouchedIds() {
+        return touchedIds;
+    }
+    
+    void touch(GKInstance inst) {
+        touchedIds.add(inst.getDBID());
+    }
+    
+    void touch(Long dbId) {
+        if (dbId != null)
+            touchedIds.add(dbId);
+    }
+    
+    private void touch(DatabaseObject obj) {
+        if (obj != null && obj.getDbId() != null)
+            touchedIds.add(obj.getDbId());
     }
     
     public DatabaseObject convert(GKInstance instance) throws Exception {
+        touch(instance);
         DatabaseObject rtn = instToObj.get(instance);
         if (rtn != null)
             return rtn;
@@ -90,6 +129,8 @@ public class InstanceToModelConverter {
     }
     
     public void fillInReactionDetails(GKInstance rle, ReactionBase reactionBase) throws Exception {
+        FlightRecorder.ReactionDetails event = new FlightRecorder.ReactionDetails();
+        event.begin();
         handleInstance(rle, reactionBase.getReactionLikeEvent(), Set.class);
         reactionHandler.handleReactionParticipants(rle, reactionBase);
         handleInstanceEdits(rle, reactionBase.getReactionLikeEvent());
@@ -97,11 +138,15 @@ public class InstanceToModelConverter {
         reactionHandler.setLiteratureRefs(rle, reactionBase);
         reactionHandler.setDiseases(rle, reactionBase);
         reactionHandler.setXrefs(rle, reactionBase);
+        event.commit(reactionBase.getReactionLikeEvent().getStId(), rle.getDBID());
     }
     
     public void fillInPathwayDetails(GKInstance pathwayInst, Pathway pathwayObj) throws Exception {
+        FlightRecorder.PathwayDetails event = new FlightRecorder.PathwayDetails();
+        event.begin();
         handleInstance(pathwayInst, pathwayObj, Set.class);
         handleInstanceEdits(pathwayInst, pathwayObj);
+        event.commit(pathwayObj.getStId(), pathwayInst.getDBID());
     }
     
     private void handleInstanceEdits(GKInstance rle, DatabaseObject rleObj) throws Exception {
@@ -109,44 +154,109 @@ public class InstanceToModelConverter {
 //                ReactomeJavaConstants.modified,
                 ReactomeJavaConstants.revised,
                 ReactomeJavaConstants.authored};
-        ValueAssigner<InstanceEdit> ieAssigner = (src, target) -> {
-            ValueAssigner<Affiliation> affAssigner = (src2, target2) -> {
-                // Just simple text
-                List<String> names = src2.getAttributeValuesList(ReactomeJavaConstants.name);
-                target2.setName(names);
-            };
-            ValueAssigner<Person> personAssigner = (src1, target1) -> {
-                convertAttributeValues(src1, target1, ReactomeJavaConstants.affiliation, affAssigner);
-                // First name and last name
-                String firstName = (String) src1.getAttributeValue(ReactomeJavaConstants.firstname);
-                target1.setFirstname(firstName);
-                String surname = (String) src1.getAttributeValue(ReactomeJavaConstants.surname);
-                target1.setSurname(surname);
-            };
-            convertAttributeValues(src, target, ReactomeJavaConstants.author, personAssigner);
-            // We also need date
-            String dateTime = (String) src.getAttributeValue(ReactomeJavaConstants.dateTime);
-            target.setDateTime(dateTime);
-        };
         for (String attName : attNames) {
+            if (!rle.getSchemClass().isValidAttribute(attName))
+                continue;
+            List<GKInstance> values = rle.getAttributeValuesList(attName);
             if (attName.equals(created))
-                convertAttributeValues(rle, rleObj, attName, InstanceEdit.class, ieAssigner);
+                setInstanceEdits(values, rleObj, attName, InstanceEdit.class);
             else
-                convertAttributeValues(rle, rleObj, attName, ieAssigner);
+                setInstanceEdits(values, rleObj, attName, List.class);
         }
         List<GKInstance> modified = rle.getAttributeValuesList(ReactomeJavaConstants.modified);
         if (modified != null && modified.size() > 0) {
-            convertAttributeValues(modified.subList(modified.size() - 1, modified.size()), 
-                                   rleObj,
-                                   ReactomeJavaConstants.modified,
-                                   InstanceEdit.class,
-                                   ieAssigner);
+            setInstanceEdits(modified.subList(modified.size() - 1, modified.size()), 
+                             rleObj,
+                             ReactomeJavaConstants.modified,
+                             InstanceEdit.class);
+        }
+    }
+    
+    private void setInstanceEdits(List<GKInstance> values,
+                                  DatabaseObject obj,
+                                  String attName,
+                                  Class<?> attType) throws Exception {
+        Method method = getSetMethod(obj, attName, attType);
+        if (attType.equals(List.class)) {
+            List<InstanceEdit> ies = new ArrayList<>();
+            if (values != null) {
+                for (GKInstance value : values)
+                    ies.add(getInstanceEdit(value));
+            }
+            method.invoke(obj, ies);
         }
+        else if (values == null || values.size() == 0)
+            method.invoke(obj, (Object) null);
+        else
+            method.invoke(obj, getInstanceEdit(values.get(0)));
+    }
+    
+    private InstanceEdit getInstanceEdit(GKInstance ie) throws Exception {
+        InstanceEdit rtn = internInstanceEdit(ie);
+        // Interned objects are not converted again. Track them here.
+        touch(rtn);
+        for (Person person : rtn.getAuthor()) {
+            touch(person);
+            for (Affiliation affiliation : person.getAffiliation())
+                touch(affiliation);
+        }
+        return rtn;
+    }
+    
+    /**
+     * A handful of curators author thousands of events. Converted InstanceEdits together with their
+     * Persons and Affiliations are interned for the whole run. They should not be modified after this.
+     */
+    private InstanceEdit internInstanceEdit(GKInstance ie) throws Exception {
+        InstanceEdit rtn = (InstanceEdit) cache.getCurationObject(ie.getDBID());
+        if (rtn != null)
+            return rtn;
+        rtn = (InstanceEdit) convert(ie);
+        List<Person> authors = new ArrayList<>();
+        for (GKInstance author : (List<GKInstance>) ie.getAttributeValuesList(ReactomeJavaConstants.author))
+            authors.add(getPerson(author));
+        rtn.setAuthor(authors);
+        // We also need date
+        rtn.setDateTime((String) ie.getAttributeValue(ReactomeJavaConstants.dateTime));
+        cache.putCurationObject(ie.getDBID(), rtn);
+        return rtn;
+    }
+    
+    private Person getPerson(GKInstance person) throws Exception {
+        Person rtn = (Person) cache.getCurationObject(person.getDBID());
+        if (rtn != null)
+            return rtn;
+        rtn = (Person) convert(person);
+        List<Affiliation> affiliations = new ArrayList<>();
+        if (person.getSchemClass().isValidAttribute(ReactomeJavaConstants.affiliation)) {
+            for (GKInstance affiliation : (List<GKInstance>) person.getAttributeValuesList(ReactomeJavaConstants.affiliation))
+                affiliations.add(getAffiliation(affiliation));
+        }
+        rtn.setAffiliation(affiliations);
+        // First name and last name
+        rtn.setFirstname((String) person.getAttributeValue(ReactomeJavaConstants.firstname));
+        rtn.setSurname((String) person.getAttributeValue(ReactomeJavaConstants.surname));
+        cache.putCurationObject(person.getDBID(), rtn);
+        return rtn;
+    }
+    
+    private Affiliation getAffiliation(GKInstance affiliation) throws Exception {
+        Affiliation rtn = (Affiliation) cache.getCurationObject(affiliation.getDBID());
+        if (rtn != null)
+            return rtn;
+        rtn = (Affiliation) convert(affiliation);
+        // Just simple text
+        rtn.setName(affiliation.getAttributeValuesList(ReactomeJavaConstants.name));
+        cache.putCurationObject(affiliation.getDBID(), rtn);
+        return rtn;
     }
     
     public void fillInPEDetails(GKInstance pe, ParticipantDetails details) throws Exception {
+        FlightRecorder.ParticipantDetails event = new FlightRecorder.ParticipantDetails();
+        event.begin();
         handleInstance(pe, details.getPhysicalEntity(), List.class);
         handleReferencEntities(pe, details);
+        event.commit(details.getPhysicalEntity().getStId(), pe.getDBID());
     }
     
     /**
@@ -276,61 +386,82 @@ public class InstanceToModelConverter {
         return rtn;
     }
 
-    private void handleReferencEntities(GKInstance pe, ParticipantDetails details)
-            throws Exception, InvalidAttributeException {
-        List<GKInstance> refEntities = new ArrayList<>();
-        // We need a list here and cannot use the methods provided in InstanceUtilities.
-        String[] attributes = new String[] {ReactomeJavaConstants.hasComponent,
-                                            ReactomeJavaConstants.hasMember,
-                                            ReactomeJavaConstants.hasCandidate,
-                                            ReactomeJavaConstants.repeatedUnit};
-        // Perform a depth first search
-        grepReferenceEntities(pe, refEntities, attributes);
-        Map<GKInstance, Long> refInstToCount = refEntities.stream()
-                                                          .collect(Collectors.groupingBy(Function.identity(),
-                                                                                          Collectors.counting()));
+    private void handleReferencEntities(GKInstance pe, ParticipantDetails details) throws Exception {
+        Map<Long, Integer> refIdToCount = getReferenceEntities(pe);
+        touchedIds.addAll(refIdToCount.keySet());
+        for (long subunitId : cache.getSubunits(pe.getDBID()))
+            touchedIds.add(subunitId);
         // Get ids from ReferenceEntities and the stoichiometries
-        for (GKInstance refInst : refInstToCount.keySet()) {
-            Long stoi = refInstToCount.get(refInst);
-            String identifier = (String) refInst.getAttributeValue(ReactomeJavaConstants.identifier);
+        for (Long refId : refIdToCount.keySet()) {
+            ReferenceEntry entry = cache.getReferenceEntry(refId);
+            touch(entry.refDbId);
             IdentifierBase ibase = new IdentifierBase();
-            ibase.setId(identifier);
-            ibase.setN(stoi.intValue());
+            ibase.setId(entry.identifier);
+            ibase.setN(refIdToCount.get(refId));
             details.addIdentifierBase(ibase);
             // Need urls for ReferenceEntities
-            String url = getUrl(refInst, ReactomeJavaConstants.identifier);
-            if (url != null)
-                details.addUrl(url);
+            if (entry.url != null)
+                details.addUrl(entry.url);
         }
     }
     
-    private void grepReferenceEntities(GKInstance pe, 
-                                       List<GKInstance> refEntities,
-                                       String[] checkAtts) throws Exception {
+    /**
+     * Collect ReferenceEntities with their stoichiometries bottom-up. The results are cached for each
+     * PhysicalEntity so that subunits and members shared by many entities are walked once only.
+     * @param pe
+     * @return ReferenceEntity DB_IDs to stoichiometries
+     * @throws Exception
+     */
+    private Map<Long, Integer> getReferenceEntities(GKInstance pe) throws Exception {
+        Map<Long, Integer> cached = cache.getReferenceEntities(pe.getDBID());
+        // Entries may have been released after the closure was cached. Walk the entity again to restore them.
+        if (cached != null && cache.hasReferenceEntries(cached.keySet()))
+            return cached;
+        Map<Long, Integer> rtn = new LinkedHashMap<>();
         if (pe.getSchemClass().isValidAttribute(ReactomeJavaConstants.referenceEntity)) {
             GKInstance refEntity = (GKInstance) pe.getAttributeValue(ReactomeJavaConstants.referenceEntity);
-            if (refEntity != null)
-                refEntities.add(refEntity);
+            if (refEntity != null) {
+                if (cache.getReferenceEntry(refEntity.getDBID()) == null) {
+                    String identifier = (String) refEntity.getAttributeValue(ReactomeJavaConstants.identifier);
+                    GKInstance refDb = (GKInstance) refEntity.getAttributeValue(ReactomeJavaConstants.referenceDatabase);
+                    cache.putReferenceEntry(refEntity.getDBID(),
+                                            new ReferenceEntry(identifier,
+                                                               getUrl(refEntity, ReactomeJavaConstants.identifier),
+                                                               refDb == null ? null : refDb.getDBID()));
+                }
+                rtn.merge(refEntity.getDBID(), 1, Integer::sum);
+            }
         }
+        // All contained entities at any level
+        Set<Long> subunits = new LinkedHashSet<>();
         // If the above is true, usually there is no need here. However, this check may be more robust for the future
-        for (String att : checkAtts) {
+        for (String att : REFERENCE_ENTITY_ATTRIBUTES) {
             if (!pe.getSchemClass().isValidAttribute(att))
                 continue;
             List<GKInstance> values = pe.getAttributeValuesList(att);
             if (values == null || values.size() == 0)
                 continue;
-            for (GKInstance value : values)
-                grepReferenceEntities(value, refEntities, checkAtts);
+            for (GKInstance value : values) {
+                getReferenceEntities(value).forEach((refId, count) -> rtn.merge(refId, count, Integer::sum));
+                subunits.add(value.getDBID());
+                for (long subunitId : cache.getSubunits(value.getDBID()))
+                    subunits.add(subunitId);
+            }
         }
+        cache.putSubunits(pe.getDBID(), subunits.stream().mapToLong(Long::longValue).toArray());
+        cache.putReferenceEntities(pe.getDBID(), rtn);
+        return rtn;
     }
     
     String getUrl(GKInstance inst,
                   String idAttName) throws Exception {
+        touch(inst);
         if (!(inst.getSchemClass().isValidAttribute(referenceDatabase)))
             logger.error(inst + " doesn't have a referenceDatabase slot.");
         GKInstance refDb = (GKInstance) inst.getAttributeValue(ReactomeJavaConstants.referenceDatabase);
         if (refDb == null)
             logger.error(inst + " doesn't have a referenceDatabase assigned.");
+        touch(refDb);
         String accessUrl = (String) refDb.getAttributeValue(ReactomeJavaConstants.accessUrl);
         if (accessUrl == null)
             logger.error(refDb + " doesn't have an accessUrl assigned.");
@@ -5,7 +5,6 @@ import static org.gk.render.DefaultRenderConstants.EDGE_TYPE_WIDGET_WIDTH;
 import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -14,11 +13,8 @@ import java.util.Set;
 import org.gk.graphEditor.PathwayEditor;
 import org.gk.model.GKInstance;
 import org.gk.model.InstanceUtilities;
-import org.gk.model.PersistenceAdaptor;
 import org.gk.model.ReactomeJavaConstants;
 import org.gk.pathwaylayout.PathwayDiagramGeneratorViaAT;
-import org.gk.persistence.DiagramGKBReader;
-import org.gk.persistence.MySQLAdaptor;
 import org.gk.render.Node;
 import org.gk.render.Renderable;
 import org.gk.render.RenderableChemical;
@@ -34,6 +30,8 @@ import org.gk.render.RenderableRNA;
 import org.gk.render.RenderableRNADrug;
 import org.gk.render.RenderableReaction;
 import org.reactome.server.tools.sbml.converter.SbmlConverter;
+import org.reactome.server.tools.sbml.util.FlightRecorder;
+import org.reactome.server.tools.sbml.util.Metrics;
 import org.sbml.jsbml.Compartment;
 import org.sbml.jsbml.ListOf;
 import org.sbml.jsbml.Model;
@@ -66,13 +64,13 @@ public class LayoutConverter {
     public static final String TEXT_PREFIX = "text_";
     private static final Logger logger = LoggerFactory.getLogger(LayoutConverter.class);
     private static final double SHIFT_VALUE = 0.5d;
-    private MySQLAdaptor dba;
+    private InstanceSource source;
 
     public LayoutConverter() {
     }
     
-    public void setDBA(MySQLAdaptor dba) {
-        this.dba = dba;
+    public void setInstanceSource(InstanceSource source) {
+        this.source = source;
     }
 
     public void addLayout(Model model,
@@ -85,7 +83,7 @@ public class LayoutConverter {
         }
         try {
             logger.info("Adding layout for " + pathway + "...");
-            validateLayout(diagram);
+            validateLayout(pathway, diagram);
             // The following code is modified from https://github.com/sbmlteam/jsbml/blob/master/extensions/layout/test/org/sbml/jsbml/ext/layout/test/CurveSegmentTest.java
             LayoutModelPlugin lModel = new LayoutModelPlugin(model);
             model.addExtension(LayoutConstants.namespaceURI,
@@ -94,6 +92,7 @@ public class LayoutConverter {
             handleCompartments(layout, diagram);
             handleNodes(layout, diagram);
             handleReactions(layout, diagram);
+            Metrics.count(Metrics.LAYOUTS);
             logger.info("Done layout.");
         }
         catch(Exception e) {
@@ -101,7 +100,10 @@ public class LayoutConverter {
         }
     }
     
-    private void validateLayout(RenderablePathway diagram) {
+    private void validateLayout(GKInstance pathway, RenderablePathway diagram) throws Exception {
+        FlightRecorder.LayoutValidation event = new FlightRecorder.LayoutValidation();
+        event.begin();
+        long start = System.nanoTime();
         // Force to make sure all points are correct validated
         PathwayEditor pathwayEditor = new PathwayEditor();
         pathwayEditor.setRenderable(diagram);
@@ -112,6 +114,16 @@ public class LayoutConverter {
         // which may bloat the sizes of nodes there.
         pathwayEditor.tightNodes(true);
         helper.paintOnImage(pathwayEditor);
+        Metrics.time(Metrics.LAYOUT_VALIDATION, start);
+        if (event.isEnabled())
+            event.commit(getStableId(pathway), pathway.getDBID());
+    }
+
+    private String getStableId(GKInstance pathway) throws Exception {
+        GKInstance stableId = (GKInstance) pathway.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
+        if (stableId == null)
+            return null;
+        return (String) stableId.getAttributeValue(ReactomeJavaConstants.identifier);
     }
     
     private void handleReactions(Layout layout, RenderablePathway diagram) {
@@ -456,15 +468,10 @@ public class LayoutConverter {
     }
 
     public RenderablePathway getDiagram(GKInstance pathway) throws Exception {
-        PersistenceAdaptor dba = pathway.getDbAdaptor();
-        Collection<GKInstance> diagrams = dba.fetchInstanceByAttribute(ReactomeJavaConstants.PathwayDiagram,
-                                                                       ReactomeJavaConstants.representedPathway,
-                                                                       "=",
-                                                                       pathway);
-        if (diagrams == null || diagrams.size() == 0)
-            return null;
-        GKInstance diagram = diagrams.iterator().next();
-        return new DiagramGKBReader().openDiagram(diagram);
+        long start = System.nanoTime();
+        RenderablePathway diagram = source.fetchDiagram(pathway);
+        Metrics.time(Metrics.DIAGRAM_FETCH, start);
+        return diagram;
     }
     
     /**
@@ -521,7 +528,7 @@ public class LayoutConverter {
         // Special case
         if (r instanceof RenderableEntitySet) {
             try {
-                GKInstance inst = dba.fetchInstance(r.getReactomeId());
+                GKInstance inst = source.fetchInstance(r.getReactomeId());
                 if (InstanceUtilities.hasDrug(inst))
                     return "SBO:0000298";
                 // This term is for functional compartment. Following Marek's advice
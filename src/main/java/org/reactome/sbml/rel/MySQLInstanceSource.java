@@ -0,0 +1,184 @@
+package org.reactome.sbml.rel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gk.model.GKInstance;
+import org.gk.model.InstanceCache;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.DiagramGKBReader;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.render.RenderablePathway;
+import org.reactome.server.tools.sbml.util.Metrics;
+
+/**
+ * An InstanceSource backed by a live relational database. Calls of the MySQLAdaptor are counted in
+ * {@link Metrics#MYSQL_QUERIES}.
+ * @author wug
+ *
+ */
+@SuppressWarnings("unchecked")
+public class MySQLInstanceSource implements InstanceSource {
+    private MySQLAdaptor dba;
+    // Pathway DB_ID -> DB_ID of its diagram or null, so that the diagram is queried once only
+    private Map<Long, Long> pathwayToDiagram;
+    
+    public MySQLInstanceSource(MySQLAdaptor dba) {
+        this.dba = dba;
+        this.pathwayToDiagram = new HashMap<>();
+    }
+    
+    public MySQLAdaptor getDBA() {
+        return dba;
+    }
+
+    @Override
+    public GKInstance fetchInstance(Long dbId) throws Exception {
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        return dba.fetchInstance(dbId);
+    }
+
+    @Override
+    public GKInstance fetchEvent(String eventId) throws Exception {
+        if (eventId.startsWith("R-")) // This is a stable id
+            return fetchEventForStableId(eventId);
+        Long dbId = InstanceSource.parseDbId(eventId);
+        if (dbId == null)
+            return null;
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        GKInstance inst = dba.fetchInstance(dbId);
+        if (inst == null || !inst.getSchemClass().isa(ReactomeJavaConstants.Event))
+            return null;
+        return inst;
+    }
+
+    
+    private GKInstance fetchEventForStableId(String stableId) throws Exception {
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        Collection<GKInstance> stableIdInst = dba.fetchInstanceByAttribute(ReactomeJavaConstants.StableIdentifier,
+                                                                           ReactomeJavaConstants.identifier,
+                                                                           "=",
+                                                                           stableId);
+        if (stableIdInst == null || stableIdInst.size() == 0)
+            return null;
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        Collection<GKInstance> events = dba.fetchInstanceByAttribute(ReactomeJavaConstants.Event,
+                                                                     ReactomeJavaConstants.stableIdentifier,
+                                                                     "=",
+                                                                     stableIdInst.iterator().next());
+        if (events == null || events.size() == 0)
+            return null;
+        return events.iterator().next();
+    }
+
+    @Override
+    public Collection<GKInstance> fetchPathways(String speciesName) throws Exception {
+        if (speciesName == null) {
+            Metrics.count(Metrics.MYSQL_QUERIES);
+            Collection<GKInstance> pathways = dba.fetchInstancesByClass(ReactomeJavaConstants.Pathway);
+            // Load in one go instead of one query per pathway
+            Metrics.count(Metrics.MYSQL_QUERIES);
+            dba.loadInstanceAttributeValues(pathways, new String[] {ReactomeJavaConstants.species,
+                                                                    ReactomeJavaConstants.stableIdentifier});
+            return pathways;
+        }
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        Collection<GKInstance> species = dba.fetchInstanceByAttribute(ReactomeJavaConstants.Species,
+                                                                      ReactomeJavaConstants._displayName,
+                                                                      "=",
+                                                                      speciesName);
+        if (species == null || species.size() == 0)
+            return new ArrayList<>();
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        return dba.fetchInstanceByAttribute(ReactomeJavaConstants.Pathway,
+                                            ReactomeJavaConstants.species,
+                                            "=",
+                                            species.iterator().next());
+    }
+
+    @Override
+    public RenderablePathway fetchDiagram(GKInstance pathway) throws Exception {
+        GKInstance diagram = fetchDiagramInstance(pathway);
+        if (diagram == null)
+            return null;
+        return new DiagramGKBReader().openDiagram(diagram);
+    }
+    
+    GKInstance fetchDiagramInstance(GKInstance pathway) throws Exception {
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        Collection<GKInstance> diagrams = dba.fetchInstanceByAttribute(ReactomeJavaConstants.PathwayDiagram,
+                                                                       ReactomeJavaConstants.representedPathway,
+                                                                       "=",
+                                                                       pathway);
+        GKInstance rtn = diagrams == null || diagrams.size() == 0 ? null : diagrams.iterator().next();
+        pathwayToDiagram.put(pathway.getDBID(), rtn == null ? null : rtn.getDBID());
+        return rtn;
+    }
+
+    @Override
+    public Long getDiagramId(GKInstance pathway) throws Exception {
+        if (pathwayToDiagram.containsKey(pathway.getDBID()))
+            return pathwayToDiagram.get(pathway.getDBID());
+        GKInstance diagram = fetchDiagramInstance(pathway);
+        return diagram == null ? null : diagram.getDBID();
+    }
+
+    @Override
+    public EventHierarchyIndex buildEventHierarchyIndex() throws Exception {
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        Collection<GKInstance> pathways = dba.fetchInstancesByClass(ReactomeJavaConstants.Pathway);
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        dba.loadInstanceAttributeValues(pathways, new String[] {ReactomeJavaConstants.hasEvent});
+        EventHierarchyIndex index = new EventHierarchyIndex();
+        for (GKInstance pathway : pathways)
+            index.addPathway(pathway.getDBID(), pathway.getAttributeValuesList(ReactomeJavaConstants.hasEvent));
+        return index;
+    }
+
+    /**
+     * Reload the attributes of the passed instances in place so that the cached instances referring to
+     * them see the changes while everything else stays cached.
+     * @param dbIds DB_IDs of changed instances
+     */
+    public void refresh(Collection<Long> dbIds) throws Exception {
+        for (Long dbId : dbIds) {
+            Metrics.count(Metrics.MYSQL_QUERIES);
+            GKInstance instance = dba.fetchInstance(dbId);
+            if (instance != null) { // Deleted instances are not in the database any more
+                Metrics.count(Metrics.MYSQL_QUERIES);
+                dba.loadInstanceAttributeValues(instance);
+            }
+        }
+    }
+
+    @Override
+    public Integer getReleaseNumber() throws Exception {
+        Metrics.count(Metrics.MYSQL_QUERIES);
+        return dba.getReleaseNumber();
+    }
+
+    @Override
+    public void clearCache() {
+        dba.refreshCaches();
+    }
+
+    /**
+     * Instances still referred to by other cached instances stay on the heap until those are released too.
+     * @return the number of passed instances the adaptor had cached
+     */
+    @Override
+    public int evict(Collection<Long> dbIds) {
+        InstanceCache cache = dba.getInstanceCache();
+        int rtn = 0;
+        for (Long dbId : dbIds) {
+            if (cache.get(dbId) == null)
+                continue;
+            dba.removeFromCache(dbId);
+            rtn++;
+        }
+        return rtn;
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.reactome.sbml.rel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.ext.layout.BoundingBox;
+import org.sbml.jsbml.ext.layout.CompartmentGlyph;
+import org.sbml.jsbml.ext.layout.Dimensions;
+import org.sbml.jsbml.ext.layout.Layout;
+import org.sbml.jsbml.ext.layout.LayoutConstants;
+import org.sbml.jsbml.ext.layout.LayoutModelPlugin;
+import org.sbml.jsbml.ext.layout.Point;
+import org.sbml.jsbml.ext.layout.ReactionGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesReferenceGlyph;
+import org.sbml.jsbml.ext.layout.TextGlyph;
+
+/**
+ * The layout of a converted source pathway (usually human) kept to lay out the pathways inferred from it.
+ * Inferred pathways share the diagram of their source pathway, so instead of opening and validating that diagram
+ * again for every species, the SBML layout of the source model is copied and its reactions and species are
+ * replaced by the inferred ones mapped via inferredFrom. Entities and annotations are still converted from the
+ * inferred instances since they are species specific.
+ * @author wug
+ *
+ */
+public class OrthologyTemplate {
+    private Layout layout;
+    // Reactions in the source model
+    private Set<String> reactionIds;
+    // SBO terms of species reset by LayoutConverter
+    private Map<String, Integer> speciesToSBOTerm;
+
+    private OrthologyTemplate() {
+    }
+
+    /**
+     * @param model a converted source model
+     * @return null if the model has no layout
+     */
+    public static OrthologyTemplate create(Model model) {
+        if (!model.isSetPlugin(LayoutConstants.namespaceURI))
+            return null;
+        LayoutModelPlugin plugin = (LayoutModelPlugin) model.getExtension(LayoutConstants.namespaceURI);
+        if (plugin.getLayoutCount() == 0)
+            return null;
+        OrthologyTemplate template = new OrthologyTemplate();
+        template.layout = plugin.getLayout(0).clone();
+        template.reactionIds = new HashSet<>();
+        for (int i = 0; i < model.getReactionCount(); i++)
+            template.reactionIds.add(model.getReaction(i).getId());
+        template.speciesToSBOTerm = new HashMap<>();
+        for (Species species : model.getListOfSpecies()) {
+            if (species.isSetSBOTerm())
+                template.speciesToSBOTerm.put(species.getId(), species.getSBOTerm());
+        }
+        return template;
+    }
+
+    /**
+     * Check if a model has the same reactions as the source model.
+     * @param model the inferred model
+     * @param idMap the ids of reactions and species in the inferred model to the ids in the source model
+     */
+    public boolean matches(Model model, Map<String, String> idMap) {
+        if (model.getReactionCount() != reactionIds.size())
+            return false;
+        Set<String> mapped = new HashSet<>();
+        for (int i = 0; i < model.getReactionCount(); i++) {
+            String sourceId = idMap.get(model.getReaction(i).getId());
+            if (sourceId == null || !reactionIds.contains(sourceId) || !mapped.add(sourceId))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a copy of the source layout to the inferred model. This should be called after {@link #matches(Model, Map)}.
+     * @param model the inferred model
+     * @param idMap the ids of reactions and species in the inferred model to the ids in the source model
+     */
+    public void apply(Model model, Map<String, String> idMap) {
+        Map<String, String> sourceToTarget = new HashMap<>();
+        idMap.forEach((target, source) -> sourceToTarget.put(source, target));
+        Layout copy = layout.clone();
+        Set<String> removed = new HashSet<>();
+        Map<String, String> glyphToSpecies = new HashMap<>();
+        List<SpeciesGlyph> speciesGlyphs = new ArrayList<>(copy.getListOfSpeciesGlyphs());
+        for (SpeciesGlyph glyph : speciesGlyphs) {
+            String speciesId = sourceToTarget.get(glyph.getSpecies());
+            if (speciesId == null || !model.containsSpecies(speciesId)) {
+                removed.add(glyph.getId());
+                copy.getListOfSpeciesGlyphs().remove(glyph);
+                continue;
+            }
+            Integer sboTerm = speciesToSBOTerm.get(glyph.getSpecies());
+            if (sboTerm != null)
+                model.getSpecies(speciesId).setSBOTerm(sboTerm);
+            glyph.setSpecies(speciesId);
+            glyphToSpecies.put(glyph.getId(), speciesId);
+        }
+        List<ReactionGlyph> reactionGlyphs = new ArrayList<>(copy.getListOfReactionGlyphs());
+        for (ReactionGlyph glyph : reactionGlyphs) {
+            String reactionId = sourceToTarget.get(glyph.getReaction());
+            if (reactionId == null || !model.containsReaction(reactionId)) {
+                removed.add(glyph.getId());
+                copy.getListOfReactionGlyphs().remove(glyph);
+                continue;
+            }
+            glyph.setReaction(reactionId);
+            List<SpeciesReferenceGlyph> refGlyphs = new ArrayList<>(glyph.getListOfSpeciesReferenceGlyphs());
+            for (SpeciesReferenceGlyph refGlyph : refGlyphs) {
+                if (removed.contains(refGlyph.getSpeciesGlyph()))
+                    glyph.getListOfSpeciesReferenceGlyphs().remove(refGlyph);
+            }
+        }
+        Set<String> handled = new HashSet<>();
+        List<CompartmentGlyph> compartmentGlyphs = new ArrayList<>(copy.getListOfCompartmentGlyphs());
+        for (CompartmentGlyph glyph : compartmentGlyphs) {
+            if (!model.containsCompartment(glyph.getCompartment())) {
+                removed.add(glyph.getId());
+                copy.getListOfCompartmentGlyphs().remove(glyph);
+            }
+            else
+                handled.add(glyph.getCompartment());
+        }
+        List<TextGlyph> textGlyphs = new ArrayList<>(copy.getListOfTextGlyphs());
+        for (TextGlyph glyph : textGlyphs) {
+            if (removed.contains(glyph.getGraphicalObject()))
+                copy.getListOfTextGlyphs().remove(glyph);
+            else if (glyphToSpecies.containsKey(glyph.getGraphicalObject()))
+                glyph.setText(getLabel(model.getSpecies(glyphToSpecies.get(glyph.getGraphicalObject()))));
+        }
+        addHiddenCompartments(copy, model, handled);
+        LayoutModelPlugin plugin = new LayoutModelPlugin(model);
+        model.addExtension(LayoutConstants.namespaceURI, plugin);
+        plugin.addLayout(copy);
+    }
+
+    /**
+     * Species names carry their compartments, which are not shown in diagrams.
+     */
+    private String getLabel(Species species) {
+        return species.getName().replaceAll(" \\[[^\\]]*\\]$", "");
+    }
+
+    /**
+     * The same as LayoutConverter: compartments not drawn are put at the bottom to keep Minerva from drawing them.
+     */
+    private void addHiddenCompartments(Layout copy, Model model, Set<String> handled) {
+        List<Compartment> missing = new ArrayList<>();
+        for (Compartment compartment : model.getListOfCompartments()) {
+            if (!handled.contains(compartment.getId()))
+                missing.add(compartment);
+        }
+        if (missing.isEmpty())
+            return;
+        double minX = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = 0.0d;
+        for (SpeciesGlyph glyph : copy.getListOfSpeciesGlyphs()) {
+            BoundingBox box = glyph.getBoundingBox();
+            minX = Math.min(minX, box.getPosition().getX());
+            maxX = Math.max(maxX, box.getPosition().getX() + box.getDimensions().getWidth());
+            maxY = Math.max(maxY, box.getPosition().getY() + box.getDimensions().getHeight());
+        }
+        double x = minX > maxX ? 0.0d : (minX + maxX) / 2.0d;
+        // Hidden compartments copied from the source use the lower numbers
+        int count = copy.getListOfCompartmentGlyphs().size();
+        for (Compartment compartment : missing) {
+            CompartmentGlyph glyph = copy.createCompartmentGlyph(LayoutConverter.LAYOUT_ID_PREFIX + "hidden_compartment_" + count++);
+            glyph.setCompartment(compartment);
+            BoundingBox box = glyph.createBoundingBox();
+            Point point = new Point();
+            point.setX(x);
+            point.setY(maxY);
+            box.setPosition(point);
+            Dimensions dimensions = new Dimensions();
+            dimensions.setWidth(1);
+            dimensions.setHeight(1);
+            box.setDimensions(dimensions);
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import org.gk.schema.InvalidAttributeException;
 import org.reactome.server.graph.domain.model.PhysicalEntity;
 import org.reactome.server.tools.sbml.data.model.Participant;
 import org.reactome.server.tools.sbml.data.model.ReactionBase;
+import org.reactome.server.tools.sbml.util.FlightRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +53,7 @@ public class ReactionHandler {
         Collection<GKInstance> goTerms = new HashSet<>();
         List<GKInstance> cas = rle.getAttributeValuesList(ReactomeJavaConstants.catalystActivity);
         for (GKInstance ca : cas) {
+            converter.touch(ca);
             List<GKInstance> activity = ca.getAttributeValuesList(ReactomeJavaConstants.activity);
             goTerms.addAll(activity);
         }
@@ -92,6 +94,8 @@ public class ReactionHandler {
     }
     
     void handleReactionParticipants(GKInstance rle, ReactionBase reactionBase) throws InvalidAttributeException, Exception {
+        FlightRecorder.ReactionParticipants event = new FlightRecorder.ReactionParticipants();
+        event.begin();
         // Copy reaction participants now
         List<GKInstance> inputs = rle.getAttributeValuesList(input);
         List<Participant> inputParts = convertToParticipants(inputs);
@@ -104,6 +108,7 @@ public class ReactionHandler {
         List<Participant> posRegParts = new ArrayList<>();
         List<Participant> negRegParts = new ArrayList<>();
         for (GKInstance regulation : regulations) {
+            converter.touch(regulation);
             GKInstance regulator = (GKInstance) regulation.getAttributeValue(ReactomeJavaConstants.regulator);
             if (regulator == null)
                 continue;
@@ -128,6 +133,7 @@ public class ReactionHandler {
             casParts.add(part);
         }
         reactionBase.setCatalysts(casParts);
+        event.commit(reactionBase.getReactionLikeEvent().getStId(), rle.getDBID());
     }
 
     /**
@@ -143,12 +149,14 @@ public class ReactionHandler {
         Set<GKInstance> refs = new HashSet<>();
         List<GKInstance> list = inst.getAttributeValuesList(ReactomeJavaConstants.summation);
         for (GKInstance sum : list) {
+            converter.touch(sum);
             refs.addAll(sum.getAttributeValuesList(literatureReference));
         }
         list = inst.getAttributeValuesList(ReactomeJavaConstants.literatureReference);
         refs.removeAll(list);
         List<String> urls = new ArrayList<>();
         for (GKInstance ref : refs) {
+            converter.touch(ref);
             if (ref.getSchemClass().isValidAttribute(ReactomeJavaConstants.pubMedIdentifier)) {
                 Integer id = (Integer) ref.getAttributeValue(ReactomeJavaConstants.pubMedIdentifier);
                 if (id != null)
@@ -1,10 +1,14 @@
 package org.reactome.sbml.rel;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -20,10 +24,12 @@ import org.reactome.server.graph.domain.model.Pathway;
 import org.reactome.server.graph.domain.model.PhysicalEntity;
 import org.reactome.server.graph.domain.model.ReactionLikeEvent;
 import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
-import org.reactome.server.tools.sbml.converter.Helper;
+import org.reactome.server.tools.sbml.converter.ExportOptions;
 import org.reactome.server.tools.sbml.converter.SbmlConverter;
 import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
 import org.reactome.server.tools.sbml.data.model.ReactionBase;
+import org.reactome.server.tools.sbml.util.Metrics;
+import org.sbml.jsbml.Model;
 import org.sbml.jsbml.SBMLDocument;
 import org.sbml.jsbml.SBMLReader;
 import org.sbml.jsbml.SBMLWriter;
@@ -39,12 +45,28 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("unchecked")
 public class SbmlConverterForRel extends SbmlConverter {
     private static final Logger logger = LoggerFactory.getLogger(SbmlConverterForRel.class);
-    private MySQLAdaptor dba;
+    private InstanceSource source;
     private InstanceToModelConverter instanceConverter;
     private LayoutConverter layoutConverter;
+    private CompConverter compConverter;
+    // Only direct reactions are converted and sub-pathways are referenced as comp submodels
+    private boolean isHierarchical;
+    // Lay out inferred pathways by the layouts of their source pathways
+    private boolean useOrthologyTemplate;
+    private ConverterCache converterCache;
+    // The template for the top event if it is inferred from a converted pathway
+    private OrthologyTemplate template;
     private GKInstance topEvent;
     // Cache the diagram is useDiagram is true and the diagram is in the database for repearting query
     private RenderablePathway pathwayDiagram;
+    // The layout converter changes the diagram. Another variant needs a fresh one.
+    private boolean isDiagramUsed;
+    // Optional index shared in a run to find contained reactions
+    private EventHierarchyIndex eventIndex;
+    // Reactions to be converted. Cached for a conversion.
+    private Set<GKInstance> reactions;
+    // Instances used for the top event before the conversion starts
+    private Set<Long> topEventIds;
 
     public SbmlConverterForRel(String targetId) {
         this(targetId, 0); // Default version is 0, meaning it is not defined.
@@ -60,14 +82,16 @@ public class SbmlConverterForRel extends SbmlConverter {
         setUpSpring();
         instanceConverter = new InstanceToModelConverter();
         layoutConverter = new LayoutConverter();
-        Helper.setUseIdentifierURL(true);
+        compConverter = new CompConverter();
+        setOptions(getOptions().withUseIdentifierURL(true));
     }
     
     public SbmlConverterForRel(String targetId, Integer version, AdvancedDatabaseObjectService ads) {
         super(targetId, version);
         instanceConverter = new InstanceToModelConverter();
         layoutConverter = new LayoutConverter();
-        Helper.setUseIdentifierURL(true);
+        compConverter = new CompConverter();
+        setOptions(getOptions().withUseIdentifierURL(true));
     }
     
     /**
@@ -79,9 +103,102 @@ public class SbmlConverterForRel extends SbmlConverter {
 //        context.getBean(LazyFetchAspect.class).setEnableAOP(false);
     }
 
+    /**
+     * Share the cache among converters in a run so that results are reused across pathways.
+     * @param cache
+     */
+    public void setConverterCache(ConverterCache cache) {
+        this.converterCache = cache;
+        instanceConverter.setCache(cache);
+    }
+
+    /**
+     * Keep the layouts of converted pathways in the {@link ConverterCache} and reuse them for the pathways inferred
+     * from them instead of opening the same diagram again. Pathways whose reactions do not map one to one onto
+     * the source pathway are laid out from their own diagrams. Source pathways have to be converted first.
+     * @param useOrthologyTemplate
+     */
+    public void setUseOrthologyTemplate(boolean useOrthologyTemplate) {
+        this.useOrthologyTemplate = useOrthologyTemplate;
+    }
+
+    /**
+     * Convert only the reactions directly contained by the pathway and reference the models of its sub-pathways
+     * via the SBML comp package instead of inlining their reactions. The sub-pathways have to be exported into
+     * the same directory.
+     * @param isHierarchical
+     */
+    public void setHierarchical(boolean isHierarchical) {
+        this.isHierarchical = isHierarchical;
+    }
+
+    public void setEventHierarchyIndex(EventHierarchyIndex eventIndex) {
+        this.eventIndex = eventIndex;
+    }
+
+    /**
+     * @return DB_IDs of all instances used by the last conversion, including the reactions, participants,
+     * their ReferenceEntities and subunits, and InstanceEdits
+     */
+    @Override
+    public Set<Long> getTouchedIds() {
+        Set<Long> rtn = new HashSet<>(instanceConverter.getTouchedIds());
+        if (topEventIds != null)
+            rtn.addAll(topEventIds);
+        return rtn;
+    }
+
+    /**
+     * Converts the events one at a time and writes each document to the stream opened for it by the provider,
+     * which is closed afterwards. Only one document is kept in memory at any time.
+     *
+     * @param eventIds stable ids or DB_IDs of the events. Events not in the source are skipped.
+     * @param converterCache shared by the conversions. Null for none.
+     * @param eventIndex null to walk the hasEvent hierarchy of each event
+     * @param provider returns the stream for an event id or null to skip the event, which is then not converted.
+     * @return the number of written documents
+     */
+    public static int write(Collection<String> eventIds,
+                            Integer version,
+                            InstanceSource source,
+                            ConverterCache converterCache,
+                            EventHierarchyIndex eventIndex,
+                            OutputProvider provider,
+                            int bufferSize) throws Exception {
+        int rtn = 0;
+        for (String eventId : eventIds) {
+            if (source.fetchEvent(eventId) == null)
+                continue;
+            try (OutputStream os = provider.open(eventId)) {
+                if (os == null)
+                    continue;
+                try (SbmlConverterForRel converter = new SbmlConverterForRel(eventId, version)) {
+                    if (converterCache != null)
+                        converter.setConverterCache(converterCache);
+                    converter.setEventHierarchyIndex(eventIndex);
+                    converter.setInstanceSource(source);
+                    converter.convert();
+                    converter.write(os, bufferSize);
+                }
+                rtn++;
+            }
+        }
+        return rtn;
+    }
+
     public void setDBA(MySQLAdaptor dba) {
-        this.dba = dba;
-        layoutConverter.setDBA(this.dba);
+        setInstanceSource(new MySQLInstanceSource(dba));
+    }
+    
+    /**
+     * Set the source of the instances to be converted. Use a {@link SnapshotInstanceSource} to
+     * convert without a live database.
+     * @param source
+     */
+    public void setInstanceSource(InstanceSource source) {
+        this.source = source;
+        layoutConverter.setInstanceSource(this.source);
+        long start = System.nanoTime();
         // Need to have a fake pathway for the superclass
         try {
             GKInstance instance = fetchEvent(targetStId);
@@ -92,59 +209,154 @@ public class SbmlConverterForRel extends SbmlConverter {
                 instanceConverter.fillInPathwayDetails(instance, pathway);
             }
             topEvent = instance;
+            topEventIds = new HashSet<>(instanceConverter.getTouchedIds());
+            topEventIds.add(instance.getDBID());
             pathwayDiagram = null; // Just in case
+            isDiagramUsed = false;
+            template = null;
         }
         catch(Exception e) {
             logger.error(e.getMessage(), e);
         }
+        Metrics.time(Metrics.EVENT_LOOKUP, start);
     }
 
     private GKInstance fetchEvent(String eventId) throws Exception {
-        GKInstance instance = null;
-        if (targetStId.startsWith("R-")) // This is a stable id
-            instance = fetchEventForStableId(dba, targetStId);
-        else
-            instance = dba.fetchInstance(Long.valueOf(targetStId));
+        GKInstance instance = source.fetchEvent(eventId);
         if (instance == null)
-            throw new IllegalArgumentException("Cannot find an Event with id " + targetStId + " in the provided database.");
+            throw new IllegalArgumentException("Cannot find an Event with id " + eventId + " in the provided source.");
         return instance;
     }
 
-    private GKInstance fetchEventForStableId(MySQLAdaptor dba, String stableId) throws Exception {
-        Collection<GKInstance> stableIdInst = dba.fetchInstanceByAttribute(ReactomeJavaConstants.StableIdentifier,
-                                                                           ReactomeJavaConstants.identifier,
-                                                                           "=",
-                                                                           stableId);
-        if (stableIdInst == null || stableIdInst.size() == 0)
-            return null;
-        Collection<GKInstance> events = dba.fetchInstanceByAttribute(ReactomeJavaConstants.Event,
-                                                                     ReactomeJavaConstants.stableIdentifier,
-                                                                     "=",
-                                                                     stableIdInst.iterator().next());
-        if (events == null || events.size() == 0)
-            return null;
-        return events.iterator().next();
-    }
-
     @Override
-    public SBMLDocument convert() {
-        // Have to make sure this is a dba available
-        if (dba == null)
-            throw new IllegalStateException("No MySQLAdaptor specified.");
+    public SBMLDocument convert(ExportOptions options) {
+        // Have to make sure this is a source available
+        if (source == null)
+            throw new IllegalStateException("No InstanceSource specified.");
         if (targetStId == null)
             throw new IllegalStateException("No target id specified.");
-        instanceConverter.reset();
         logger.info("Starting converting " + targetStId + "...");
-        SBMLDocument doc =  super.convert();
-        logger.info("Finished converting " + targetStId + ".");
-        if (pathwayDiagram != null) { // This should do for using pathway diagram only
-            layoutConverter.addLayout(doc.getModel(), 
-                                      topEvent,
-                                      pathwayDiagram);
+        SBMLDocument doc =  super.convert(options);
+        if (isHierarchical) {
+            try {
+                compConverter.addSubmodels(doc, getSubPathways(), options.getSuffix());
+            }
+            catch(Exception e) {
+                logger.error(e.getMessage(), e);
+            }
         }
+        logger.info("Finished converting " + targetStId + ".");
         return doc;
     }
 
+    /**
+     * Instances are fetched and converted once for all variants.
+     */
+    @Override
+    public void fetch() {
+        if (source == null)
+            throw new IllegalStateException("No InstanceSource specified.");
+        if (reactions == null)
+            instanceConverter.reset();
+        super.fetch();
+    }
+
+    @Override
+    protected void addLayout(Model model) {
+        if (template != null) {
+            Map<String, String> idMap = getOrthologyMap();
+            if (template.matches(model, idMap)) {
+                template.apply(model, idMap);
+                Metrics.count(Metrics.LAYOUTS);
+                return;
+            }
+            logger.info(targetStId + " does not match the template of its source pathway. Use its own diagram.");
+            template = null;
+            try {
+                RenderablePathway diagram = getDiagram();
+                if (diagram != null && layoutConverter.hasReactions(diagram))
+                    pathwayDiagram = diagram;
+            }
+            catch(Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        if (pathwayDiagram == null) // This should do for using pathway diagram only
+            return;
+        RenderablePathway diagram = pathwayDiagram;
+        if (isDiagramUsed) {
+            try {
+                diagram = getDiagram();
+            }
+            catch(Exception e) {
+                logger.error(e.getMessage(), e);
+                return;
+            }
+        }
+        isDiagramUsed = true;
+        layoutConverter.addLayout(model, 
+                                  topEvent,
+                                  diagram);
+        if (useOrthologyTemplate && converterCache != null && converterCache.getTemplate(topEvent.getDBID()) == null) {
+            try {
+                if (topEvent.getAttributeValue(ReactomeJavaConstants.inferredTo) != null) {
+                    OrthologyTemplate created = OrthologyTemplate.create(model);
+                    if (created != null)
+                        converterCache.putTemplate(topEvent.getDBID(), created);
+                }
+            }
+            catch(Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the template of the pathway the top event is inferred from if it has been converted
+     */
+    private OrthologyTemplate getTemplate() throws Exception {
+        if (!useOrthologyTemplate || converterCache == null || !topEvent.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+            return null;
+        GKInstance sourcePathway = (GKInstance) topEvent.getAttributeValue(ReactomeJavaConstants.inferredFrom);
+        if (sourcePathway == null)
+            return null;
+        OrthologyTemplate rtn = converterCache.getTemplate(sourcePathway.getDBID());
+        if (rtn != null)
+            instanceConverter.touch(sourcePathway); // Its layout is used
+        return rtn;
+    }
+
+    /**
+     * @return the SBML ids of converted reactions and participants to the ids of the instances they are inferred from
+     */
+    private Map<String, String> getOrthologyMap() {
+        Map<String, String> rtn = new HashMap<>();
+        try {
+            for (GKInstance reaction : getReactions()) {
+                GKInstance source = getInferredFrom(reaction, ReactomeJavaConstants.ReactionlikeEvent);
+                if (source != null)
+                    rtn.put(REACTION_PREFIX + reaction.getDBID(), REACTION_PREFIX + source.getDBID());
+                for (GKInstance pe : (Set<GKInstance>) InstanceUtilities.getReactionParticipants(reaction)) {
+                    source = getInferredFrom(pe, ReactomeJavaConstants.PhysicalEntity);
+                    if (source != null)
+                        rtn.put(SPECIES_PREFIX + pe.getDBID(), SPECIES_PREFIX + source.getDBID());
+                }
+            }
+        }
+        catch(Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        return rtn;
+    }
+
+    private GKInstance getInferredFrom(GKInstance instance, String cls) throws Exception {
+        for (GKInstance source : (List<GKInstance>) instance.getAttributeValuesList(ReactomeJavaConstants.inferredFrom)) {
+            if (source.getSchemClass().isa(cls))
+                return source;
+        }
+        return null;
+    }
+
     @Override
     protected Collection<ParticipantDetails> getParticipantDetails() {
         List<ParticipantDetails> rtn = new ArrayList<>();
@@ -173,19 +385,85 @@ public class SbmlConverterForRel extends SbmlConverter {
     }
     
     private Set<GKInstance> getReactions() throws Exception {
-        RenderablePathway diagram = layoutConverter.getDiagram(topEvent);
+        // This method is called for both participants and reactions
+        if (reactions != null)
+            return reactions;
+        long start = System.nanoTime();
+        reactions = fetchReactions();
+        Metrics.time(Metrics.REACTION_FETCH, start);
+        return reactions;
+    }
+
+    private Set<GKInstance> fetchReactions() throws Exception {
+        template = getTemplate();
+        // The layout comes from the template. No need to open the diagram.
+        RenderablePathway diagram = template == null ? getDiagram() : null;
         if (diagram != null && layoutConverter.hasReactions(diagram)) {
             this.pathwayDiagram = diagram;
             // We will convert all contained reactions regardless if they are laid out in the diagram.
 //            return getReactionsInDiagram(diagram);
         }
+        if (isHierarchical) {
+            Set<GKInstance> rtn = new LinkedHashSet<>();
+            if (topEvent.getSchemClass().isa(ReactomeJavaConstants.ReactionlikeEvent))
+                rtn.add(topEvent);
+            else {
+                for (GKInstance event : (List<GKInstance>) topEvent.getAttributeValuesList(ReactomeJavaConstants.hasEvent)) {
+                    if (event.getSchemClass().isa(ReactomeJavaConstants.ReactionlikeEvent))
+                        rtn.add(event);
+                }
+            }
+            return rtn;
+        }
+        if (eventIndex != null && eventIndex.isIndexed(topEvent.getDBID())) {
+            // Reactions are reached via these pathways
+            for (long dbId : eventIndex.getSubPathways(topEvent.getDBID()))
+                instanceConverter.touch(dbId);
+            Set<GKInstance> rtn = new LinkedHashSet<>();
+            for (long dbId : eventIndex.getReactions(topEvent.getDBID())) {
+                GKInstance rxt = source.fetchInstance(dbId);
+                if (rxt != null)
+                    rtn.add(rxt);
+            }
+            return rtn;
+        }
         Set<GKInstance> contained = InstanceUtilities.getContainedEvents(topEvent);
         contained.add(topEvent); // In case event itself is a RLE
+        contained.stream()
+                 .filter(e -> e.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+                 .forEach(instanceConverter::touch);
         return contained.stream()
                 .filter(e -> e.getSchemClass().isa(ReactomeJavaConstants.ReactionlikeEvent))
                 .collect(Collectors.toSet());
     }
     
+    /**
+     * Open the diagram of the top event and record its instance as used.
+     */
+    private RenderablePathway getDiagram() throws Exception {
+        RenderablePathway rtn = layoutConverter.getDiagram(topEvent);
+        if (rtn != null)
+            instanceConverter.touch(source.getDiagramId(topEvent));
+        return rtn;
+    }
+    
+    /**
+     * @return pathways directly contained by the top event
+     */
+    private List<GKInstance> getSubPathways() throws Exception {
+        List<GKInstance> rtn = new ArrayList<>();
+        if (!topEvent.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+            return rtn;
+        for (GKInstance event : (List<GKInstance>) topEvent.getAttributeValuesList(ReactomeJavaConstants.hasEvent)) {
+            if (event.getSchemClass().isa(ReactomeJavaConstants.Pathway)) {
+                // The file names of sub-pathways are used
+                instanceConverter.touch(event);
+                rtn.add(event);
+            }
+        }
+        return rtn;
+    }
+    
     private Set<GKInstance> getReactionsInDiagram(RenderablePathway pathwayDiagram) throws Exception {
         List<Renderable> comps = pathwayDiagram.getComponents();
         Set<GKInstance> rtn = new HashSet<>();
@@ -195,7 +473,7 @@ public class SbmlConverterForRel extends SbmlConverter {
                 // For test
 //                if (!testIds.contains(comp.getReactomeId()))
 //                    continue;
-                GKInstance rxt = dba.fetchInstance(comp.getReactomeId());
+                GKInstance rxt = source.fetchInstance(comp.getReactomeId());
                 if (rxt == null) {
                     logger.error("Reaction drawn with DB_ID = " + comp.getReactomeId() + " is not in the database.");
                     continue;
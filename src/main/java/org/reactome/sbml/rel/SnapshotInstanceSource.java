@@ -0,0 +1,490 @@
+package org.reactome.sbml.rel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.DiagramGKBReader;
+import org.gk.render.RenderablePathway;
+import org.gk.schema.Schema;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+
+/**
+ * An InstanceSource reading from a release snapshot written by {@link SnapshotWriter}. The file is memory-mapped
+ * and instances are decoded when they are fetched, so that no database is needed for the conversion.
+ * <p>
+ * Fetched instances are flyweights: they keep their position in the index only and decode an attribute from the
+ * mapped record every time it is read, so attribute values are never held on the heap. Instance values are resolved
+ * to the flyweights of their positions, which are kept so that an instance is always represented by the same object,
+ * and strings are shared via the pool. Call {@link #clearCache()} or {@link #evict(Collection)} to release them,
+ * e.g. when the heap is under pressure.
+ * <p>
+ * File layout (big-endian, offsets are from the start of the file):
+ * <pre>
+ * header:  long magic, int format version, int release number,
+ *          int schema offset, int schema length, int strings offset, int string count,
+ *          int index offset, int instance count, int events offset, int event count
+ * records: per instance: int class name, int display name, short attribute count, then per attribute:
+ *          int attribute name, byte value type, int value count, values (strings as pool indices,
+ *          instances as DB_IDs)
+ * events:  per extracted event: long DB_ID, int stable id, int species name, byte is pathway, long diagram DB_ID
+ * index:   per instance sorted by DB_ID: long DB_ID, int record offset
+ * strings: per string: int byte length, UTF-8 bytes
+ * schema:  the serialized schema
+ * </pre>
+ * @author wug
+ *
+ */
+public class SnapshotInstanceSource implements InstanceSource {
+    static final long MAGIC = 0x5253424D4C534E50L; // RSBMLSNP
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 48;
+    static final int INDEX_ENTRY_SIZE = 12;
+    static final int EVENT_ENTRY_SIZE = 25;
+    // Value types
+    static final byte TYPE_INSTANCE = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INTEGER = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte TYPE_FLOAT = 5;
+    static final byte TYPE_DOUBLE = 6;
+    // Attributes read by the relational conversion. These are extracted if they are valid for an instance.
+    static final String[] ATTRIBUTES = {
+            ReactomeJavaConstants.stableIdentifier,
+            ReactomeJavaConstants.identifier,
+            ReactomeJavaConstants.species,
+            ReactomeJavaConstants.compartment,
+            ReactomeJavaConstants.summation,
+            ReactomeJavaConstants.text,
+            ReactomeJavaConstants.literatureReference,
+            ReactomeJavaConstants.pubMedIdentifier,
+            ReactomeJavaConstants.uniformResourceLocator,
+            ReactomeJavaConstants.goBiologicalProcess,
+            ReactomeJavaConstants.inferredTo,
+            ReactomeJavaConstants.inferredFrom,
+            ReactomeJavaConstants.created,
+            ReactomeJavaConstants.modified,
+            ReactomeJavaConstants.revised,
+            ReactomeJavaConstants.authored,
+            ReactomeJavaConstants.author,
+            ReactomeJavaConstants.dateTime,
+            ReactomeJavaConstants.firstname,
+            ReactomeJavaConstants.surname,
+            ReactomeJavaConstants.affiliation,
+            ReactomeJavaConstants.name,
+            ReactomeJavaConstants.hasEvent,
+            ReactomeJavaConstants.input,
+            ReactomeJavaConstants.output,
+            ReactomeJavaConstants.catalystActivity,
+            ReactomeJavaConstants.physicalEntity,
+            ReactomeJavaConstants.activity,
+            ReactomeJavaConstants.ecNumber,
+            ReactomeJavaConstants.regulatedBy,
+            ReactomeJavaConstants.regulator,
+            ReactomeJavaConstants.disease,
+            ReactomeJavaConstants.crossReference,
+            ReactomeJavaConstants.accession,
+            ReactomeJavaConstants.referenceDatabase,
+            ReactomeJavaConstants.accessUrl,
+            ReactomeJavaConstants.referenceEntity,
+            ReactomeJavaConstants.hasComponent,
+            ReactomeJavaConstants.hasMember,
+            ReactomeJavaConstants.hasCandidate,
+            ReactomeJavaConstants.repeatedUnit,
+            ReactomeJavaConstants.hasModifiedResidue,
+            ReactomeJavaConstants.psiMod,
+            ReactomeJavaConstants.representedPathway,
+            ReactomeJavaConstants.storedATXML
+    };
+    // Only the stable ids of values in these attributes are used
+    static final Set<String> SHALLOW_ATTRIBUTES = new HashSet<>(Arrays.asList(ReactomeJavaConstants.inferredTo,
+                                                                              ReactomeJavaConstants.inferredFrom,
+                                                                              ReactomeJavaConstants.species,
+                                                                              ReactomeJavaConstants.representedPathway));
+    // Attributes extracted for instances referred via SHALLOW_ATTRIBUTES
+    static final String[] SHALLOW_INSTANCE_ATTRIBUTES = {ReactomeJavaConstants.stableIdentifier};
+
+    private MappedByteBuffer buffer;
+    private Schema schema;
+    private int releaseNumber;
+    private int indexOffset;
+    private int instanceCount;
+    private int[] stringOffsets;
+    private String[] strings;
+    // Events extracted with their attributes, sorted by DB_IDs
+    private long[] eventIds;
+    private int[] eventSpecies;
+    private boolean[] eventIsPathway;
+    private long[] eventDiagrams;
+    private Map<String, Integer> stIdToEvent;
+    // Flyweights indexed by their positions in the index
+    private GKInstance[] decoded;
+
+    public SnapshotInstanceSource(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be a snapshot.");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getLong(0) != MAGIC)
+            throw new IOException(file + " is not a snapshot file.");
+        if (buffer.getInt(8) != FORMAT_VERSION)
+            throw new IOException(file + " has an unsupported snapshot format version: " + buffer.getInt(8));
+        releaseNumber = buffer.getInt(12);
+        indexOffset = buffer.getInt(32);
+        instanceCount = buffer.getInt(36);
+        loadStrings(buffer.getInt(24), buffer.getInt(28));
+        loadEvents(buffer.getInt(40), buffer.getInt(44));
+        loadSchema(buffer.getInt(16), buffer.getInt(20));
+        decoded = new GKInstance[instanceCount];
+    }
+
+    private void loadStrings(int offset, int count) {
+        stringOffsets = new int[count];
+        strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            stringOffsets[i] = offset;
+            offset += 4 + buffer.getInt(offset);
+        }
+    }
+
+    private void loadEvents(int offset, int count) {
+        eventIds = new long[count];
+        eventSpecies = new int[count];
+        eventIsPathway = new boolean[count];
+        eventDiagrams = new long[count];
+        stIdToEvent = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int entry = offset + i * EVENT_ENTRY_SIZE;
+            eventIds[i] = buffer.getLong(entry);
+            stIdToEvent.put(getString(buffer.getInt(entry + 8)), i);
+            eventSpecies[i] = buffer.getInt(entry + 12);
+            eventIsPathway[i] = buffer.get(entry + 16) != 0;
+            eventDiagrams[i] = buffer.getLong(entry + 17);
+        }
+    }
+
+    private void loadSchema(int offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.get(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            schema = (Schema) ois.readObject();
+        }
+        catch(ClassNotFoundException e) {
+            throw new IOException("Cannot load the schema: " + e.getMessage(), e);
+        }
+    }
+
+    private String getString(int index) {
+        if (index < 0)
+            return null;
+        String rtn = strings[index];
+        if (rtn == null) {
+            int offset = stringOffsets[index];
+            byte[] bytes = new byte[buffer.getInt(offset)];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset + 4);
+            slice.get(bytes);
+            rtn = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = rtn;
+        }
+        return rtn;
+    }
+
+    /**
+     * Binary search in the index.
+     * @return the position in the index or -1 if the instance is not in the snapshot.
+     */
+    private int getPosition(long dbId) {
+        int low = 0;
+        int high = instanceCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = buffer.getLong(indexOffset + mid * INDEX_ENTRY_SIZE);
+            if (midId < dbId)
+                low = mid + 1;
+            else if (midId > dbId)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int getRecordOffset(int position) {
+        return buffer.getInt(indexOffset + position * INDEX_ENTRY_SIZE + 8);
+    }
+
+    @Override
+    public GKInstance fetchInstance(Long dbId) throws Exception {
+        if (dbId == null)
+            return null;
+        return getInstance(dbId);
+    }
+
+    private synchronized GKInstance getInstance(long dbId) {
+        int position = getPosition(dbId);
+        if (position < 0)
+            return null;
+        GKInstance inst = decoded[position];
+        if (inst == null) {
+            int offset = getRecordOffset(position);
+            SchemaClass cls = schema.getClassByName(getString(buffer.getInt(offset)));
+            inst = new SnapshotInstance(cls, position);
+            inst.setDBID(dbId);
+            inst.setDisplayName(getString(buffer.getInt(offset + 4)));
+            // Don't try to load attributes from a database
+            inst.setIsInflated(true);
+            decoded[position] = inst;
+        }
+        return inst;
+    }
+
+    /**
+     * Decodes the values of an attribute from a record.
+     * @return null if the attribute is not in the record
+     */
+    private List<Object> getAttributeValues(int position, String attName) {
+        int offset = getRecordOffset(position) + 8;
+        int attCount = buffer.getShort(offset);
+        offset += 2;
+        for (int i = 0; i < attCount; i++) {
+            String att = getString(buffer.getInt(offset));
+            byte type = buffer.get(offset + 4);
+            int count = buffer.getInt(offset + 5);
+            offset += 9;
+            if (!att.equals(attName)) {
+                offset += count * getValueSize(type);
+                continue;
+            }
+            List<Object> values = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                Object value = readValue(type, offset);
+                if (value != null)
+                    values.add(value);
+                offset += getValueSize(type);
+            }
+            return values;
+        }
+        return null;
+    }
+
+    static int getValueSize(byte type) {
+        switch (type) {
+            case TYPE_INSTANCE:
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+                return 8;
+            case TYPE_BOOLEAN:
+                return 1;
+            default:
+                return 4;
+        }
+    }
+
+    private Object readValue(byte type, int offset) {
+        switch (type) {
+            case TYPE_INSTANCE:
+                return getInstance(buffer.getLong(offset));
+            case TYPE_STRING:
+                return getString(buffer.getInt(offset));
+            case TYPE_INTEGER:
+                return buffer.getInt(offset);
+            case TYPE_LONG:
+                return buffer.getLong(offset);
+            case TYPE_BOOLEAN:
+                return buffer.get(offset) != 0;
+            case TYPE_FLOAT:
+                return buffer.getFloat(offset);
+            case TYPE_DOUBLE:
+                return buffer.getDouble(offset);
+            default:
+                throw new IllegalStateException("Unknown value type in the snapshot: " + type);
+        }
+    }
+
+    @Override
+    public GKInstance fetchEvent(String eventId) throws Exception {
+        Integer index = stIdToEvent.get(eventId);
+        if (index != null)
+            return fetchInstance(eventIds[index]);
+        if (eventId.startsWith("R-"))
+            return null;
+        GKInstance inst = fetchInstance(InstanceSource.parseDbId(eventId));
+        if (inst == null || !inst.getSchemClass().isa(ReactomeJavaConstants.Event))
+            return null;
+        return inst;
+    }
+
+    @Override
+    public Collection<GKInstance> fetchPathways(String speciesName) throws Exception {
+        List<GKInstance> rtn = new ArrayList<>();
+        for (int i = 0; i < eventIds.length; i++) {
+            if (!eventIsPathway[i])
+                continue;
+            if (speciesName != null && !speciesName.equals(getString(eventSpecies[i])))
+                continue;
+            rtn.add(fetchInstance(eventIds[i]));
+        }
+        return rtn;
+    }
+
+    @Override
+    public RenderablePathway fetchDiagram(GKInstance pathway) throws Exception {
+        int index = Arrays.binarySearch(eventIds, pathway.getDBID());
+        if (index < 0 || eventDiagrams[index] < 0)
+            return null;
+        GKInstance diagram = fetchInstance(eventDiagrams[index]);
+        String xml = (String) diagram.getAttributeValue(ReactomeJavaConstants.storedATXML);
+        if (xml == null || xml.length() == 0)
+            return null;
+        // The instance is not attached to any PersistenceAdaptor. Use the stored XML directly.
+        return new DiagramGKBReader().openDiagram(xml);
+    }
+
+    @Override
+    public Long getDiagramId(GKInstance pathway) {
+        int index = Arrays.binarySearch(eventIds, pathway.getDBID());
+        if (index < 0 || eventDiagrams[index] < 0)
+            return null;
+        return eventDiagrams[index];
+    }
+
+    /**
+     * The index is built from the records directly without decoding any instance.
+     */
+    @Override
+    public synchronized EventHierarchyIndex buildEventHierarchyIndex() {
+        EventHierarchyIndex index = new EventHierarchyIndex();
+        for (int i = 0; i < eventIds.length; i++) {
+            if (!eventIsPathway[i])
+                continue;
+            long[] events = getInstanceValues(getPosition(eventIds[i]), ReactomeJavaConstants.hasEvent);
+            long[] pathways = Arrays.stream(events).filter(e -> isa(e, ReactomeJavaConstants.Pathway)).toArray();
+            long[] reactions = Arrays.stream(events).filter(e -> isa(e, ReactomeJavaConstants.ReactionlikeEvent)).toArray();
+            index.addPathway(eventIds[i], pathways, reactions);
+        }
+        return index;
+    }
+
+    private boolean isa(long dbId, String clsName) {
+        int position = getPosition(dbId);
+        if (position < 0)
+            return false;
+        String instClsName = getString(buffer.getInt(getRecordOffset(position)));
+        return schema.getClassByName(instClsName).isa(clsName);
+    }
+
+    /**
+     * Read the DB_IDs in an instance-valued attribute without decoding the instance.
+     */
+    private long[] getInstanceValues(int position, String attName) {
+        int offset = getRecordOffset(position) + 8;
+        int attCount = buffer.getShort(offset);
+        offset += 2;
+        for (int i = 0; i < attCount; i++) {
+            String att = getString(buffer.getInt(offset));
+            byte type = buffer.get(offset + 4);
+            int count = buffer.getInt(offset + 5);
+            offset += 9;
+            if (!att.equals(attName) || type != TYPE_INSTANCE) {
+                offset += count * getValueSize(type);
+                continue;
+            }
+            long[] rtn = new long[count];
+            for (int j = 0; j < count; j++)
+                rtn[j] = buffer.getLong(offset + j * 8);
+            return rtn;
+        }
+        return new long[0];
+    }
+
+    @Override
+    public Integer getReleaseNumber() {
+        return releaseNumber;
+    }
+
+    /**
+     * Release all flyweights. Instances fetched before can still be read, but they are not identical to the
+     * instances fetched afterwards.
+     */
+    @Override
+    public synchronized void clearCache() {
+        Arrays.fill(decoded, null);
+        Arrays.fill(strings, null);
+    }
+
+    /**
+     * Release the flyweights of the passed instances. Strings stay in the pool.
+     */
+    @Override
+    public synchronized int evict(Collection<Long> dbIds) {
+        int rtn = 0;
+        for (Long dbId : dbIds) {
+            int position = getPosition(dbId);
+            if (position < 0 || decoded[position] == null)
+                continue;
+            decoded[position] = null;
+            rtn++;
+        }
+        return rtn;
+    }
+
+    /**
+     * A view of a record in the snapshot. Attributes not extracted into the snapshot are handled by GKInstance,
+     * which has no values for them.
+     */
+    private class SnapshotInstance extends GKInstance {
+        private final int position;
+
+        SnapshotInstance(SchemaClass cls, int position) {
+            super(cls);
+            this.position = position;
+        }
+
+        @Override
+        public List getAttributeValuesList(String attName) throws Exception {
+            List<Object> values = getAttributeValues(position, attName);
+            return values == null ? super.getAttributeValuesList(attName) : values;
+        }
+
+        @Override
+        public List getAttributeValuesList(SchemaAttribute att) throws Exception {
+            return getAttributeValuesList(att.getName());
+        }
+
+        @Override
+        public Object getAttributeValue(String attName) throws Exception {
+            List<Object> values = getAttributeValues(position, attName);
+            if (values == null)
+                return super.getAttributeValue(attName);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public Object getAttributeValue(SchemaAttribute att) throws Exception {
+            return getAttributeValue(att.getName());
+        }
+    }
+
+}
@@ -0,0 +1,360 @@
+package org.reactome.sbml.rel;
+
+import static org.reactome.sbml.rel.SnapshotInstanceSource.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.DiagramGKBReader;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.render.Renderable;
+import org.gk.render.RenderablePathway;
+import org.gk.schema.SchemaClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts everything the relational conversion reads for a set of events into a single snapshot file,
+ * which can then be used via {@link SnapshotInstanceSource} without any live database. Only the attributes
+ * listed in {@link SnapshotInstanceSource#ATTRIBUTES} are extracted. Instances referred via attributes in
+ * {@link SnapshotInstanceSource#SHALLOW_ATTRIBUTES} are extracted with their stable ids only.
+ * @author wug
+ *
+ */
+@SuppressWarnings("unchecked")
+public class SnapshotWriter {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotWriter.class);
+    private MySQLAdaptor dba;
+    // Extracted instances. The value is true if all attributes are needed
+    private Map<GKInstance, Boolean> instances;
+    // Map from represented pathways to their diagrams
+    private Map<Long, Long> pathwayToDiagram;
+    // String pool
+    private Map<String, Integer> strings;
+
+    public SnapshotWriter(MySQLAdaptor dba) {
+        this.dba = dba;
+    }
+
+    /**
+     * Extract the passed events together with everything reachable from them and write into the file.
+     * @param events
+     * @param file
+     * @throws Exception
+     */
+    public void write(Collection<GKInstance> events, File file) throws Exception {
+        instances = new LinkedHashMap<>();
+        pathwayToDiagram = new HashMap<>();
+        strings = new LinkedHashMap<>();
+        long time1 = System.currentTimeMillis();
+        collect(events);
+        long time2 = System.currentTimeMillis();
+        logger.info("Collected " + instances.size() + " instances for " + events.size() + " events: " + (time2 - time1) + " ms.");
+        writeFile(file);
+        logger.info("Wrote " + file.getName() + " (" + file.length() + " bytes): " + (System.currentTimeMillis() - time2) + " ms.");
+    }
+
+    /**
+     * Walk the references level by level so that attribute values can be loaded in batches.
+     */
+    private void collect(Collection<GKInstance> events) throws Exception {
+        List<GKInstance> current = new ArrayList<>();
+        for (GKInstance event : events)
+            enqueue(event, true, current);
+        // Diagrams are needed for the layout
+        MySQLInstanceSource source = new MySQLInstanceSource(dba);
+        for (GKInstance event : events) {
+            if (!event.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+                continue;
+            GKInstance diagram = source.fetchDiagramInstance(event);
+            if (diagram == null)
+                continue;
+            pathwayToDiagram.put(event.getDBID(), diagram.getDBID());
+            enqueue(diagram, true, current);
+        }
+        while (current.size() > 0) {
+            loadAttributes(current);
+            List<GKInstance> next = new ArrayList<>();
+            for (GKInstance inst : current) {
+                boolean isFull = instances.get(inst);
+                for (String att : getAttributes(inst, isFull)) {
+                    boolean isShallow = SHALLOW_ATTRIBUTES.contains(att);
+                    for (Object value : inst.getAttributeValuesList(att)) {
+                        if (value instanceof GKInstance)
+                            enqueue((GKInstance) value, !isShallow, next);
+                    }
+                }
+                if (isFull && inst.getSchemClass().isa(ReactomeJavaConstants.PathwayDiagram))
+                    collectDiagramObjects(inst, next);
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * Objects drawn in a diagram are queried during the layout conversion.
+     */
+    private void collectDiagramObjects(GKInstance diagramInst, List<GKInstance> next) throws Exception {
+        RenderablePathway diagram = new DiagramGKBReader().openDiagram(diagramInst);
+        if (diagram == null || diagram.getComponents() == null)
+            return;
+        for (Object obj : diagram.getComponents()) {
+            Renderable r = (Renderable) obj;
+            if (r.getReactomeId() == null)
+                continue;
+            GKInstance inst = dba.fetchInstance(r.getReactomeId());
+            if (inst != null)
+                enqueue(inst, true, next);
+        }
+    }
+
+    private void enqueue(GKInstance inst, boolean isFull, List<GKInstance> next) {
+        Boolean current = instances.get(inst);
+        if (current != null && (current || !isFull))
+            return; // Nothing new is needed
+        instances.put(inst, isFull);
+        next.add(inst);
+    }
+
+    private void loadAttributes(List<GKInstance> list) throws Exception {
+        Map<SchemaClass, List<GKInstance>> clsToInsts = list.stream()
+                .collect(Collectors.groupingBy(GKInstance::getSchemClass));
+        for (SchemaClass cls : clsToInsts.keySet()) {
+            List<GKInstance> clsInsts = clsToInsts.get(cls);
+            for (boolean isFull : new boolean[] {true, false}) {
+                List<GKInstance> modeInsts = clsInsts.stream()
+                        .filter(i -> instances.get(i) == isFull)
+                        .collect(Collectors.toList());
+                if (modeInsts.size() == 0)
+                    continue;
+                List<String> atts = getAttributes(modeInsts.get(0), isFull);
+                if (atts.size() > 0)
+                    dba.loadInstanceAttributeValues(modeInsts, atts.toArray(new String[0]));
+            }
+        }
+    }
+
+    private List<String> getAttributes(GKInstance inst, boolean isFull) {
+        String[] atts = isFull ? ATTRIBUTES : SHALLOW_INSTANCE_ATTRIBUTES;
+        return Arrays.stream(atts)
+                .filter(att -> inst.getSchemClass().isValidAttribute(att))
+                .collect(Collectors.toList());
+    }
+
+    private void writeFile(File file) throws Exception {
+        List<GKInstance> sorted = instances.keySet()
+                .stream()
+                .sorted((i1, i2) -> i1.getDBID().compareTo(i2.getDBID()))
+                .collect(Collectors.toList());
+        List<GKInstance> events = sorted.stream()
+                .filter(inst -> instances.get(inst) && inst.getSchemClass().isa(ReactomeJavaConstants.Event))
+                .collect(Collectors.toList());
+        ByteArrayOutputStream schema = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(schema)) {
+            oos.writeObject(dba.getSchema());
+        }
+        // Fail before anything is written rather than after up to 2 GB
+        long size = getSize(sorted, events, schema.size());
+        if (size > Integer.MAX_VALUE)
+            throw new IOException(String.format("The snapshot would take %d bytes but can take %d bytes at most. Extract fewer events into a file.",
+                                                size, Integer.MAX_VALUE));
+        long[] dbIds = new long[sorted.size()];
+        int[] recordOffsets = new int[sorted.size()];
+        int stringsOffset, indexOffset, eventsOffset, schemaOffset, schemaLength;
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            dos.write(new byte[HEADER_SIZE]); // Filled at the end
+            for (int i = 0; i < sorted.size(); i++) {
+                GKInstance inst = sorted.get(i);
+                dbIds[i] = inst.getDBID();
+                recordOffsets[i] = checkOffset(dos);
+                writeRecord(inst, dos);
+            }
+            // The String pool is complete after the last event entry
+            eventsOffset = checkOffset(dos);
+            for (GKInstance event : events) {
+                dos.writeLong(event.getDBID());
+                dos.writeInt(getStringIndex(getStableId(event)));
+                GKInstance species = (GKInstance) event.getAttributeValue(ReactomeJavaConstants.species);
+                dos.writeInt(species == null ? -1 : getStringIndex(species.getDisplayName()));
+                dos.writeBoolean(event.getSchemClass().isa(ReactomeJavaConstants.Pathway));
+                dos.writeLong(pathwayToDiagram.getOrDefault(event.getDBID(), -1L));
+            }
+            indexOffset = checkOffset(dos);
+            for (int i = 0; i < dbIds.length; i++) {
+                dos.writeLong(dbIds[i]);
+                dos.writeInt(recordOffsets[i]);
+            }
+            stringsOffset = checkOffset(dos);
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+            schemaOffset = checkOffset(dos);
+            schemaLength = schema.size();
+            schema.writeTo(dos);
+            checkOffset(dos);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(MAGIC);
+            raf.writeInt(FORMAT_VERSION);
+            Integer release = dba.getReleaseNumber();
+            raf.writeInt(release == null ? 0 : release);
+            raf.writeInt(schemaOffset);
+            raf.writeInt(schemaLength);
+            raf.writeInt(stringsOffset);
+            raf.writeInt(strings.size());
+            raf.writeInt(indexOffset);
+            raf.writeInt(dbIds.length);
+            raf.writeInt(eventsOffset);
+            raf.writeInt(events.size());
+        }
+    }
+
+    private String getStableId(GKInstance event) throws Exception {
+        GKInstance stableId = (GKInstance) event.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
+        if (stableId == null)
+            return event.getDBID().toString();
+        return (String) stableId.getAttributeValue(ReactomeJavaConstants.identifier);
+    }
+
+    /**
+     * Computes the size of the file without writing it. The strings are added to the pool in the same order as when
+     * the file is written.
+     * @return the size in bytes
+     */
+    private long getSize(List<GKInstance> sorted, List<GKInstance> events, int schemaLength) throws Exception {
+        long rtn = HEADER_SIZE;
+        for (GKInstance inst : sorted) {
+            getStringIndex(inst.getSchemClass().getName());
+            getStringIndex(inst.getDisplayName());
+            rtn += 10;
+            for (String att : getAttributes(inst, instances.get(inst))) {
+                List<Object> kept = getKeptValues(inst, att);
+                getStringIndex(att);
+                rtn += 9;
+                for (Object value : kept) {
+                    if (value instanceof String)
+                        getStringIndex((String) value);
+                    rtn += getValueSize(getType(value));
+                }
+            }
+        }
+        for (GKInstance event : events) {
+            getStringIndex(getStableId(event));
+            GKInstance species = (GKInstance) event.getAttributeValue(ReactomeJavaConstants.species);
+            if (species != null)
+                getStringIndex(species.getDisplayName());
+        }
+        rtn += (long) events.size() * EVENT_ENTRY_SIZE;
+        rtn += (long) sorted.size() * INDEX_ENTRY_SIZE;
+        for (String string : strings.keySet())
+            rtn += 4 + string.getBytes(StandardCharsets.UTF_8).length;
+        return rtn + schemaLength;
+    }
+
+    /**
+     * Offsets are stored as int since the file is mapped into a single buffer, so a snapshot has 2 GB at most.
+     */
+    private int checkOffset(DataOutputStream dos) throws IOException {
+        int size = dos.size();
+        if (size == Integer.MAX_VALUE) // size() stops counting at Integer.MAX_VALUE
+            throw new IOException("The snapshot is too large. Extract fewer events into a file.");
+        return size;
+    }
+
+    private void writeRecord(GKInstance inst, DataOutputStream dos) throws Exception {
+        dos.writeInt(getStringIndex(inst.getSchemClass().getName()));
+        dos.writeInt(getStringIndex(inst.getDisplayName()));
+        List<String> atts = getAttributes(inst, instances.get(inst));
+        dos.writeShort(atts.size());
+        for (String att : atts) {
+            List<Object> kept = getKeptValues(inst, att);
+            dos.writeInt(getStringIndex(att));
+            dos.writeByte(kept.size() == 0 ? TYPE_INSTANCE : getType(kept.get(0)));
+            dos.writeInt(kept.size());
+            for (Object value : kept)
+                writeValue(value, dos);
+        }
+    }
+
+    /**
+     * References to instances not extracted are dropped.
+     */
+    private List<Object> getKeptValues(GKInstance inst, String att) throws Exception {
+        List<Object> rtn = new ArrayList<>();
+        for (Object value : inst.getAttributeValuesList(att)) {
+            if (!(value instanceof GKInstance) || instances.containsKey(value))
+                rtn.add(value);
+        }
+        return rtn;
+    }
+
+    private byte getType(Object value) {
+        if (value instanceof GKInstance)
+            return TYPE_INSTANCE;
+        if (value instanceof String)
+            return TYPE_STRING;
+        if (value instanceof Integer)
+            return TYPE_INTEGER;
+        if (value instanceof Long)
+            return TYPE_LONG;
+        if (value instanceof Boolean)
+            return TYPE_BOOLEAN;
+        if (value instanceof Float)
+            return TYPE_FLOAT;
+        if (value instanceof Double)
+            return TYPE_DOUBLE;
+        throw new IllegalArgumentException("Type is not supported in a snapshot: " + value.getClass().getName());
+    }
+
+    private void writeValue(Object value, DataOutputStream dos) throws IOException {
+        switch (getType(value)) {
+            case TYPE_INSTANCE:
+                dos.writeLong(((GKInstance) value).getDBID());
+                break;
+            case TYPE_STRING:
+                dos.writeInt(getStringIndex((String) value));
+                break;
+            case TYPE_INTEGER:
+                dos.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                dos.writeLong((Long) value);
+                break;
+            case TYPE_BOOLEAN:
+                dos.writeBoolean((Boolean) value);
+                break;
+            case TYPE_FLOAT:
+                dos.writeFloat((Float) value);
+                break;
+            case TYPE_DOUBLE:
+                dos.writeDouble((Double) value);
+                break;
+        }
+    }
+
+    private int getStringIndex(String string) {
+        if (string == null)
+            return -1;
+        return strings.computeIfAbsent(string, s -> strings.size());
+    }
+
+}
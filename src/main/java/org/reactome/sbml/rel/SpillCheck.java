@@ -0,0 +1,149 @@
+package org.reactome.sbml.rel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.gk.model.GKInstance;
+
+/**
+ * Checks that spilling reactions does not change the written documents: each pathway is converted and written
+ * once with all its reactions on the heap and once with its reactions spilled in batches, and the two documents
+ * are compared as XML. Whitespace between elements and the places where namespaces are declared are ignored. The
+ * spilled document is written twice, which has to give the same bytes.
+ * <pre>
+ * java -cp sbml-exporter-exec.jar org.reactome.sbml.rel.SpillCheck release.snapshot [R-HSA-69620 ...]
+ * java -cp sbml-exporter-exec.jar org.reactome.sbml.rel.SpillCheck synthetic:pathways=4,reactions=250
+ * </pre>
+ * All pathways in the source are checked if no event is given. The exit code is the number of differing pathways.
+ * @author wug
+ *
+ */
+public class SpillCheck {
+    private static final String SYNTHETIC = "synthetic:";
+    // Spill the reactions of all pathways having more than one reaction
+    private static final int SPILL_THRESHOLD = 1;
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private InstanceSource source;
+    private Integer version;
+
+    public SpillCheck(InstanceSource source) throws Exception {
+        this.source = source;
+        this.version = source.getReleaseNumber();
+    }
+
+    /**
+     * @return null if the spilled document is the same as the one written from the heap, also when it is written a
+     * second time, otherwise the first difference
+     */
+    public String check(String eventId) throws Exception {
+        byte[] expected = write(eventId, 0, 1)[0];
+        byte[][] actual = write(eventId, SPILL_THRESHOLD, 2);
+        String rtn = compare(expected, actual[0]);
+        if (rtn == null && !Arrays.equals(actual[0], actual[1]))
+            rtn = "the second write of the spilled document differs from the first";
+        return rtn;
+    }
+
+    private byte[][] write(String eventId, int spillThreshold, int times) throws Exception {
+        try (SbmlConverterForRel converter = new SbmlConverterForRel(eventId, version)) {
+            converter.setSpillThreshold(spillThreshold);
+            converter.setInstanceSource(source);
+            converter.convert();
+            byte[][] rtn = new byte[times][];
+            for (int i = 0; i < times; i++) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                converter.write(os);
+                rtn[i] = os.toByteArray();
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * @return null if both documents have the same elements, attributes and text
+     */
+    static String compare(byte[] expected, byte[] actual) throws Exception {
+        List<String> expectedEvents = getEvents(expected);
+        List<String> actualEvents = getEvents(actual);
+        int size = Math.min(expectedEvents.size(), actualEvents.size());
+        for (int i = 0; i < size; i++) {
+            if (!expectedEvents.get(i).equals(actualEvents.get(i)))
+                return String.format("event %d: expected %s but was %s", i, expectedEvents.get(i), actualEvents.get(i));
+        }
+        if (expectedEvents.size() != actualEvents.size())
+            return String.format("expected %d events but was %d", expectedEvents.size(), actualEvents.size());
+        return null;
+    }
+
+    /**
+     * Elements with their attributes sorted by name, and text without whitespace between elements.
+     */
+    private static List<String> getEvents(byte[] document) throws Exception {
+        List<String> rtn = new ArrayList<>();
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(new ByteArrayInputStream(document));
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                StartElement element = event.asStartElement();
+                Map<String, String> attributes = new TreeMap<>();
+                element.getAttributes().forEachRemaining(att -> {
+                    Attribute attribute = (Attribute) att;
+                    attributes.put(attribute.getName().toString(), attribute.getValue());
+                });
+                rtn.add("<" + element.getName() + " " + attributes + ">");
+            }
+            else if (event.isEndElement())
+                rtn.add("</" + event.asEndElement().getName() + ">");
+            else if (event.isCharacters() && !event.asCharacters().isWhiteSpace())
+                rtn.add(event.asCharacters().getData());
+        }
+        reader.close();
+        return rtn;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SpillCheck snapshot|synthetic:spec [eventId ...]");
+            System.exit(1);
+        }
+        InstanceSource source;
+        if (args[0].startsWith(SYNTHETIC))
+            source = SyntheticReleaseGenerator.parse(args[0].substring(SYNTHETIC.length())).generate();
+        else
+            source = new SnapshotInstanceSource(new File(args[0]));
+        List<String> eventIds = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        if (eventIds.isEmpty()) {
+            for (GKInstance pathway : source.fetchPathways(null))
+                eventIds.add(pathway.getDBID().toString());
+        }
+        SpillCheck check = new SpillCheck(source);
+        int failed = 0;
+        for (String eventId : eventIds) {
+            String difference = check.check(eventId);
+            if (difference == null)
+                continue;
+            System.out.println(eventId + ": " + difference);
+            failed++;
+        }
+        System.out.println(String.format("%d of %d pathways differ.", failed, eventIds.size()));
+        System.exit(failed);
+    }
+
+}
@@ -0,0 +1,252 @@
+package org.reactome.sbml.rel;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.render.Node;
+import org.gk.render.RenderableChemical;
+import org.gk.render.RenderableCompartment;
+import org.gk.render.RenderableComplex;
+import org.gk.render.RenderablePathway;
+import org.gk.render.RenderableProtein;
+import org.gk.render.RenderableReaction;
+
+/**
+ * An InstanceSource keeping all instances of a release created by {@link SyntheticReleaseGenerator} in memory.
+ * Diagrams are not stored: a new RenderablePathway is laid out on a grid for every call of
+ * {@link #fetchDiagram(GKInstance)} since {@link LayoutConverter} changes the diagram it converts.
+ * @author wug
+ *
+ */
+@SuppressWarnings("unchecked")
+public class SyntheticInstanceSource implements InstanceSource {
+    // Grid used to lay out drawn reactions
+    private static final int COLUMNS = 8;
+    private static final int CELL_WIDTH = 640;
+    private static final int CELL_HEIGHT = 320;
+    private static final int NODE_WIDTH = 120;
+    private static final int NODE_HEIGHT = 40;
+    private static final int MARGIN = 40;
+
+    private final Map<Long, GKInstance> dbIdToInstance;
+    private final Map<String, GKInstance> stIdToEvent;
+    private final List<GKInstance> pathways;
+    // Pathway DB_ID -> reactions drawn in its diagram
+    private final Map<Long, List<GKInstance>> pathwayToDrawnReactions;
+    private final Integer releaseNumber;
+
+    SyntheticInstanceSource(Integer releaseNumber) {
+        this.releaseNumber = releaseNumber;
+        dbIdToInstance = new HashMap<>();
+        stIdToEvent = new HashMap<>();
+        pathways = new ArrayList<>();
+        pathwayToDrawnReactions = new HashMap<>();
+    }
+
+    void addInstance(GKInstance instance) {
+        dbIdToInstance.put(instance.getDBID(), instance);
+    }
+
+    void addEvent(String stId, GKInstance event) {
+        stIdToEvent.put(stId, event);
+        if (event.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+            pathways.add(event);
+    }
+
+    void addDiagram(GKInstance pathway, List<GKInstance> drawnReactions) {
+        pathwayToDrawnReactions.put(pathway.getDBID(), drawnReactions);
+    }
+
+    public int getInstanceCount() {
+        return dbIdToInstance.size();
+    }
+
+    @Override
+    public GKInstance fetchInstance(Long dbId) {
+        return dbIdToInstance.get(dbId);
+    }
+
+    @Override
+    public GKInstance fetchEvent(String eventId) {
+        if (eventId.startsWith("R-"))
+            return stIdToEvent.get(eventId);
+        Long dbId = InstanceSource.parseDbId(eventId);
+        if (dbId == null)
+            return null;
+        GKInstance inst = dbIdToInstance.get(dbId);
+        if (inst == null || !inst.getSchemClass().isa(ReactomeJavaConstants.Event))
+            return null;
+        return inst;
+    }
+
+    @Override
+    public Collection<GKInstance> fetchPathways(String speciesName) throws Exception {
+        List<GKInstance> rtn = new ArrayList<>();
+        for (GKInstance pathway : pathways) {
+            GKInstance species = (GKInstance) pathway.getAttributeValue(ReactomeJavaConstants.species);
+            if (speciesName == null || (species != null && speciesName.equals(species.getDisplayName())))
+                rtn.add(pathway);
+        }
+        return rtn;
+    }
+
+    @Override
+    public RenderablePathway fetchDiagram(GKInstance pathway) throws Exception {
+        List<GKInstance> reactions = pathwayToDrawnReactions.get(pathway.getDBID());
+        if (reactions == null)
+            return null;
+        RenderablePathway diagram = new RenderablePathway();
+        diagram.setReactomeId(pathway.getDBID());
+        diagram.setDisplayName(pathway.getDisplayName());
+        int[] id = {0};
+        GKInstance compartment = (GKInstance) pathway.getAttributeValue(ReactomeJavaConstants.compartment);
+        if (compartment != null) {
+            int rows = (reactions.size() + COLUMNS - 1) / COLUMNS;
+            RenderableCompartment compartmentNode = new RenderableCompartment();
+            compartmentNode.setReactomeId(compartment.getDBID());
+            compartmentNode.setID(id[0]++);
+            compartmentNode.setDisplayName(compartment.getDisplayName());
+            Rectangle bounds = new Rectangle(0,
+                                             0,
+                                             Math.min(reactions.size(), COLUMNS) * CELL_WIDTH + 2 * MARGIN,
+                                             rows * CELL_HEIGHT + 2 * MARGIN);
+            compartmentNode.setBounds(bounds);
+            compartmentNode.setTextBounds(new Rectangle(MARGIN / 2, MARGIN / 4, 2 * NODE_WIDTH, MARGIN / 2));
+            diagram.addComponent(compartmentNode);
+        }
+        for (int i = 0; i < reactions.size(); i++) {
+            int x = MARGIN + (i % COLUMNS) * CELL_WIDTH;
+            int y = MARGIN + (i / COLUMNS) * CELL_HEIGHT;
+            drawReaction(reactions.get(i), x, y, diagram, id);
+        }
+        return diagram;
+    }
+
+    /**
+     * Diagrams are laid out on the fly and have no instances.
+     */
+    @Override
+    public Long getDiagramId(GKInstance pathway) {
+        return null;
+    }
+
+    /**
+     * Draw a reaction into the cell whose top-left corner is at (x, y): inputs stacked on the left, outputs
+     * on the right and catalysts above the backbone. Entities are drawn for every reaction they take part in.
+     */
+    private void drawReaction(GKInstance reaction, int x, int y, RenderablePathway diagram, int[] id) throws Exception {
+        List<GKInstance> inputs = reaction.getAttributeValuesList(ReactomeJavaConstants.input);
+        List<GKInstance> outputs = reaction.getAttributeValuesList(ReactomeJavaConstants.output);
+        int centerY = y + CELL_HEIGHT / 2;
+        Point inputHub = new Point(x + 2 * NODE_WIDTH, centerY);
+        Point position = new Point(x + CELL_WIDTH / 2, centerY);
+        Point outputHub = new Point(x + CELL_WIDTH - 2 * NODE_WIDTH, centerY);
+        RenderableReaction rxt = new RenderableReaction();
+        rxt.setReactomeId(reaction.getDBID());
+        rxt.setID(id[0]++);
+        rxt.setDisplayName(reaction.getDisplayName());
+        List<Point> backbone = new ArrayList<>();
+        backbone.add(inputHub);
+        backbone.add(position);
+        backbone.add(outputHub);
+        rxt.setBackbonePoints(backbone);
+        rxt.setPosition(position);
+        List<List<Point>> inputBranches = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Node node = drawNode(inputs.get(i), x, getStackedY(centerY, i, inputs.size()), diagram, id);
+            rxt.addInput(node);
+            inputBranches.add(createBranch(node));
+        }
+        // A single input or output is expected without any branch (see LayoutConverter)
+        if (inputs.size() > 1)
+            rxt.setInputPoints(inputBranches);
+        List<List<Point>> outputBranches = new ArrayList<>();
+        for (int i = 0; i < outputs.size(); i++) {
+            Node node = drawNode(outputs.get(i),
+                                 x + CELL_WIDTH - NODE_WIDTH - MARGIN,
+                                 getStackedY(centerY, i, outputs.size()),
+                                 diagram,
+                                 id);
+            rxt.addOutput(node);
+            outputBranches.add(createBranch(node));
+        }
+        if (outputs.size() > 1)
+            rxt.setOutputPoints(outputBranches);
+        List<GKInstance> cas = reaction.getAttributeValuesList(ReactomeJavaConstants.catalystActivity);
+        for (int i = 0; i < cas.size(); i++) {
+            GKInstance catalyst = (GKInstance) cas.get(i).getAttributeValue(ReactomeJavaConstants.physicalEntity);
+            if (catalyst == null)
+                continue;
+            Node node = drawNode(catalyst,
+                                 position.x - NODE_WIDTH / 2 + i * (NODE_WIDTH + MARGIN / 2),
+                                 y + MARGIN / 2,
+                                 diagram,
+                                 id);
+            rxt.addHelper(node);
+        }
+        diagram.addComponent(rxt);
+    }
+
+    private int getStackedY(int centerY, int index, int total) {
+        int height = total * NODE_HEIGHT + (total - 1) * MARGIN / 2;
+        return centerY - height / 2 + index * (NODE_HEIGHT + MARGIN / 2);
+    }
+
+    private List<Point> createBranch(Node node) {
+        List<Point> branch = new ArrayList<>();
+        branch.add(new Point(node.getPosition()));
+        return branch;
+    }
+
+    private Node drawNode(GKInstance entity, int x, int y, RenderablePathway diagram, int[] id) {
+        Node node;
+        if (entity.getSchemClass().isa(ReactomeJavaConstants.Complex))
+            node = new RenderableComplex();
+        else if (entity.getSchemClass().isa(ReactomeJavaConstants.EntityWithAccessionedSequence))
+            node = new RenderableProtein();
+        else
+            node = new RenderableChemical();
+        node.setReactomeId(entity.getDBID());
+        node.setID(id[0]++);
+        node.setDisplayName(entity.getDisplayName());
+        Rectangle bounds = new Rectangle(x, y, NODE_WIDTH, NODE_HEIGHT);
+        node.setBounds(bounds);
+        node.setTextBounds(new Rectangle(bounds));
+        node.setPosition(new Point((int) bounds.getCenterX(), (int) bounds.getCenterY()));
+        diagram.addComponent(node);
+        return node;
+    }
+
+    @Override
+    public Integer getReleaseNumber() {
+        return releaseNumber;
+    }
+
+    @Override
+    public EventHierarchyIndex buildEventHierarchyIndex() throws Exception {
+        EventHierarchyIndex index = new EventHierarchyIndex();
+        for (GKInstance pathway : pathways)
+            index.addPathway(pathway.getDBID(), pathway.getAttributeValuesList(ReactomeJavaConstants.hasEvent));
+        return index;
+    }
+
+    /**
+     * Nothing to release: the instances are the data of this source.
+     */
+    @Override
+    public void clearCache() {
+    }
+
+    @Override
+    public int evict(Collection<Long> dbIds) {
+        return 0;
+    }
+
+}
@@ -0,0 +1,438 @@
+package org.reactome.sbml.rel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generate a synthetic release so that the relational conversion can be run and scaled without any database.
+ * The shape of the release is configured by a spec of comma separated key=value pairs (see {@link #parse(String)}):
+ * <ul>
+ * <li>pathways: the number of top level pathways</li>
+ * <li>depth: the number of sub-pathway levels below a top level pathway. Reactions are in the lowest level.</li>
+ * <li>branching: the number of sub-pathways in a pathway above the lowest level</li>
+ * <li>reactions: the number of reactions in a pathway of the lowest level</li>
+ * <li>nesting: the depth of complexes, i.e. the levels of complexes in a complex. 0 for no complexes.</li>
+ * <li>sharing: the probability that a participant is reused from the entities created before</li>
+ * <li>diagram: the maximum number of reactions drawn in the diagram of a top level pathway. 0 for no diagrams.</li>
+ * <li>seed: the seed of the random generator so that the same spec always generates the same release</li>
+ * <li>release: the release number reported by the source</li>
+ * </ul>
+ * @author wug
+ *
+ */
+public class SyntheticReleaseGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(SyntheticReleaseGenerator.class);
+    private static final String SPECIES_NAME = "Homo sapiens";
+    private static final String STID_PREFIX = "R-HSA-";
+    private static final String[][] COMPARTMENTS = {
+            {"cytosol", "0005829"},
+            {"nucleoplasm", "0005654"},
+            {"plasma membrane", "0005886"},
+            {"extracellular region", "0005576"},
+            {"mitochondrial matrix", "0005759"}
+    };
+    private static final int CURATORS = 8;
+    private static final int INSTANCE_EDITS = 32;
+    private static final int GO_TERMS = 16;
+    private static final int PUBLICATIONS = 64;
+    private static final String SUMMATION = "<p>A synthetic event generated for <b>scaling</b> tests. " +
+                                            "It has no biological meaning.</p>";
+
+    private int pathways = 10;
+    private int depth = 2;
+    private int branching = 3;
+    private int reactions = 20;
+    private int nesting = 3;
+    private double sharing = 0.3d;
+    private int diagram = 200;
+    private long seed = 1L;
+    private int release = 0;
+
+    // Used during generate()
+    private Random random;
+    private long nextDbId;
+    private SyntheticInstanceSource source;
+    private GKInstance species;
+    private GKInstance uniProt;
+    private GKInstance chebi;
+    private GKInstance go;
+    private List<GKInstance> compartments;
+    private List<GKInstance> instanceEdits;
+    private List<GKInstance> processes;
+    private List<GKInstance> functions;
+    private List<GKInstance> publications;
+    // Entities available for sharing
+    private List<GKInstance> entities;
+    private List<GKInstance> simpleEntities;
+
+    public SyntheticReleaseGenerator() {
+    }
+
+    /**
+     * @param spec e.g. pathways=20,depth=3,reactions=50,nesting=4,sharing=0.5,diagram=100. Keys not in the spec
+     * keep their default values.
+     */
+    public static SyntheticReleaseGenerator parse(String spec) {
+        SyntheticReleaseGenerator generator = new SyntheticReleaseGenerator();
+        if (spec == null || spec.trim().isEmpty())
+            return generator;
+        for (String token : spec.split(",")) {
+            String[] pair = token.trim().split("=");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Expected key=value instead of '" + token + "' in '" + spec + "'");
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "pathways": generator.setPathways(Integer.parseInt(value)); break;
+                case "depth": generator.setDepth(Integer.parseInt(value)); break;
+                case "branching": generator.setBranching(Integer.parseInt(value)); break;
+                case "reactions": generator.setReactions(Integer.parseInt(value)); break;
+                case "nesting": generator.setNesting(Integer.parseInt(value)); break;
+                case "sharing": generator.setSharing(Double.parseDouble(value)); break;
+                case "diagram": generator.setDiagram(Integer.parseInt(value)); break;
+                case "seed": generator.setSeed(Long.parseLong(value)); break;
+                case "release": generator.setRelease(Integer.parseInt(value)); break;
+                default: throw new IllegalArgumentException("Unknown key '" + pair[0] + "' in '" + spec + "'");
+            }
+        }
+        return generator;
+    }
+
+    public void setPathways(int pathways) {
+        this.pathways = pathways;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public void setBranching(int branching) {
+        this.branching = branching;
+    }
+
+    public void setReactions(int reactions) {
+        this.reactions = reactions;
+    }
+
+    public void setNesting(int nesting) {
+        this.nesting = nesting;
+    }
+
+    public void setSharing(double sharing) {
+        if (sharing < 0.0d || sharing > 1.0d)
+            throw new IllegalArgumentException("sharing should be between 0 and 1: " + sharing);
+        this.sharing = sharing;
+    }
+
+    public void setDiagram(int diagram) {
+        this.diagram = diagram;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setRelease(int release) {
+        this.release = release;
+    }
+
+    /**
+     * Generate a new release. Calling this again with the same settings generates the same release.
+     */
+    public synchronized SyntheticInstanceSource generate() throws Exception {
+        long time1 = System.currentTimeMillis();
+        random = new Random(seed);
+        nextDbId = 1L;
+        instanceEdits = null;
+        source = new SyntheticInstanceSource(release);
+        entities = new ArrayList<>();
+        simpleEntities = new ArrayList<>();
+        createSharedInstances();
+        int reactionCount = 0;
+        for (int i = 0; i < pathways; i++) {
+            GKInstance pathway = createPathway(0);
+            List<GKInstance> contained = new ArrayList<>();
+            collectReactions(pathway, contained);
+            reactionCount += contained.size();
+            if (diagram > 0)
+                source.addDiagram(pathway, contained.subList(0, Math.min(diagram, contained.size())));
+        }
+        SyntheticInstanceSource rtn = source;
+        logger.info(String.format("Generated %d instances with %d reactions and %d entities in %d ms",
+                                  rtn.getInstanceCount(),
+                                  reactionCount,
+                                  entities.size(),
+                                  System.currentTimeMillis() - time1));
+        // Release what is used during generating only
+        source = null;
+        entities = null;
+        simpleEntities = null;
+        return rtn;
+    }
+
+    private void createSharedInstances() {
+        species = createInstance(ReactomeJavaConstants.Species, SPECIES_NAME);
+        species.setAttributeValueNoCheck(ReactomeJavaConstants.name, list(SPECIES_NAME));
+        uniProt = createReferenceDatabase("UniProt", "http://purl.uniprot.org/uniprot/###ID###");
+        chebi = createReferenceDatabase("ChEBI", "http://www.ebi.ac.uk/chebi/searchId.do?chebiId=CHEBI:###ID###");
+        go = createReferenceDatabase("GO", "https://www.ebi.ac.uk/QuickGO/term/GO:###ID###");
+        compartments = new ArrayList<>();
+        for (String[] compartment : COMPARTMENTS) {
+            GKInstance inst = createInstance(ReactomeJavaConstants.Compartment, compartment[0]);
+            setGOTerm(inst, compartment[0], compartment[1]);
+            compartments.add(inst);
+        }
+        List<GKInstance> persons = new ArrayList<>();
+        GKInstance affiliation = createInstance(ReactomeJavaConstants.Affiliation, "Synthetic Institute");
+        affiliation.setAttributeValueNoCheck(ReactomeJavaConstants.name, list("Synthetic Institute"));
+        for (int i = 0; i < CURATORS; i++) {
+            String surname = "Curator" + i;
+            GKInstance person = createInstance(ReactomeJavaConstants.Person, surname + ", S");
+            person.setAttributeValueNoCheck(ReactomeJavaConstants.firstname, list("Synthetic"));
+            person.setAttributeValueNoCheck(ReactomeJavaConstants.surname, list(surname));
+            person.setAttributeValueNoCheck(ReactomeJavaConstants.affiliation, list(affiliation));
+            persons.add(person);
+        }
+        // InstanceEdits themselves have no created
+        List<GKInstance> edits = new ArrayList<>();
+        for (int i = 0; i < INSTANCE_EDITS; i++) {
+            GKInstance person = persons.get(i % persons.size());
+            String dateTime = String.format("20%02d-%02d-%02d 12:00:00", 10 + i % 15, 1 + i % 12, 1 + i % 28);
+            GKInstance ie = createInstance(ReactomeJavaConstants.InstanceEdit,
+                                           person.getDisplayName() + ", " + dateTime.substring(0, 10));
+            ie.setAttributeValueNoCheck(ReactomeJavaConstants.author, list(person));
+            ie.setAttributeValueNoCheck(ReactomeJavaConstants.dateTime, list(dateTime));
+            edits.add(ie);
+        }
+        instanceEdits = edits;
+        processes = new ArrayList<>();
+        functions = new ArrayList<>();
+        for (int i = 0; i < GO_TERMS; i++) {
+            GKInstance process = createInstance(ReactomeJavaConstants.GO_BiologicalProcess, "synthetic process " + i);
+            setGOTerm(process, process.getDisplayName(), String.format("%07d", 8000 + i));
+            processes.add(process);
+            GKInstance function = createInstance(ReactomeJavaConstants.GO_MolecularFunction, "synthetic activity " + i);
+            setGOTerm(function, function.getDisplayName(), String.format("%07d", 3000 + i));
+            function.setAttributeValueNoCheck(ReactomeJavaConstants.ecNumber, list(String.format("3.1.%d.%d", i / 4, i % 4)));
+            functions.add(function);
+        }
+        publications = new ArrayList<>();
+        for (int i = 0; i < PUBLICATIONS; i++) {
+            GKInstance publication = createInstance(ReactomeJavaConstants.LiteratureReference, "Synthetic publication " + i);
+            publication.setAttributeValueNoCheck(ReactomeJavaConstants.pubMedIdentifier, list(20000000 + i));
+            publication.setAttributeValueNoCheck(ReactomeJavaConstants.author, list(random(persons)));
+            publications.add(publication);
+        }
+    }
+
+    private GKInstance createReferenceDatabase(String name, String accessUrl) {
+        GKInstance refDb = createInstance(ReactomeJavaConstants.ReferenceDatabase, name);
+        refDb.setAttributeValueNoCheck(ReactomeJavaConstants.name, list(name));
+        refDb.setAttributeValueNoCheck(ReactomeJavaConstants.accessUrl, list(accessUrl));
+        return refDb;
+    }
+
+    private void setGOTerm(GKInstance term, String name, String accession) {
+        term.setAttributeValueNoCheck(ReactomeJavaConstants.name, list(name));
+        term.setAttributeValueNoCheck(ReactomeJavaConstants.accession, list(accession));
+        term.setAttributeValueNoCheck(ReactomeJavaConstants.referenceDatabase, list(go));
+    }
+
+    private GKInstance createPathway(int level) {
+        GKInstance pathway = createEvent(ReactomeJavaConstants.Pathway, "Synthetic pathway");
+        List<GKInstance> events = new ArrayList<>();
+        if (level < depth) {
+            for (int i = 0; i < branching; i++)
+                events.add(createPathway(level + 1));
+        }
+        else {
+            for (int i = 0; i < reactions; i++)
+                events.add(createReaction());
+        }
+        pathway.setAttributeValueNoCheck(ReactomeJavaConstants.hasEvent, events);
+        pathway.setAttributeValueNoCheck(ReactomeJavaConstants.compartment, list(compartments.get(0)));
+        if (random.nextBoolean())
+            pathway.setAttributeValueNoCheck(ReactomeJavaConstants.goBiologicalProcess, list(random(processes)));
+        return pathway;
+    }
+
+    private void collectReactions(GKInstance pathway, List<GKInstance> reactions) throws Exception {
+        for (Object event : pathway.getAttributeValuesList(ReactomeJavaConstants.hasEvent)) {
+            GKInstance inst = (GKInstance) event;
+            if (inst.getSchemClass().isa(ReactomeJavaConstants.Pathway))
+                collectReactions(inst, reactions);
+            else
+                reactions.add(inst);
+        }
+    }
+
+    private GKInstance createReaction() {
+        GKInstance reaction = createEvent(ReactomeJavaConstants.Reaction, "Synthetic reaction");
+        List<GKInstance> inputs = pickEntities(1 + random.nextInt(3));
+        reaction.setAttributeValueNoCheck(ReactomeJavaConstants.input, inputs);
+        reaction.setAttributeValueNoCheck(ReactomeJavaConstants.output, pickEntities(1 + random.nextInt(2)));
+        reaction.setAttributeValueNoCheck(ReactomeJavaConstants.compartment,
+                                          list(getAttributeValue(inputs.get(0), ReactomeJavaConstants.compartment)));
+        if (random.nextBoolean()) {
+            GKInstance ca = createInstance(ReactomeJavaConstants.CatalystActivity, "Synthetic activity");
+            ca.setAttributeValueNoCheck(ReactomeJavaConstants.physicalEntity, list(pickEntity()));
+            ca.setAttributeValueNoCheck(ReactomeJavaConstants.activity, list(random(functions)));
+            reaction.setAttributeValueNoCheck(ReactomeJavaConstants.catalystActivity, list(ca));
+        }
+        if (random.nextInt(5) == 0) {
+            String cls = random.nextBoolean() ? ReactomeJavaConstants.PositiveRegulation : ReactomeJavaConstants.NegativeRegulation;
+            GKInstance regulation = createInstance(cls, "Synthetic regulation");
+            regulation.setAttributeValueNoCheck(ReactomeJavaConstants.regulator, list(pickEntity()));
+            reaction.setAttributeValueNoCheck(ReactomeJavaConstants.regulatedBy, list(regulation));
+        }
+        if (random.nextBoolean())
+            reaction.setAttributeValueNoCheck(ReactomeJavaConstants.goBiologicalProcess, list(random(processes)));
+        return reaction;
+    }
+
+    private List<GKInstance> pickEntities(int count) {
+        List<GKInstance> rtn = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            rtn.add(pickEntity());
+        return rtn;
+    }
+
+    /**
+     * Reuse an entity created before with the probability of sharing. Otherwise create a new one.
+     */
+    private GKInstance pickEntity() {
+        if (entities.size() > 0 && random.nextDouble() < sharing)
+            return random(entities);
+        double type = random.nextDouble();
+        if (type < 0.4d)
+            return createSimpleEntity();
+        if (type < 0.8d || nesting == 0)
+            return createEWAS();
+        return createComplex(1);
+    }
+
+    /**
+     * The first component of a complex above the deepest level is a complex so that each complex created
+     * as a participant has the configured nesting depth.
+     */
+    private GKInstance createComplex(int level) {
+        List<GKInstance> components = new ArrayList<>();
+        components.add(level < nesting ? createComplex(level + 1) : createEWAS());
+        int count = 1 + random.nextInt(2);
+        for (int i = 0; i < count; i++) {
+            if (simpleEntities.size() > 0 && random.nextDouble() < sharing)
+                components.add(random(simpleEntities));
+            else
+                components.add(random.nextBoolean() ? createEWAS() : createSimpleEntity());
+        }
+        GKInstance complex = createEntity(ReactomeJavaConstants.Complex, "Synthetic complex");
+        complex.setAttributeValueNoCheck(ReactomeJavaConstants.hasComponent, components);
+        complex.setAttributeValueNoCheck(ReactomeJavaConstants.species, list(species));
+        return complex;
+    }
+
+    private GKInstance createEWAS() {
+        GKInstance ewas = createEntity(ReactomeJavaConstants.EntityWithAccessionedSequence, "Synthetic protein");
+        GKInstance refEntity = createInstance(ReactomeJavaConstants.ReferenceGeneProduct, null);
+        String identifier = String.format("S%05d", refEntity.getDBID() % 100000);
+        refEntity.setDisplayName("UniProt:" + identifier);
+        refEntity.setAttributeValueNoCheck(ReactomeJavaConstants.identifier, list(identifier));
+        refEntity.setAttributeValueNoCheck(ReactomeJavaConstants.referenceDatabase, list(uniProt));
+        refEntity.setAttributeValueNoCheck(ReactomeJavaConstants.species, list(species));
+        ewas.setAttributeValueNoCheck(ReactomeJavaConstants.referenceEntity, list(refEntity));
+        ewas.setAttributeValueNoCheck(ReactomeJavaConstants.species, list(species));
+        return ewas;
+    }
+
+    private GKInstance createSimpleEntity() {
+        GKInstance entity = createEntity(ReactomeJavaConstants.SimpleEntity, "Synthetic chemical");
+        GKInstance refEntity = createInstance(ReactomeJavaConstants.ReferenceMolecule, null);
+        String identifier = String.valueOf(100000 + refEntity.getDBID());
+        refEntity.setDisplayName("ChEBI:" + identifier);
+        refEntity.setAttributeValueNoCheck(ReactomeJavaConstants.identifier, list(identifier));
+        refEntity.setAttributeValueNoCheck(ReactomeJavaConstants.referenceDatabase, list(chebi));
+        entity.setAttributeValueNoCheck(ReactomeJavaConstants.referenceEntity, list(refEntity));
+        simpleEntities.add(entity);
+        return entity;
+    }
+
+    private GKInstance createEntity(String cls, String name) {
+        GKInstance entity = createInstance(cls, null);
+        GKInstance compartment = random(compartments);
+        entity.setDisplayName(name + " " + entity.getDBID() + " [" + compartment.getDisplayName() + "]");
+        entity.setAttributeValueNoCheck(ReactomeJavaConstants.compartment, list(compartment));
+        setStableIdentifier(entity);
+        if (random.nextInt(4) == 0)
+            entity.setAttributeValueNoCheck(ReactomeJavaConstants.literatureReference, list(random(publications)));
+        entities.add(entity);
+        return entity;
+    }
+
+    private GKInstance createEvent(String cls, String name) {
+        GKInstance event = createInstance(cls, null);
+        event.setDisplayName(name + " " + event.getDBID());
+        String stId = setStableIdentifier(event);
+        event.setAttributeValueNoCheck(ReactomeJavaConstants.species, list(species));
+        GKInstance summation = createInstance(ReactomeJavaConstants.Summation, null);
+        summation.setDisplayName(SUMMATION.substring(0, 40));
+        summation.setAttributeValueNoCheck(ReactomeJavaConstants.text, list(SUMMATION));
+        GKInstance publication = random(publications);
+        summation.setAttributeValueNoCheck(ReactomeJavaConstants.literatureReference, list(publication));
+        event.setAttributeValueNoCheck(ReactomeJavaConstants.summation, list(summation));
+        event.setAttributeValueNoCheck(ReactomeJavaConstants.literatureReference, list(publication));
+        event.setAttributeValueNoCheck(ReactomeJavaConstants.authored, list(random(instanceEdits)));
+        if (random.nextBoolean())
+            event.setAttributeValueNoCheck(ReactomeJavaConstants.revised, list(random(instanceEdits)));
+        source.addEvent(stId, event);
+        return event;
+    }
+
+    private String setStableIdentifier(GKInstance inst) {
+        String stId = STID_PREFIX + inst.getDBID();
+        GKInstance stableId = createInstance(ReactomeJavaConstants.StableIdentifier, stId);
+        stableId.setAttributeValueNoCheck(ReactomeJavaConstants.identifier, list(stId));
+        inst.setAttributeValueNoCheck(ReactomeJavaConstants.stableIdentifier, list(stableId));
+        return stId;
+    }
+
+    /**
+     * Create an instance with all valid attributes set to empty lists so that no attribute is loaded lazily.
+     */
+    private GKInstance createInstance(String cls, String displayName) {
+        GKInstance inst = new GKInstance(SyntheticSchema.getSchemaClass(cls));
+        inst.setDBID(nextDbId++);
+        inst.setDisplayName(displayName);
+        inst.setIsInflated(true);
+        for (String att : SyntheticSchema.getAttributes(cls))
+            inst.setAttributeValueNoCheck(att, new ArrayList<>());
+        if (instanceEdits != null)
+            inst.setAttributeValueNoCheck(ReactomeJavaConstants.created, list(random(instanceEdits)));
+        source.addInstance(inst);
+        return inst;
+    }
+
+    private Object getAttributeValue(GKInstance inst, String att) {
+        try {
+            return inst.getAttributeValue(att);
+        }
+        catch (Exception e) {
+            // Cannot happen for an inflated instance
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> T random(List<T> list) {
+        return list.get(random.nextInt(list.size()));
+    }
+
+    private static List<Object> list(Object value) {
+        return new ArrayList<>(Collections.singletonList(value));
+    }
+
+}
@@ -0,0 +1,211 @@
+package org.reactome.sbml.rel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.schema.GKSchemaAttribute;
+import org.gk.schema.GKSchemaClass;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+
+/**
+ * The part of the Reactome schema read by the relational conversion: the classes generated by
+ * {@link SyntheticReleaseGenerator} with their super classes and the attributes listed in
+ * {@link SnapshotInstanceSource#ATTRIBUTES}. This is used instead of the schema of a database so that
+ * synthetic releases can be created without any database.
+ * @author wug
+ *
+ */
+class SyntheticSchema {
+    // Class name, super class name and attributes defined in the class
+    private static final Object[][] CLASSES = {
+            {ReactomeJavaConstants.DatabaseObject, null, new String[] {ReactomeJavaConstants.created,
+                                                                       ReactomeJavaConstants.modified,
+                                                                       ReactomeJavaConstants.stableIdentifier}},
+            {ReactomeJavaConstants.Event, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.authored,
+                                                                                              ReactomeJavaConstants.revised,
+                                                                                              ReactomeJavaConstants.compartment,
+                                                                                              ReactomeJavaConstants.crossReference,
+                                                                                              ReactomeJavaConstants.disease,
+                                                                                              ReactomeJavaConstants.goBiologicalProcess,
+                                                                                              ReactomeJavaConstants.inferredFrom,
+                                                                                              ReactomeJavaConstants.inferredTo,
+                                                                                              ReactomeJavaConstants.literatureReference,
+                                                                                              ReactomeJavaConstants.species,
+                                                                                              ReactomeJavaConstants.summation}},
+            {ReactomeJavaConstants.Pathway, ReactomeJavaConstants.Event, new String[] {ReactomeJavaConstants.hasEvent}},
+            {ReactomeJavaConstants.ReactionlikeEvent, ReactomeJavaConstants.Event, new String[] {ReactomeJavaConstants.input,
+                                                                                                  ReactomeJavaConstants.output,
+                                                                                                  ReactomeJavaConstants.catalystActivity,
+                                                                                                  ReactomeJavaConstants.regulatedBy}},
+            {ReactomeJavaConstants.Reaction, ReactomeJavaConstants.ReactionlikeEvent, new String[] {}},
+            {ReactomeJavaConstants.PhysicalEntity, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.authored,
+                                                                                                       ReactomeJavaConstants.revised,
+                                                                                                       ReactomeJavaConstants.compartment,
+                                                                                                       ReactomeJavaConstants.crossReference,
+                                                                                                       ReactomeJavaConstants.disease,
+                                                                                                       ReactomeJavaConstants.inferredFrom,
+                                                                                                       ReactomeJavaConstants.inferredTo,
+                                                                                                       ReactomeJavaConstants.literatureReference,
+                                                                                                       ReactomeJavaConstants.summation}},
+            {ReactomeJavaConstants.SimpleEntity, ReactomeJavaConstants.PhysicalEntity, new String[] {ReactomeJavaConstants.referenceEntity}},
+            {ReactomeJavaConstants.GenomeEncodedEntity, ReactomeJavaConstants.PhysicalEntity, new String[] {ReactomeJavaConstants.species}},
+            {ReactomeJavaConstants.EntityWithAccessionedSequence, ReactomeJavaConstants.GenomeEncodedEntity, new String[] {ReactomeJavaConstants.referenceEntity,
+                                                                                                                           ReactomeJavaConstants.hasModifiedResidue}},
+            {ReactomeJavaConstants.Complex, ReactomeJavaConstants.PhysicalEntity, new String[] {ReactomeJavaConstants.hasComponent,
+                                                                                                ReactomeJavaConstants.species}},
+            {ReactomeJavaConstants.CatalystActivity, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.activity,
+                                                                                                         ReactomeJavaConstants.physicalEntity}},
+            {ReactomeJavaConstants.Regulation, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.regulator}},
+            {ReactomeJavaConstants.PositiveRegulation, ReactomeJavaConstants.Regulation, new String[] {}},
+            {ReactomeJavaConstants.NegativeRegulation, ReactomeJavaConstants.Regulation, new String[] {}},
+            {ReactomeJavaConstants.ReferenceEntity, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.identifier,
+                                                                                                        ReactomeJavaConstants.referenceDatabase}},
+            {ReactomeJavaConstants.ReferenceSequence, ReactomeJavaConstants.ReferenceEntity, new String[] {ReactomeJavaConstants.species}},
+            {ReactomeJavaConstants.ReferenceGeneProduct, ReactomeJavaConstants.ReferenceSequence, new String[] {}},
+            {ReactomeJavaConstants.ReferenceMolecule, ReactomeJavaConstants.ReferenceEntity, new String[] {}},
+            {ReactomeJavaConstants.ReferenceDatabase, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.accessUrl,
+                                                                                                          ReactomeJavaConstants.name}},
+            {ReactomeJavaConstants.GO_CellularComponent, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.accession,
+                                                                                                             ReactomeJavaConstants.name,
+                                                                                                             ReactomeJavaConstants.referenceDatabase}},
+            {ReactomeJavaConstants.Compartment, ReactomeJavaConstants.GO_CellularComponent, new String[] {}},
+            {ReactomeJavaConstants.GO_BiologicalProcess, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.accession,
+                                                                                                             ReactomeJavaConstants.name,
+                                                                                                             ReactomeJavaConstants.referenceDatabase}},
+            {ReactomeJavaConstants.GO_MolecularFunction, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.accession,
+                                                                                                             ReactomeJavaConstants.ecNumber,
+                                                                                                             ReactomeJavaConstants.name,
+                                                                                                             ReactomeJavaConstants.referenceDatabase}},
+            {ReactomeJavaConstants.Publication, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.author}},
+            {ReactomeJavaConstants.LiteratureReference, ReactomeJavaConstants.Publication, new String[] {ReactomeJavaConstants.pubMedIdentifier}},
+            {ReactomeJavaConstants.Summation, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.literatureReference,
+                                                                                                  ReactomeJavaConstants.text}},
+            {ReactomeJavaConstants.InstanceEdit, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.author,
+                                                                                                     ReactomeJavaConstants.dateTime}},
+            {ReactomeJavaConstants.Person, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.affiliation,
+                                                                                               ReactomeJavaConstants.firstname,
+                                                                                               ReactomeJavaConstants.surname}},
+            {ReactomeJavaConstants.Affiliation, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.name}},
+            {ReactomeJavaConstants.StableIdentifier, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.identifier}},
+            {ReactomeJavaConstants.Taxon, ReactomeJavaConstants.DatabaseObject, new String[] {ReactomeJavaConstants.name}},
+            {ReactomeJavaConstants.Species, ReactomeJavaConstants.Taxon, new String[] {}}
+    };
+    private static final Map<String, SyntheticClass> nameToClass = new HashMap<>();
+
+    static {
+        for (Object[] definition : CLASSES) {
+            SyntheticClass superClass = definition[1] == null ? null : nameToClass.get(definition[1]);
+            SyntheticClass cls = new SyntheticClass((String) definition[0], superClass, (String[]) definition[2]);
+            nameToClass.put(cls.getName(), cls);
+        }
+    }
+
+    private SyntheticSchema() {
+    }
+
+    static SchemaClass getSchemaClass(String name) {
+        SchemaClass rtn = nameToClass.get(name);
+        if (rtn == null)
+            throw new IllegalArgumentException(name + " is not in the synthetic schema.");
+        return rtn;
+    }
+
+    /**
+     * @return all attributes valid for the class including the inherited ones
+     */
+    static List<String> getAttributes(String name) {
+        return new ArrayList<>(nameToClass.get(name).attributes.keySet());
+    }
+
+    private static class SyntheticClass extends GKSchemaClass {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final Set<String> ancestors;
+        private final Map<String, SchemaAttribute> attributes;
+
+        SyntheticClass(String name, SyntheticClass superClass, String[] attributeNames) {
+            super(name);
+            this.name = name;
+            this.ancestors = new LinkedHashSet<>();
+            this.attributes = new HashMap<>();
+            if (superClass != null) {
+                ancestors.add(superClass.name);
+                ancestors.addAll(superClass.ancestors);
+                attributes.putAll(superClass.attributes);
+            }
+            for (String attributeName : attributeNames)
+                attributes.put(attributeName, new SyntheticAttribute(attributeName));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isa(String className) {
+            return name.equals(className) || ancestors.contains(className);
+        }
+
+        @Override
+        public boolean isValidAttribute(String attributeName) {
+            return attributes.containsKey(attributeName);
+        }
+
+        @Override
+        public SchemaAttribute getAttribute(String attributeName) {
+            SchemaAttribute rtn = attributes.get(attributeName);
+            // Values are only set for valid attributes. Others are always empty.
+            return rtn == null ? new SyntheticAttribute(attributeName) : rtn;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * All attributes are handled as multiple-valued since values are kept as lists.
+     */
+    private static class SyntheticAttribute extends GKSchemaAttribute {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+
+        SyntheticAttribute(String name) {
+            super(name);
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isMultiple() {
+            return true;
+        }
+
+        @Override
+        public boolean isInstanceTypeAttribute() {
+            return !name.equals(ReactomeJavaConstants.accessUrl) &&
+                   !name.equals(ReactomeJavaConstants.accession) &&
+                   !name.equals(ReactomeJavaConstants.dateTime) &&
+                   !name.equals(ReactomeJavaConstants.ecNumber) &&
+                   !name.equals(ReactomeJavaConstants.firstname) &&
+                   !name.equals(ReactomeJavaConstants.identifier) &&
+                   !name.equals(ReactomeJavaConstants.name) &&
+                   !name.equals(ReactomeJavaConstants.pubMedIdentifier) &&
+                   !name.equals(ReactomeJavaConstants.surname) &&
+                   !name.equals(ReactomeJavaConstants.text);
+        }
+    }
+
+}
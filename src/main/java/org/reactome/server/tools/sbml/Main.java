@@ -2,8 +2,21 @@ package org.reactome.server.tools.sbml;
 
 import com.martiansoftware.jsap.*;
 import org.apache.commons.lang3.ArrayUtils;
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.MySQLAdaptor;
+import org.reactome.sbml.rel.CacheEvictionPolicy;
+import org.reactome.sbml.rel.ChangeWatcher;
+import org.reactome.sbml.rel.ConverterCache;
+import org.reactome.sbml.rel.DependencyIndex;
+import org.reactome.sbml.rel.EventHierarchyIndex;
+import org.reactome.sbml.rel.ExportServer;
+import org.reactome.sbml.rel.InstanceSource;
+import org.reactome.sbml.rel.MySQLInstanceSource;
 import org.reactome.sbml.rel.SbmlConverterForRel;
+import org.reactome.sbml.rel.SnapshotInstanceSource;
+import org.reactome.sbml.rel.SnapshotWriter;
+import org.reactome.sbml.rel.SyntheticReleaseGenerator;
 import org.reactome.server.graph.domain.model.DBInfo;
 import org.reactome.server.graph.domain.model.Event;
 import org.reactome.server.graph.domain.model.Pathway;
@@ -12,14 +25,38 @@ import org.reactome.server.graph.service.*;
 import org.reactome.server.graph.service.util.DatabaseObjectUtils;
 import org.reactome.server.graph.utils.ReactomeGraphCore;
 import org.reactome.server.tools.sbml.config.GraphNeo4jConfig;
-import org.reactome.server.tools.sbml.util.ProgressBar;
+import org.reactome.server.tools.sbml.converter.ExportOptions;
+import org.reactome.server.tools.sbml.converter.Helper;
+import org.reactome.server.tools.sbml.converter.SbmlConverter;
+import org.reactome.server.tools.sbml.data.DataFactory;
+import org.reactome.server.tools.sbml.data.SpeciesData;
+import org.reactome.server.tools.sbml.util.AdmissionQueue;
+import org.reactome.server.tools.sbml.util.FlightRecorder;
+import org.reactome.server.tools.sbml.util.Metrics;
+import org.reactome.server.tools.sbml.util.PathwayReport;
+import org.reactome.server.tools.sbml.util.ProgressDashboard;
 import org.reactome.server.tools.sbml.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -36,19 +73,119 @@ public class Main {
 
     private static MySQLAdaptor mysqlDba;
 
+    private static InstanceSource source;
+
+    // Shared by all conversions in this run
+    private static ConverterCache converterCache = new ConverterCache();
+
+    // Evicts the least recently used cache entries under heap pressure
+    private static CacheEvictionPolicy evictionPolicy;
+
+    // Pathways of a species are converted by this many workers, each with its own instance source
+    private static int threads = 1;
+    private static ExecutorService workers;
+    private static Callable<InstanceSource> sourceFactory;
+    private static final ThreadLocal<InstanceSource> workerSource = new ThreadLocal<>();
+    // Bytes shared by the pathways converted at the same time
+    private static long memoryBudget;
+    // Rough footprint of a pathway conversion: the converted objects and the SBML document of its reactions and
+    // their participants, and the instances behind them
+    private static final long BASE_BYTES = 2L * 1024 * 1024;
+    private static final long BYTES_PER_REACTION = 64L * 1024;
+    private static final long BYTES_PER_PARTICIPANT = 24L * 1024;
+    private static final int PARTICIPANTS_PER_REACTION = 5;
+
+    // Number of pathways whose data is fetched ahead of the pathway converted by a single thread. 0 for none.
+    private static int prefetch = 0;
+    private static ExecutorService prefetcher;
+    // Sources held by the prefetched pathways and the pathway being converted
+    private static BlockingQueue<InstanceSource> prefetchSources;
+
+    // Built once in a run when whole species are converted
+    private static EventHierarchyIndex eventIndex;
+
+    // Instances used by each exported pathway, persisted in the output directory
+    private static DependencyIndex dependencyIndex;
+
+    // Variants written for each pathway. Null for the default file only.
+    private static List<ExportOptions> variants;
+
+    // Sub-pathways are referenced via the SBML comp package instead of being inlined
+    private static boolean hierarchical = false;
+
+    // Inferred pathways are laid out from the layouts of their converted source pathways
+    private static boolean orthologyTemplates = false;
+
+    // Species are converted from the graph data retrieved once per species instead of per pathway
+    private static boolean speciesBulk = false;
+
+    // Reactions of models larger than this are spilled to a temporary file. 0 to keep them on the heap.
+    private static int spillThreshold = 0;
+
+    // Species and reactions of models larger than this are annotated in parallel. 0 for none.
+    private static int parallelThreshold = 0;
+
+    // Species whose pathways are the sources of most inferred ones. Converted first for orthology templates.
+    private static final String SOURCE_SPECIES = "Homo sapiens";
+
+    // The graph core is initialised on first use with these
+    private static String neo4jHost;
+    private static String neo4jUser;
+    private static String neo4jPassword;
+    private static boolean isGraphInitialised = false;
+
+    private static final AtomicBoolean isFirstFileWritten = new AtomicBoolean(false);
+
+    // Directory the metrics of the run are written to. Null for none.
+    private static String metricsDir;
+
+    // Per-pathway performance report of the run and the report of a previous run to compare it to. Null for none.
+    private static String reportFile;
+    private static String baselineFile;
+    private static PathwayReport report;
+
+    // Progress of all species converted in this run
+    private static ProgressDashboard dashboard;
+
+    // Key for events listed by identifiers in the target
+    private static final String EVENTS = "events";
+
     public static void main(String[] args) throws Exception {
 
         SimpleJSAP jsap = new SimpleJSAP(Main.class.getName(), "A tool for generating SBML files",
                 new Parameter[]{
                         new FlaggedOption("host", JSAP.STRING_PARSER, "bolt://localhost:7687", JSAP.REQUIRED, 'h', "host", "The neo4j host"),
                         new FlaggedOption("user", JSAP.STRING_PARSER, "neo4j", JSAP.REQUIRED, 'u', "user", "The neo4j user"),
-                        new FlaggedOption("password", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'p', "password", "The neo4j password"),
+                        new FlaggedOption("password", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'p', "password", "The neo4j password. Only needed when the neo4j database is used, i.e. not with --snapshot, --extract or --mysql-only"),
                         new FlaggedOption("mysql_host", JSAP.STRING_PARSER, "localhost", JSAP.REQUIRED, 'm', "mysql_host", "The mysql host"),
                         new FlaggedOption("mysql_db", JSAP.STRING_PARSER, "release_current", JSAP.REQUIRED, 'd', "mysql_db", "The mysql host"),
                         new FlaggedOption("mysql_port", JSAP.STRING_PARSER, "3306", JSAP.NOT_REQUIRED, 'n', "mysql_port", "The mysql port"),
-                        new FlaggedOption("mysql_user", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'l', "mysql_user", "The mysql user"),
-                        new FlaggedOption("mysql_password", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'w', "mysql_password", "The mysql password"),
+                        new FlaggedOption("mysql_user", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'l', "mysql_user", "The mysql user. Not needed with --snapshot"),
+                        new FlaggedOption("mysql_password", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'w', "mysql_password", "The mysql password. Not needed with --snapshot"),
                         new FlaggedOption("output", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'o', "output", "The output directory"),
+                        new FlaggedOption("snapshot", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 's', "snapshot", "A release snapshot file to read the data from instead of the databases"),
+                        new FlaggedOption("extract", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'x', "extract", "Extracts the data of the target events from the mysql database into this snapshot file and exits. A snapshot holds 2 GB at most"),
+                        new FlaggedOption("synthetic", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "synthetic", "Generates a synthetic release in memory to read the data from instead of the databases. Comma separated key=value pairs: pathways, depth, branching, reactions, nesting, sharing, diagram, seed, release (e.g. pathways=20,reactions=50,sharing=0.5). Use '' for the defaults"),
+                        new FlaggedOption("changed_ids", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'c', "changed-ids", "Comma separated DB_IDs of changed instances. Only the pathways that used them in the previous exports in the output directory are converted").setList(true).setListSeparator(','),
+                        new Switch("watch", JSAP.NO_SHORTFLAG, "watch", "Keeps polling the mysql database and re-exports the pathways affected by curator changes. Needs a previous export in the output directory. Cannot be combined with --snapshot or --synthetic"),
+                        new FlaggedOption("poll_interval", JSAP.INTEGER_PARSER, "60", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "poll-interval", "Seconds between two polls in the watch mode"),
+                        new FlaggedOption("debounce", JSAP.INTEGER_PARSER, "120", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "debounce", "Seconds without changes before an affected pathway is re-exported in the watch mode"),
+                        new FlaggedOption("serve", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "serve", "Starts an HTTP server on this port returning the SBML of an event at /sbml/{stId or DB_ID}. Works with --snapshot or the mysql database"),
+                        new Switch("hierarchical", JSAP.NO_SHORTFLAG, "hierarchical", "Converts only the reactions directly in each pathway and references the sub-pathway files via the SBML comp package. The sub-pathways have to be exported into the same directory"),
+                        new Switch("species_bulk", JSAP.NO_SHORTFLAG, "species-bulk", "Retrieves the reactions and participants of each species from the graph database in a few batched queries and converts its pathways from that data instead of querying per pathway. No layout is added in this mode. Cannot be combined with --threads, --prefetch, --hierarchical or --orthology-templates"),
+                        new Switch("orthology_templates", JSAP.NO_SHORTFLAG, "orthology-templates", "Lays out inferred pathways by reusing the layouts of the converted pathways they are inferred from. Human pathways are converted first"),
+                        new Switch("mysql_only", JSAP.NO_SHORTFLAG, "mysql-only", "Reads the release version and the target pathways from the mysql database. The neo4j database is not used"),
+                        new FlaggedOption("variants", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "variants", "Comma separated variants written from one conversion of each pathway. A variant joins flags with '+': identifiers or urls, layout or nolayout (e.g. identifiers,urls+nolayout). Files after the first variant get its flags as a suffix").setList(true).setListSeparator(','),
+                        new FlaggedOption("metrics", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "metrics", "Writes the timers, histograms and counters of the run into this directory as metrics.prom (Prometheus text format) and metrics.json"),
+                        new FlaggedOption("report", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "report", "Writes a performance report with one row per converted pathway into this CSV file and a JSON copy next to it: sizes, layout, wall time per phase, CPU time, allocated and output bytes"),
+                        new FlaggedOption("compare", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "compare", "Compares the report of this run to the CSV report of a previous run and logs the pathways that regressed most. Needs --report"),
+                        new FlaggedOption("spill", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "spill", "Number of reactions above which the reactions of a model are written to a temporary file while the model is built and put back while it is written, to convert the largest pathways with a small heap. 0 to keep all reactions on the heap"),
+                        new FlaggedOption("parallel_build", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "parallel-build", "Number of reactions above which the annotations of the species and reactions of a model are built in parallel by the common fork-join pool. The document is the same as the one built sequentially. 0 to build every model on one thread"),
+                        new FlaggedOption("heap_threshold", JSAP.DOUBLE_PARSER, String.valueOf(CacheEvictionPolicy.DEFAULT_THRESHOLD), JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "heap-threshold", "Fraction of the heap still used after a garbage collection above which the least recently used instances and converted objects are evicted from the caches"),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "threads", "Number of pathways of a species converted in parallel. Each worker uses its own database connection or snapshot reader"),
+                        new FlaggedOption("memory_budget", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "memory-budget", "MB shared by the pathways converted in parallel. A pathway starts only when its estimated footprint fits; smaller pathways may overtake larger ones waiting. 0 for half of the maximum heap"),
+                        new FlaggedOption("prefetch", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "prefetch", "Number of pathways whose data is fetched by a background thread while a pathway is converted, when a single thread is used. Each uses its own database connection or snapshot reader and the memory budget. 0 to fetch and convert in turn"),
+                        new FlaggedOption("jfr", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "jfr", "Records JDK Flight Recorder events of the pathway conversions, their database heavy phases, layout validations and file writes together with the GC and lock events of the JVM into this file"),
                         new FlaggedOption("target", JSAP.STRING_PARSER, "ALL", JSAP.NOT_REQUIRED, 't', "target", "Target events to convert. Use either (1) comma separated event identifiers, (2) a given species (e.g. 'Homo sapiens') or  (3)'all' to export every pathway").setList(true).setListSeparator(','),
                         new QualifiedSwitch("verbose", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'v', "verbose", "Requests verbose output.")
                 }
@@ -58,26 +195,119 @@ public class Main {
         if (jsap.messagePrinted()) System.exit(1);
 
         verbose = config.getBoolean("verbose");
+        dashboard = new ProgressDashboard(verbose);
 
         String output = config.getString("output");
         Utils.outputCheck(output);
+        dependencyIndex = DependencyIndex.load(output);
+        neo4jHost = config.getString("host");
+        neo4jUser = config.getString("user");
+        neo4jPassword = config.getString("password");
+        hierarchical = config.getBoolean("hierarchical");
+        orthologyTemplates = config.getBoolean("orthology_templates");
+        speciesBulk = config.getBoolean("species_bulk");
+        metricsDir = config.getString("metrics");
+        reportFile = config.getString("report");
+        baselineFile = config.getString("compare");
+        if (reportFile != null) report = new PathwayReport();
+        evictionPolicy = new CacheEvictionPolicy(config.getDouble("heap_threshold"));
+        spillThreshold = Math.max(0, config.getInt("spill"));
+        parallelThreshold = Math.max(0, config.getInt("parallel_build"));
+        threads = Math.max(1, config.getInt("threads"));
+        prefetch = Math.max(0, config.getInt("prefetch"));
+        memoryBudget = config.getInt("memory_budget") > 0 ? config.getInt("memory_budget") * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 2;
+        if (config.getBoolean("watch") && (config.contains("snapshot") || config.contains("synthetic"))) {
+            reject(jsap, "Parameter 'watch' needs the mysql database and cannot be combined with 'snapshot' or 'synthetic'.");
+        }
+        if (speciesBulk && (threads > 1 || prefetch > 0 || hierarchical || orthologyTemplates)) {
+            reject(jsap, "Parameter 'species-bulk' cannot be combined with 'threads', 'prefetch', 'hierarchical' or 'orthology-templates'.");
+        }
+        evictionPolicy.setConverterCache(converterCache);
+        evictionPolicy.setGraphCacheCleaner(() -> {
+            if (isGraphInitialised) getGraphService(GeneralService.class).clearCache();
+        });
+        if (config.contains("jfr")) FlightRecorder.start(config.getString("jfr"));
+        if (config.contains("variants")) {
+            variants = new ArrayList<>();
+            for (String spec : config.getStringArray("variants")) variants.add(ExportOptions.parse(spec, variants.isEmpty()));
+        }
 
-        //Initialising ReactomeCore Neo4j configuration
+        //Check if target pathways are specified
+        String[] target = config.getStringArray("target");
+
+        long start = System.currentTimeMillis();
+        if (config.contains("snapshot") || config.contains("synthetic")) {
+            // Nothing is needed from the databases
+            if (config.contains("snapshot")) {
+                File snapshot = new File(config.getString("snapshot"));
+                source = new SnapshotInstanceSource(snapshot);
+                // The file is mapped once by the OS for all readers
+                sourceFactory = () -> new SnapshotInstanceSource(snapshot);
+            } else {
+                source = SyntheticReleaseGenerator.parse(config.getString("synthetic")).generate();
+                // Read only
+                sourceFactory = () -> source;
+            }
+            if (config.contains("serve")) {
+                serve(config.getInt("serve"));
+                return;
+            }
+            if (config.contains("changed_ids")) convertChanged(config.getStringArray("changed_ids"), source.getReleaseNumber(), output);
+            else convertEvents(getTargetEvents(target), source.getReleaseNumber(), output);
+            dependencyIndex.save(output);
+            finished(start);
+            return;
+        }
+
+        checkRequired(jsap, config, "mysql_user", "mysql_password");
         mysqlDba = new MySQLAdaptor(config.getString("mysql_host"),
                 config.getString("mysql_db"),
                 config.getString("mysql_user"),
                 config.getString("mysql_password"),
                 Integer.parseInt(config.getString("mysql_port"))); // Cannot auto-parse? This is weird.
+        source = new MySQLInstanceSource(mysqlDba);
+        sourceFactory = () -> new MySQLInstanceSource(new MySQLAdaptor(config.getString("mysql_host"),
+                config.getString("mysql_db"),
+                config.getString("mysql_user"),
+                config.getString("mysql_password"),
+                Integer.parseInt(config.getString("mysql_port"))));
 
-        ReactomeGraphCore.initialise(config.getString("host"), config.getString("user"), config.getString("password"), GraphNeo4jConfig.class);
+        if (config.contains("changed_ids")) {
+            convertChanged(config.getStringArray("changed_ids"), source.getReleaseNumber(), output);
+            dependencyIndex.save(output);
+            finished(start);
+            return;
+        }
 
+        if (config.contains("serve")) {
+            serve(config.getInt("serve"));
+            return;
+        }
 
-        //Check if target pathways are specified
-        String[] target = config.getStringArray("target");
+        if (config.getBoolean("watch")) {
+            watch(config.getInt("poll_interval"), config.getInt("debounce"), output);
+            return;
+        }
 
-        DBInfo dbInfo = ReactomeGraphCore.getService(GeneralService.class).getDBInfo();
+        if (config.contains("extract")) {
+            List<GKInstance> events = new ArrayList<>();
+            getTargetEvents(target).values().forEach(events::addAll);
+            info(String.format("Extracting %d events into %s", events.size(), config.getString("extract")));
+            new SnapshotWriter(mysqlDba).write(events, new File(config.getString("extract")));
+            finished(start);
+            return;
+        }
+
+        if (config.getBoolean("mysql_only")) {
+            // Release version, species and pathways come from the relational database
+            convertEvents(getTargetEvents(target), source.getReleaseNumber(), output);
+            dependencyIndex.save(output);
+            finished(start);
+            return;
+        }
+
+        DBInfo dbInfo = getGraphService(GeneralService.class).getDBInfo();
 
-        long start = System.currentTimeMillis();
         if (target.length > 1) {
             convertPathways(ArrayUtils.toArray(target), dbInfo.getVersion(), output);
         } else {
@@ -85,7 +315,7 @@ public class Main {
             if (DatabaseObjectUtils.isStId(aux) || DatabaseObjectUtils.isDbId(aux)) {
                 convertPathways(target, dbInfo.getVersion(), output);
             } else {
-                SpeciesService speciesService = ReactomeGraphCore.getService(SpeciesService.class);
+                SpeciesService speciesService = getGraphService(SpeciesService.class);
                 if (aux.toLowerCase().equals("all")) {
                     convertSpeciesList(speciesService.getSpecies(), dbInfo.getVersion(), output);
                 } else {
@@ -98,24 +328,438 @@ public class Main {
                 }
             }
         }
-        info(String.format("Finished in %s", Utils.getTimeFormatted(System.currentTimeMillis() - start)));
+        dependencyIndex.save(output);
+        finished(start);
+    }
+
+    /**
+     * The graph core is initialised on first use only, so that the modes reading from the relational database
+     * neither start the Spring context nor need a neo4j server.
+     */
+    private static synchronized <T> T getGraphService(Class<T> clazz) {
+        if (!isGraphInitialised) {
+            if (neo4jPassword == null) {
+                error("Parameter 'password' is required to use the neo4j database.");
+                System.exit(1);
+            }
+            long start = System.currentTimeMillis();
+            ReactomeGraphCore.initialise(neo4jHost, neo4jUser, neo4jPassword, GraphNeo4jConfig.class);
+            isGraphInitialised = true;
+            info(String.format("Initialised the graph core in %d ms", System.currentTimeMillis() - start));
+        }
+        return ReactomeGraphCore.getService(clazz);
+    }
+
+    private static void checkRequired(SimpleJSAP jsap, JSAPResult config, String... options) {
+        for (String option : options) {
+            if (!config.contains(option)) reject(jsap, "Parameter '" + option + "' is required in this mode.");
+        }
+    }
+
+    private static void reject(SimpleJSAP jsap, String msg) {
+        System.err.println(msg);
+        System.err.println(jsap.getUsage());
+        System.exit(1);
+    }
+
+    /**
+     * Resolves the target events from the {@link InstanceSource} only, grouped by species
+     * for species targets.
+     */
+    private static Map<String, List<GKInstance>> getTargetEvents(String[] target) throws Exception {
+        Map<String, List<GKInstance>> rtn = new LinkedHashMap<>();
+        String aux = target[0];
+        if (target.length > 1 || DatabaseObjectUtils.isStId(aux) || DatabaseObjectUtils.isDbId(aux)) {
+            List<GKInstance> events = new ArrayList<>();
+            for (String identifier : target) {
+                GKInstance event = source.fetchEvent(identifier);
+                if (event != null) events.add(event);
+                else error(identifier + " cannot be converted. Reason: This identifier does not belong to an Event");
+            }
+            rtn.put(EVENTS, events);
+            return rtn;
+        }
+        Collection<GKInstance> pathways = source.fetchPathways(aux.toLowerCase().equals("all") ? null : aux);
+        if (pathways.isEmpty()) {
+            error(aux + " cannot be converted. Reason: This identifier does not belong to a Pathway or a Species");
+        }
+        for (GKInstance pathway : pathways) {
+            GKInstance species = (GKInstance) pathway.getAttributeValue(ReactomeJavaConstants.species);
+            String name = species == null ? "No species" : species.getDisplayName();
+            rtn.computeIfAbsent(name, k -> new ArrayList<>()).add(pathway);
+        }
+        return rtn;
+    }
+
+    private static void convertEvents(Map<String, List<GKInstance>> nameToEvents, Integer version, String output) throws Exception {
+        if (!nameToEvents.containsKey(EVENTS)) buildEventHierarchyIndex();
+        List<String> names = new ArrayList<>(nameToEvents.keySet());
+        // Templates are created from the source pathways
+        if (orthologyTemplates && names.remove(SOURCE_SPECIES)) names.add(0, SOURCE_SPECIES);
+        // All species are known upfront for the ETA
+        Map<String, ProgressDashboard.Species> nameToProgress = new LinkedHashMap<>();
+        for (String name : names) {
+            List<GKInstance> events = nameToEvents.get(name);
+            long cost = events.stream().mapToLong(event -> getCost(event.getDBID())).sum();
+            nameToProgress.put(name, dashboard.addSpecies(name, events.size(), cost));
+        }
+        for (String name : names) {
+            List<Conversion> conversions = new ArrayList<>();
+            for (GKInstance event : nameToEvents.get(name)) conversions.add(new Conversion(getIdentifier(event), event.getDBID()));
+            convert(conversions, nameToProgress.get(name), identifier -> createConverter(identifier, version), output);
+        }
+    }
+
+    /**
+     * Converts the pathways of a species, in parallel if more than one thread is used. Pathways are then
+     * admitted in order as long as their estimated footprints fit into the memory budget.
+     */
+    private static void convert(List<Conversion> conversions, ProgressDashboard.Species progress, ConverterFactory factory, String output) {
+        try {
+            if (threads == 1 && prefetch > 0) {
+                prefetch(conversions, progress, factory, output);
+                return;
+            }
+            if (threads == 1) {
+                for (Conversion conversion : conversions) convert(conversion, progress, factory, output);
+                return;
+            }
+            AdmissionQueue<Conversion> queue = new AdmissionQueue<>(memoryBudget);
+            for (Conversion conversion : conversions) queue.add(conversion, getFootprint(conversion.dbId));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(getWorkers().submit(() -> {
+                    if (workerSource.get() == null) workerSource.set(sourceFactory.call());
+                    for (AdmissionQueue.Ticket<Conversion> ticket = queue.take(); ticket != null; ticket = queue.take()) {
+                        try {
+                            convert(ticket.getItem(), progress, factory, output);
+                        } finally {
+                            queue.release(ticket);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            progress.finish();
+        }
+    }
+
+    private static void convert(Conversion conversion, ProgressDashboard.Species progress, ConverterFactory factory, String output) {
+        ProgressDashboard.Task task = progress.start(conversion.identifier, getCost(conversion.dbId));
+        try {
+            convert(conversion.identifier, factory, output);
+        } catch (Exception e) {
+            logger.error(conversion.identifier + ": " + e.getMessage(), e);
+        } finally {
+            task.done();
+        }
+    }
+
+    /**
+     * Converts the pathways in turn on the calling thread while a background thread fetches the data of the
+     * following ones. Instance sources are not thread-safe, so each pathway holds one of prefetch + 1 sources from
+     * its fetch until it is written, which bounds the lookahead. Prefetched pathways also take their estimated
+     * footprints from the memory budget until they are written.
+     */
+    private static void prefetch(List<Conversion> conversions, ProgressDashboard.Species progress, ConverterFactory factory, String output) throws Exception {
+        BlockingQueue<InstanceSource> sources = getPrefetchSources();
+        AdmissionQueue<Conversion> queue = new AdmissionQueue<>(memoryBudget);
+        for (Conversion conversion : conversions) queue.add(conversion, getFootprint(conversion.dbId));
+        BlockingQueue<Prefetched> prefetched = new LinkedBlockingQueue<>();
+        Future<?> future = getPrefetcher().submit(() -> {
+            try {
+                for (AdmissionQueue.Ticket<Conversion> ticket = queue.take(); ticket != null; ticket = queue.take()) {
+                    prefetched.put(fetch(ticket, sources.take(), factory));
+                }
+            } finally {
+                prefetched.put(Prefetched.END);
+            }
+            return null;
+        });
+        for (Prefetched next = prefetched.take(); next != Prefetched.END; next = prefetched.take()) {
+            Conversion conversion = next.ticket.getItem();
+            ProgressDashboard.Task task = progress.start(conversion.identifier, getCost(conversion.dbId));
+            resumeReportRow(next.row);
+            try {
+                if (next.error != null) throw next.error;
+                write(next.converter, conversion.identifier, next.source, output);
+            } catch (Exception e) {
+                logger.error(conversion.identifier + ": " + e.getMessage(), e);
+            } finally {
+                finishReportRow();
+                task.done();
+                queue.release(next.ticket);
+                sources.put(next.source);
+            }
+        }
+        future.get();
+    }
+
+    /**
+     * Fetches the data of a pathway on the prefetch thread.
+     */
+    private static Prefetched fetch(AdmissionQueue.Ticket<Conversion> ticket, InstanceSource source, ConverterFactory factory) {
+        Prefetched rtn = new Prefetched(ticket, source);
+        startReportRow(ticket.getItem().identifier);
+        try {
+            rtn.converter = factory.create(ticket.getItem().identifier);
+            rtn.converter.setInstanceSource(source);
+            rtn.converter.fetch();
+        } catch (Exception e) {
+            rtn.error = e;
+        }
+        rtn.row = suspendReportRow();
+        return rtn;
+    }
+
+    private static synchronized ExecutorService getPrefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+
+    /**
+     * @return the sources used by prefetched pathways, created once for the run
+     */
+    private static BlockingQueue<InstanceSource> getPrefetchSources() throws Exception {
+        if (prefetchSources == null) {
+            prefetchSources = new ArrayBlockingQueue<>(prefetch + 1);
+            prefetchSources.add(source);
+            for (int i = 0; i < prefetch; i++) prefetchSources.add(sourceFactory.call());
+        }
+        return prefetchSources;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            AtomicInteger count = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    /**
+     * @return the instance source of the current worker, or the one of the run outside of workers
+     */
+    private static InstanceSource getSource() {
+        InstanceSource rtn = workerSource.get();
+        return rtn == null ? source : rtn;
+    }
+
+    /**
+     * @return the estimated bytes used while converting a pathway, from its number of reactions and an
+     * average number of participants per reaction
+     */
+    private static long getFootprint(Long dbId) {
+        long[] reactions = eventIndex == null ? null : eventIndex.getReactions(dbId);
+        long count = reactions == null ? 1L : reactions.length;
+        return BASE_BYTES + count * (BYTES_PER_REACTION + PARTICIPANTS_PER_REACTION * BYTES_PER_PARTICIPANT);
+    }
+
+    /**
+     * @return the estimated cost of converting a pathway: the number of its reactions at any level if the event
+     * hierarchy is indexed
+     */
+    private static long getCost(Long dbId) {
+        long[] reactions = eventIndex == null ? null : eventIndex.getReactions(dbId);
+        return reactions == null ? 1L : reactions.length + 1L;
+    }
+
+    private static void writeToFile(SbmlConverter c, String output) {
+        try {
+            if (variants == null) {
+                c.convert();
+                c.writeToFile(output);
+            } else {
+                c.writeToFile(output, variants);
+            }
+        } finally {
+            c.close();
+        }
+        if (isFirstFileWritten.compareAndSet(false, true)) {
+            long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+            info(String.format("First file written %d ms after the JVM started", System.currentTimeMillis() - jvmStart));
+        }
+    }
+
+    private static void convertEvent(String identifier, Integer version, String output) throws Exception {
+        convert(identifier, id -> createConverter(id, version), output);
+    }
+
+    /**
+     * Converts and writes a pathway with the instance source of the current thread.
+     */
+    private static void convert(String identifier, ConverterFactory factory, String output) throws Exception {
+        startReportRow(identifier);
+        try {
+            SbmlConverterForRel c = factory.create(identifier);
+            InstanceSource source = getSource();
+            c.setInstanceSource(source);
+            write(c, identifier, source, output);
+        } finally {
+            finishReportRow();
+        }
+    }
+
+    private static void write(SbmlConverterForRel c, String identifier, InstanceSource source, String output) {
+        writeToFile(c, output);
+        converted(identifier, c.getTouchedIds(), source);
+    }
+
+    private static SbmlConverterForRel createConverter(String identifier, Integer version) {
+        SbmlConverterForRel c = new SbmlConverterForRel(identifier, version);
+        configure(c);
+        return c;
+    }
+
+    private static SbmlConverterForRel createGraphConverter(String stId, Integer version) {
+        SbmlConverterForRel c = new SbmlConverterForRel(stId,
+                                                        version,
+                                                        getGraphService(AdvancedDatabaseObjectService.class));
+        configure(c);
+        return c;
+    }
+
+    private static void configure(SbmlConverterForRel c) {
+        c.setConverterCache(converterCache);
+        c.setHierarchical(hierarchical);
+        c.setUseOrthologyTemplate(orthologyTemplates);
+        c.setSpillThreshold(spillThreshold);
+        c.setParallelThreshold(parallelThreshold);
+        c.setEventHierarchyIndex(eventIndex);
+    }
+
+    /**
+     * Records the instances used by a converted pathway and evicts the least recently used ones from the caches
+     * if the heap is under pressure.
+     * @param source the instance source used for the pathway
+     */
+    private static void converted(String identifier, Set<Long> touchedIds, InstanceSource source) {
+        dependencyIndex.update(identifier, touchedIds);
+        evictionPolicy.used(touchedIds);
+        evictionPolicy.evictIfNeeded(source);
+    }
+
+    private static void watch(int pollInterval, int debounce, String output) throws Exception {
+        if (dependencyIndex.isEmpty()) {
+            error(String.format("No %s found in %s. Please run a full export first.", DependencyIndex.FILE_NAME, output));
+            return;
+        }
+        Integer version = source.getReleaseNumber();
+        buildEventHierarchyIndex();
+        ChangeWatcher watcher = new ChangeWatcher((MySQLInstanceSource) source, dependencyIndex, new ChangeWatcher.Listener() {
+            @Override
+            public void instancesChanged(Set<Long> dbIds) throws Exception {
+                converterCache.invalidate(dbIds);
+                Helper.evictCreators(dbIds);
+                // hasEvent may have changed
+                updateEventHierarchyIndex(dbIds);
+            }
+
+            @Override
+            public void export(String pathwayId) throws Exception {
+                long start = System.currentTimeMillis();
+                convertEvent(pathwayId, version, output);
+                info(String.format("Re-exported %s in %s", pathwayId, Utils.getTimeFormatted(System.currentTimeMillis() - start)));
+            }
+
+            @Override
+            public void exported() throws Exception {
+                dependencyIndex.save(output);
+                writeMetrics();
+                writeReport();
+            }
+        });
+        watcher.setPollInterval(pollInterval * 1000L);
+        watcher.setDebounce(debounce * 1000L);
+        watcher.watch();
+    }
+
+    private static void serve(int port) throws Exception {
+        buildEventHierarchyIndex();
+        ExportServer server = new ExportServer(source, converterCache, eventIndex, source.getReleaseNumber());
+        server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            writeMetrics();
+        }));
+        server.join();
+    }
+
+    private static void convertChanged(String[] changedIds, Integer version, String output) throws Exception {
+        if (dependencyIndex.isEmpty()) {
+            error(String.format("No %s found in %s. Please run a full export first.", DependencyIndex.FILE_NAME, output));
+            return;
+        }
+        List<Long> dbIds = new ArrayList<>();
+        for (String changedId : changedIds) dbIds.add(Long.valueOf(changedId.trim()));
+        Set<String> affected = dependencyIndex.getAffectedPathways(dbIds);
+        info(String.format("%d pathway%s affected by %d changed instance%s", affected.size(), affected.size() == 1 ? " is" : "s are", dbIds.size(), dbIds.size() > 1 ? "s" : ""));
+        if (affected.isEmpty()) return;
+        convertEvents(getTargetEvents(affected.toArray(new String[0])), version, output);
+    }
+
+    private static void buildEventHierarchyIndex() throws Exception {
+        long start = System.currentTimeMillis();
+        eventIndex = source.buildEventHierarchyIndex();
+        info(String.format("Indexed the event hierarchy of %d pathways in %d ms", eventIndex.getPathways().size(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Indexes the hasEvent slots of the changed pathways again, which have been reloaded, and removes the deleted
+     * ones. Other changed instances are not in the index.
+     */
+    @SuppressWarnings("unchecked")
+    private static void updateEventHierarchyIndex(Collection<Long> dbIds) throws Exception {
+        for (Long dbId : dbIds) {
+            GKInstance instance = source.fetchInstance(dbId);
+            if (instance == null) eventIndex.removePathway(dbId);
+            else if (instance.getSchemClass().isa(ReactomeJavaConstants.Pathway)) eventIndex.addPathway(dbId, instance.getAttributeValuesList(ReactomeJavaConstants.hasEvent));
+        }
+    }
+
+    private static String getIdentifier(GKInstance event) throws Exception {
+        GKInstance stableId = (GKInstance) event.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
+        if (stableId == null) return event.getDBID().toString();
+        return (String) stableId.getAttributeValue(ReactomeJavaConstants.identifier);
     }
 
     private static void convertPathways(String[] identifiers, Integer version, String output) {
         info(String.format("Converting %d event%s", identifiers.length, identifiers.length > 1 ? "s" : ""));
-        DatabaseObjectService dbs = ReactomeGraphCore.getService(DatabaseObjectService.class);
+        DatabaseObjectService dbs = getGraphService(DatabaseObjectService.class);
         for (String identifier : identifiers) {
+            startReportRow(identifier);
             try {
                 Event p = dbs.findById(identifier);
                 info(String.format("\t>%s: %s", p.getStId(), p.getDisplayName()));
                 SbmlConverterForRel c = new SbmlConverterForRel(p.getStId(),
                         version,
-                        ReactomeGraphCore.getService(AdvancedDatabaseObjectService.class));
-                c.setDBA(mysqlDba);
-                c.convert();
-                c.writeToFile(output);
+                        getGraphService(AdvancedDatabaseObjectService.class));
+                c.setConverterCache(converterCache);
+                c.setHierarchical(hierarchical);
+                c.setUseOrthologyTemplate(orthologyTemplates);
+                c.setSpillThreshold(spillThreshold);
+                c.setParallelThreshold(parallelThreshold);
+                c.setInstanceSource(source);
+                writeToFile(c, output);
+                converted(p.getStId(), c.getTouchedIds(), source);
             } catch (ClassCastException e) {
                 error(identifier + " cannot be converted. Reason: This identifier does not belong to a Pathway");
+            } finally {
+                finishReportRow();
             }
         }
     }
@@ -128,31 +772,147 @@ public class Main {
 
     private static void convertSpeciesList(List<Species> speciesList, Integer version, String output) {
         info(String.format("Converting %d species", speciesList.size()));
-        SchemaService schemaService = ReactomeGraphCore.getService(SchemaService.class);
+        if (orthologyTemplates) {
+            // Templates are created from the source pathways
+            speciesList = new ArrayList<>(speciesList);
+            speciesList.sort(Comparator.comparing(species -> !SOURCE_SPECIES.equals(species.getDisplayName())));
+        }
+        try {
+            buildEventHierarchyIndex();
+        } catch (Exception e) {
+            // Contained reactions are collected via hasEvent for each pathway then
+            logger.error(e.getMessage(), e);
+        }
+        SchemaService schemaService = getGraphService(SchemaService.class);
         for (Species species : speciesList) {
             Collection<Pathway> pathways = schemaService.getByClass(Pathway.class, species);
-            int total = pathways.size();
-            AtomicInteger i = new AtomicInteger(0);
-            ProgressBar progressBar = new ProgressBar(species.getDisplayName(), total, verbose);
-            progressBar.start();
-            try {
-                // Check from parallel to avoid any thread issues for the time being
-//                pathways.stream().parallel().forEach(pathway -> {
-                pathways.stream().forEach(pathway -> {
-                    progressBar.update(pathway.getStId(), i.get());
-                    SbmlConverterForRel c = new SbmlConverterForRel(pathway.getStId(),
-                                                                    version,
-                                                                    ReactomeGraphCore.getService(AdvancedDatabaseObjectService.class));
-                    c.setDBA(mysqlDba);
-                    c.convert();
-                    c.writeToFile(output);
-                    if (i.incrementAndGet() % 10 == 0) ReactomeGraphCore.getService(GeneralService.class).clearCache();
-                });
-                progressBar.done();
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-                progressBar.interrupt();
+            long cost = pathways.stream().mapToLong(pathway -> getCost(pathway.getDbId())).sum();
+            ProgressDashboard.Species progress = dashboard.addSpecies(species.getDisplayName(), pathways.size(), cost);
+            if (speciesBulk) {
+                convertSpeciesData(species, pathways, version, output, progress);
+                continue;
+            }
+            List<Conversion> conversions = new ArrayList<>();
+            for (Pathway pathway : pathways) conversions.add(new Conversion(pathway.getStId(), pathway.getDbId()));
+            convert(conversions, progress, stId -> createGraphConverter(stId, version), output);
+        }
+    }
+
+    /**
+     * Converts the pathways of a species from its {@link SpeciesData}, retrieved once for all of them. The pathways
+     * are converted in turn on the calling thread, which the command line enforces.
+     */
+    private static void convertSpeciesData(Species species, Collection<Pathway> pathways, Integer version, String output, ProgressDashboard.Species progress) {
+        try {
+            long start = System.currentTimeMillis();
+            SpeciesData speciesData = DataFactory.getSpeciesData(species.getDbId(), getGraphService(AdvancedDatabaseObjectService.class));
+            info(String.format("Retrieved the data of %s in %s", species.getDisplayName(), Utils.getTimeFormatted(System.currentTimeMillis() - start)));
+            for (Pathway pathway : pathways) {
+                ProgressDashboard.Task task = progress.start(pathway.getStId(), getCost(pathway.getDbId()));
+                startReportRow(pathway.getStId());
+                try {
+                    SbmlConverter c = new SbmlConverter(pathway, version, speciesData);
+                    c.setSpillThreshold(spillThreshold);
+                    c.setParallelThreshold(parallelThreshold);
+                    writeToFile(c, output);
+                    converted(pathway.getStId(), c.getTouchedIds(), source);
+                } catch (Exception e) {
+                    logger.error(pathway.getStId() + ": " + e.getMessage(), e);
+                } finally {
+                    finishReportRow();
+                    task.done();
+                }
+            }
+        } finally {
+            progress.finish();
+        }
+    }
+
+    /**
+     * A pathway to be converted with the DB_ID used for its estimates.
+     */
+    private static class Conversion {
+        private final String identifier;
+        private final Long dbId;
+
+        Conversion(String identifier, Long dbId) {
+            this.identifier = identifier;
+            this.dbId = dbId;
+        }
+    }
+
+    /**
+     * A pathway whose data has been fetched by the prefetch thread, with the source it holds until it is written.
+     */
+    private static class Prefetched {
+        // Marks the end of the prefetched pathways of a species
+        private static final Prefetched END = new Prefetched(null, null);
+
+        private final AdmissionQueue.Ticket<Conversion> ticket;
+        private final InstanceSource source;
+        private SbmlConverterForRel converter;
+        private PathwayReport.Row row;
+        private Exception error;
+
+        Prefetched(AdmissionQueue.Ticket<Conversion> ticket, InstanceSource source) {
+            this.ticket = ticket;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Creates the configured converter of a pathway, without any instance source.
+     */
+    private interface ConverterFactory {
+        SbmlConverterForRel create(String identifier) throws Exception;
+    }
+
+    private static void finished(long start) {
+        if (workers != null) workers.shutdown();
+        if (prefetcher != null) prefetcher.shutdown();
+        dashboard.stop();
+        info(String.format("Finished in %s (peak heap: %s)", Utils.getTimeFormatted(System.currentTimeMillis() - start), Utils.getPeakHeapFormatted()));
+        writeMetrics();
+        writeReport();
+        FlightRecorder.stop();
+    }
+
+    private static void startReportRow(String stId) {
+        if (report != null) report.start(stId);
+    }
+
+    private static void finishReportRow() {
+        if (report != null) report.finish();
+    }
+
+    private static PathwayReport.Row suspendReportRow() {
+        return report == null ? null : report.suspend();
+    }
+
+    private static void resumeReportRow(PathwayReport.Row row) {
+        if (report != null) report.resume(row);
+    }
+
+    private static void writeReport() {
+        if (report == null) return;
+        try {
+            report.write(new File(reportFile));
+            info(String.format("Performance report of %d pathways written to %s", report.getRows().size(), reportFile));
+            if (baselineFile != null) {
+                List<PathwayReport.Row> baseline = PathwayReport.read(new File(baselineFile));
+                info(PathwayReport.formatComparison(baseline, report.getRows(), 20));
             }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private static void writeMetrics() {
+        if (metricsDir == null) return;
+        try {
+            Metrics.write(metricsDir);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
         }
     }
 
@@ -0,0 +1,83 @@
+package org.reactome.server.tools.sbml.converter;
+
+/**
+ * Settings of one SBML document produced by a {@link SbmlConverter}. Several variants of a pathway can be
+ * written from a single data fetch via {@link SbmlConverter#writeToFile(String, java.util.List)}.
+ *
+ * A variant is specified as flags joined by '+':
+ * <ul>
+ *     <li>identifiers: use identifiers.org URIs in the annotations</li>
+ *     <li>urls: use the original URLs in the annotations</li>
+ *     <li>layout: add the diagram layout if available (default)</li>
+ *     <li>nolayout: do not add the diagram layout</li>
+ * </ul>
+ * Flags not given in a variant keep the options of the converter writing it.
+ */
+public class ExportOptions {
+
+    public static final ExportOptions DEFAULT = new ExportOptions("", false, true);
+
+    private final String suffix;
+    // Null if not specified
+    private final Boolean useIdentifierURL;
+    private final Boolean includeLayout;
+
+    public ExportOptions(String suffix, boolean useIdentifierURL, boolean includeLayout) {
+        this(suffix, Boolean.valueOf(useIdentifierURL), Boolean.valueOf(includeLayout));
+    }
+
+    private ExportOptions(String suffix, Boolean useIdentifierURL, Boolean includeLayout) {
+        this.suffix = suffix;
+        this.useIdentifierURL = useIdentifierURL;
+        this.includeLayout = includeLayout;
+    }
+
+    /**
+     * @param spec  flags joined by '+', e.g. "identifiers+nolayout"
+     * @param first the first variant is written to the usual file name. Others get the spec as a suffix.
+     * @return options whose flags not in the spec are taken from the converter via {@link #withDefaults(ExportOptions)}
+     */
+    public static ExportOptions parse(String spec, boolean first) {
+        Boolean useIdentifierURL = null;
+        Boolean includeLayout = null;
+        for (String flag : spec.trim().toLowerCase().split("\\+")) {
+            switch (flag) {
+                case "identifiers": useIdentifierURL = true; break;
+                case "urls": useIdentifierURL = false; break;
+                case "layout": includeLayout = true; break;
+                case "nolayout": includeLayout = false; break;
+                default: throw new IllegalArgumentException("Unknown variant flag '" + flag + "' in '" + spec + "'");
+            }
+        }
+        String suffix = first ? "" : "." + spec.trim().toLowerCase().replace('+', '.');
+        return new ExportOptions(suffix, useIdentifierURL, includeLayout);
+    }
+
+    public ExportOptions withUseIdentifierURL(boolean useIdentifierURL) {
+        return new ExportOptions(suffix, Boolean.valueOf(useIdentifierURL), includeLayout);
+    }
+
+    /**
+     * @return these options with the flags not specified taken from the passed options
+     */
+    public ExportOptions withDefaults(ExportOptions defaults) {
+        return new ExportOptions(suffix,
+                useIdentifierURL == null ? defaults.isUseIdentifierURL() : useIdentifierURL,
+                includeLayout == null ? defaults.isIncludeLayout() : includeLayout);
+    }
+
+    /**
+     * @return appended to the target identifier for the file name
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public boolean isUseIdentifierURL() {
+        return useIdentifierURL == null ? DEFAULT.isUseIdentifierURL() : useIdentifierURL;
+    }
+
+    public boolean isIncludeLayout() {
+        return includeLayout == null ? DEFAULT.isIncludeLayout() : includeLayout;
+    }
+}
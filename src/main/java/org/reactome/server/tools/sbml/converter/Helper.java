@@ -10,11 +10,16 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -60,15 +65,14 @@ public class Helper {
 
     private static final String REACTOME_URI = "https://reactome.org/content/detail/";
     
-    // To control is we should use identifier URLs
-    private static boolean useIdentifierURL = false;
-    private static Map<String, String> url2identifier;
+    // Loaded on first use. Volatile since annotations may be built by several threads.
+    private static volatile Map<String, String> url2identifier;
+    // Creators interned by the DB_IDs of their Persons. Copies are attached to the documents.
+    private static Map<Long, Creator> creators = new ConcurrentHashMap<>();
+    // Person DB_ID -> DB_IDs of the Affiliations its creator was built from
+    private static Map<Long, Set<Long>> creatorAffiliations = new ConcurrentHashMap<>();
     
-    public static void setUseIdentifierURL(boolean use) {
-        useIdentifierURL = use;
-    }
-
-    static void addAnnotations(Species s, ParticipantDetails participant) {
+    static void addAnnotations(Species s, ParticipantDetails participant, ExportOptions options) {
         PhysicalEntity pe = participant.getPhysicalEntity();
 
         Helper.addNotes(s, participant.getExplanation());
@@ -89,14 +93,16 @@ public class Helper {
                 litrefs.add(url);
             }
         }
-        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, litrefs);
+        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, options, litrefs);
 
         if (pe instanceof Complex || pe instanceof EntitySet || pe instanceof Polymer) {
-            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS, REACTOME_URI + pe.getStId());
-            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_HAS_PART, participant.getUrls());
+            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS, options, REACTOME_URI + pe.getStId());
+            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_HAS_PART, options, participant.getUrls());
         } else {
-            participant.addUrl(REACTOME_URI + pe.getStId());
-            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS, participant.getUrls());
+            // Not added to the participant, which is shared by all variants
+            List<String> urls = participant.getUrls() == null ? new ArrayList<>() : new ArrayList<>(participant.getUrls());
+            urls.add(REACTOME_URI + pe.getStId());
+            Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS, options, urls);
 
             if (pe instanceof EntityWithAccessionedSequence) {
                 EntityWithAccessionedSequence ewas = (EntityWithAccessionedSequence) pe;
@@ -108,7 +114,7 @@ public class Helper {
                         psis.add(url);
                     }
                 }
-                Helper.addCVTerm(s, CVTerm.Qualifier.BQB_HAS_VERSION, psis);
+                Helper.addCVTerm(s, CVTerm.Qualifier.BQB_HAS_VERSION, options, psis);
             }
         }
 
@@ -117,26 +123,26 @@ public class Helper {
             String s1 = REACTOME_URI + p.getStId();
             infTos.add(s1);
         }
-        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_HOMOLOG_TO, infTos);
+        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_HOMOLOG_TO, options, infTos);
 
         List<String> infFroms = new ArrayList<>();
         for (PhysicalEntity p : pe.getInferredFrom()) {
             String s1 = REACTOME_URI + p.getStId();
             infFroms.add(s1);
         }
-        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_HOMOLOG_TO, infFroms);
+        Helper.addCVTerm(s, CVTerm.Qualifier.BQB_IS_HOMOLOG_TO, options, infFroms);
     }
 
-    static void addCVTerms(Reaction reaction, ReactionBase rxn) {
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, REACTOME_URI + rxn.getStId());
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, rxn.getGoTerms());
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, rxn.getEcNumbers());
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, rxn.getLiteratureRefs());
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_OCCURS_IN, rxn.getDiseases());
-        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQM_HAS_INSTANCE, rxn.getCrossReferences());
+    static void addCVTerms(Reaction reaction, ReactionBase rxn, ExportOptions options) {
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, options, REACTOME_URI + rxn.getStId());
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, options, rxn.getGoTerms());
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS, options, rxn.getEcNumbers());
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, options, rxn.getLiteratureRefs());
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQB_OCCURS_IN, options, rxn.getDiseases());
+        Helper.addCVTerm(reaction, CVTerm.Qualifier.BQM_HAS_INSTANCE, options, rxn.getCrossReferences());
     }
 
-    static void addAnnotations(SBase sBase, Event event) {
+    static void addAnnotations(SBase sBase, Event event, ExportOptions options) {
         //When converting an orphan reaction, this event is null and no annotations have to be added
         if(event == null) return;
 
@@ -179,7 +185,7 @@ public class Helper {
         uris.add(REACTOME_URI + event.getStId());
         GO_BiologicalProcess go = event.getGoBiologicalProcess();
         if (go != null) uris.add(go.getUrl());
-        Helper.addCVTerm(annotation, CVTerm.Qualifier.BQB_IS, uris);
+        Helper.addCVTerm(annotation, CVTerm.Qualifier.BQB_IS, options, uris);
 
         List<String> litRefs = new ArrayList<>();
         for (Publication p : event.getLiteratureReference()) {
@@ -190,38 +196,36 @@ public class Helper {
                 }
             }
         }
-        Helper.addCVTerm(annotation, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, litRefs);
+        Helper.addCVTerm(annotation, CVTerm.Qualifier.BQB_IS_DESCRIBED_BY, options, litRefs);
 
         sBase.setAnnotation(annotation);
     }
 
-    private static void addCVTerm(SBase sBase, CVTerm.Qualifier qualifier, List<String> uris) {
-        addCVTerm(sBase, qualifier, uris == null ? null : uris.toArray(new String[0]));
+    private static void addCVTerm(SBase sBase, CVTerm.Qualifier qualifier, ExportOptions options, List<String> uris) {
+        addCVTerm(sBase, qualifier, options, uris == null ? null : uris.toArray(new String[0]));
     }
 
-    static void addCVTerm(SBase sBase, CVTerm.Qualifier qualifier, String... uris) {
+    static void addCVTerm(SBase sBase, CVTerm.Qualifier qualifier, ExportOptions options, String... uris) {
         if (uris != null && uris.length > 0) {
             CVTerm term = new CVTerm(qualifier);
-            for (String s : uris) term.addResourceURI(convertUrl(s));
+            for (String s : uris) term.addResourceURI(convertUrl(s, options));
             sBase.addCVTerm(term);
         }
     }
 
-    private static void addCVTerm(Annotation annotation, CVTerm.Qualifier qualifier, List<String> uris) {
+    private static void addCVTerm(Annotation annotation, CVTerm.Qualifier qualifier, ExportOptions options, List<String> uris) {
         if (!uris.isEmpty()) {
             CVTerm term = new CVTerm(qualifier);
-            for (String s : uris) term.addResourceURI(convertUrl(s));
+            for (String s : uris) term.addResourceURI(convertUrl(s, options));
             annotation.addCVTerm(term);
         }
     }
     
-    private static String convertUrl(String url) {
-        if (!useIdentifierURL)
+    // Package-private for HelperBenchmark
+    static String convertUrl(String url, ExportOptions options) {
+        if (!options.isUseIdentifierURL())
             return url;
-        if (url2identifier == null) {
-            // Need to load
-            url2identifier = loadUrl2identigier();
-        }
+        Map<String, String> url2identifier = getUrl2identifier();
         for (String key : url2identifier.keySet()) {
             if (url.startsWith(key)) {
                 // Get the id from url
@@ -235,6 +239,21 @@ public class Helper {
         return url;
     }
     
+    private static Map<String, String> getUrl2identifier() {
+        Map<String, String> rtn = url2identifier;
+        if (rtn == null) {
+            synchronized (Helper.class) {
+                rtn = url2identifier;
+                if (rtn == null) {
+                    // Need to load
+                    rtn = loadUrl2identigier();
+                    url2identifier = rtn;
+                }
+            }
+        }
+        return rtn;
+    }
+
     private static Map<String, String> loadUrl2identigier() {
         Map<String, String> rtn = new HashedMap<>();
         try {
@@ -263,7 +282,7 @@ public class Helper {
         if (content != null) addNotes(sBase, content.toArray(new String[0]));
     }
 
-    static synchronized void addNotes(SBase sBase, String... content) {
+    static void addNotes(SBase sBase, String... content) {
         if (content != null && content.length > 0) {
             StringJoiner joiner = new StringJoiner(System.lineSeparator(), "<notes><p xmlns=\"http://www.w3.org/1999/xhtml\">", "</p></notes>");
             for (String s : content) {
@@ -275,7 +294,7 @@ public class Helper {
             String notes = joiner.toString();
 
             try {
-                XMLNode node = XMLNode.convertStringToXMLNode(notes);
+                XMLNode node = parseNotes(notes);
                 sBase.appendNotes(node);
             } catch (XMLStreamException e) {
                 logger.error(String.format("An error occurred while generating notes for '%s'", sBase.getId()), e);
@@ -283,6 +302,13 @@ public class Helper {
         }
     }
 
+    /**
+     * Only the parsing is serialized. The notes of different elements are built and appended concurrently.
+     */
+    private static synchronized XMLNode parseNotes(String notes) throws XMLStreamException {
+        return XMLNode.convertStringToXMLNode(notes);
+    }
+
     /**
      * Adds information about the reactomeDB version and jsbml version
      */
@@ -311,21 +337,43 @@ public class Helper {
         }
     }
 
+    /**
+     * Remove interned creators for changed Persons or Affiliations. Other creators are kept.
+     */
+    public static void evictCreators(Collection<Long> dbIds) {
+        Set<Long> changed = new HashSet<>(dbIds);
+        creators.keySet().removeIf(personId -> changed.contains(personId) ||
+                                               creatorAffiliations.getOrDefault(personId, Collections.emptySet()).stream().anyMatch(changed::contains));
+        creatorAffiliations.keySet().retainAll(creators.keySet());
+    }
+
     private static void addCreator(History history, Person person) {
-        Creator creator = new Creator();
-        creator.setFamilyName(person.getSurname() == null ? "" : person.getSurname());
-        creator.setGivenName(person.getFirstname() == null ? "" : person.getFirstname());
-        for (Affiliation a : person.getAffiliation()) creator.setOrganisation(a.getName().get(a.getName().size() - 1));
-        history.addCreator(creator);
+        Creator creator = person.getDbId() == null ? null : creators.get(person.getDbId());
+        if (creator == null) {
+            creator = new Creator();
+            creator.setFamilyName(person.getSurname() == null ? "" : person.getSurname());
+            creator.setGivenName(person.getFirstname() == null ? "" : person.getFirstname());
+            Set<Long> affiliations = new HashSet<>();
+            for (Affiliation a : person.getAffiliation()) {
+                creator.setOrganisation(a.getName().get(a.getName().size() - 1));
+                if (a.getDbId() != null) affiliations.add(a.getDbId());
+            }
+            if (person.getDbId() != null) {
+                creatorAffiliations.put(person.getDbId(), affiliations);
+                creators.put(person.getDbId(), creator);
+            }
+        }
+        // A Creator can be attached to one History only
+        history.addCreator(creator.clone());
     }
 
     /**
-     * Remove any html tags from the text.
+     * Remove any html tags from the text. Package-private for HelperBenchmark.
      *
      * @param notes String to be adjusted.
      * @return String with any <></> removed.
      */
-    private static String removeTags(String notes) {
+    static String removeTags(String notes) {
         // if we have an xhtml tags in the text it messes up parsing copied from old reactome code with some additions
         return notes.replaceAll("<->", " to ")
                 .replaceAll("\\p{Cntrl}+", " ")
@@ -338,13 +386,13 @@ public class Helper {
     }
 
     /**
-     * Creates a Date object from the string stored in ReactomeDB.
+     * Creates a Date object from the string stored in ReactomeDB. Package-private for HelperBenchmark.
      *
      * @param datetime String the date times as stored in ReactomeDB
      * @return Date object created from the String or null if this
      * cannot be parsed.
      */
-    private static Date formatDate(String datetime) {
+    static Date formatDate(String datetime) {
         DateFormat format = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss", Locale.ENGLISH);
         try {
             return format.parse(datetime);
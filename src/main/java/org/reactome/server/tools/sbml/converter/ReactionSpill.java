@@ -0,0 +1,315 @@
+package org.reactome.server.tools.sbml.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.reactome.server.tools.sbml.util.Metrics;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SBMLException;
+import org.sbml.jsbml.TidySBMLWriter;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * The reactions of a large model written to a temporary file in batches while the model is built. The model only
+ * keeps a shell with the id of each reaction, which is all the layout and the comp submodels need, and at most
+ * {@link #BATCH_SIZE} complete reactions are on the heap at any time.
+ * <p>
+ * The reactions of each batch are copied as XML events from the listOfReactions of the serialized batch into the
+ * file, whose root is a listOfReactions declaring the namespaces in scope in the batch. The document is assembled
+ * while it is written: it is serialized with its shells into a second temporary file, whose events are copied to
+ * the output with the content of the listOfReactions of the model replaced by the spilled reactions. Namespaces of
+ * the batches not bound the same way in the document are declared on its listOfReactions. The second file is
+ * deleted once the document is written, and the spilled reactions are kept until the spill is closed, so the
+ * document can be written any number of times until then.
+ */
+class ReactionSpill implements Closeable {
+
+    // Reactions serialized at once
+    static final int BATCH_SIZE = 100;
+
+    private static final String KEY = ReactionSpill.class.getName();
+    private static final String LIST_OF_REACTIONS = "listOfReactions";
+    // Depth of the listOfReactions of the model: sbml, model, listOfReactions
+    private static final int LIST_DEPTH = 3;
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        // Text is not split, so whitespace between elements can be told from content
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private final int level;
+    private final int version;
+    private final File file;
+    private final OutputStream os;
+    private final XMLEventWriter writer;
+    private SBMLDocument batch;
+    // The root of the file, copied from the first batch
+    private StartElement root;
+    private int count = 0;
+    private boolean closed = false;
+
+    private ReactionSpill(SBMLDocument document) throws IOException {
+        this.level = document.getLevel();
+        this.version = document.getVersion();
+        this.file = File.createTempFile("sbml-reactions-", ".xml");
+        try {
+            this.os = Files.newOutputStream(file.toPath());
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        try {
+            this.writer = OUTPUT_FACTORY.createXMLEventWriter(os, StandardCharsets.UTF_8.name());
+            writer.add(EVENT_FACTORY.createStartDocument(StandardCharsets.UTF_8.name()));
+        } catch (XMLStreamException e) {
+            os.close();
+            file.delete();
+            throw new IOException("Cannot create the reaction spill: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts spilling the reactions of a document, which keeps the spill until it is closed.
+     */
+    static ReactionSpill create(SBMLDocument document) throws IOException {
+        ReactionSpill rtn = new ReactionSpill(document);
+        document.putUserObject(KEY, rtn);
+        return rtn;
+    }
+
+    /**
+     * @return the spill of the document or null if its reactions are all in its model
+     */
+    static ReactionSpill get(SBMLDocument document) {
+        return (ReactionSpill) document.getUserObject(KEY);
+    }
+
+    /**
+     * @return the model the next reaction has to be created in. A shell with the same id has to be added to the
+     * model of the document.
+     */
+    Model getModel() {
+        if (batch == null) {
+            batch = new SBMLDocument(level, version);
+            batch.createModel();
+        }
+        return batch.getModel();
+    }
+
+    /**
+     * Writes the reactions created since the last batch to the file once there are {@link #BATCH_SIZE} of them.
+     */
+    void flush() throws IOException {
+        if (batch != null && batch.getModel().getReactionCount() >= BATCH_SIZE) writeBatch();
+    }
+
+    /**
+     * Writes the remaining reactions. No reaction can be added afterwards.
+     */
+    void finish() throws IOException {
+        try {
+            if (batch != null) writeBatch();
+            if (root != null) writer.add(EVENT_FACTORY.createEndElement(root.getName(), null));
+            writer.add(EVENT_FACTORY.createEndDocument());
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot finish the reaction spill: " + e.getMessage(), e);
+        } finally {
+            os.close();
+        }
+        Metrics.count(Metrics.SPILLED_REACTIONS, count);
+    }
+
+    private void writeBatch() throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new TidySBMLWriter().write(batch, bytes);
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(new ByteArrayInputStream(bytes.toByteArray()));
+            try {
+                List<Namespace> namespaces = new ArrayList<>();
+                StartElement list = findReactions(reader, null, namespaces);
+                if (list != null) {
+                    if (root == null) {
+                        namespaces.addAll(getNamespaces(list));
+                        root = EVENT_FACTORY.createStartElement(list.getName(), list.getAttributes(), byPrefix(namespaces));
+                        writer.add(root);
+                    }
+                    copyContent(reader, writer);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | SBMLException e) {
+            throw new IOException("Cannot serialize spilled reactions: " + e.getMessage(), e);
+        }
+        count += batch.getModel().getReactionCount();
+        batch = null;
+    }
+
+    /**
+     * Reads up to the start of the listOfReactions of the model.
+     *
+     * @param writer     receives the events before it. Null to skip them.
+     * @param namespaces receives the namespaces declared by the ancestors of the listOfReactions
+     * @return null if there is no listOfReactions
+     */
+    private static StartElement findReactions(XMLEventReader reader, XMLEventWriter writer, List<Namespace> namespaces) throws XMLStreamException {
+        Deque<List<Namespace>> ancestors = new ArrayDeque<>();
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                StartElement element = event.asStartElement();
+                if (ancestors.size() == LIST_DEPTH - 1 && element.getName().getLocalPart().equals(LIST_OF_REACTIONS)) {
+                    ancestors.descendingIterator().forEachRemaining(namespaces::addAll);
+                    return element;
+                }
+                ancestors.push(getNamespaces(element));
+            } else if (event.isEndElement()) ancestors.pop();
+            if (writer != null) writer.add(event);
+        }
+        return null;
+    }
+
+    private static List<Namespace> getNamespaces(StartElement element) {
+        List<Namespace> rtn = new ArrayList<>();
+        element.getNamespaces().forEachRemaining(ns -> rtn.add((Namespace) ns));
+        return rtn;
+    }
+
+    /**
+     * Copies the content of the element started last, without the whitespace before its end, and consumes the
+     * end of the element.
+     *
+     * @param writer null to skip the content
+     * @return the whitespace before the end of the element, or null if there is none
+     */
+    private static Characters copyContent(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+        int depth = 0;
+        Characters whitespace = null;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+                // Written only if more content follows
+                if (whitespace != null && writer != null) writer.add(whitespace);
+                whitespace = event.asCharacters();
+                continue;
+            }
+            if (event.isEndElement() && depth-- == 0) return whitespace;
+            if (event.isStartElement()) depth++;
+            if (writer != null) {
+                if (whitespace != null) writer.add(whitespace);
+                writer.add(event);
+            }
+            whitespace = null;
+        }
+        throw new XMLStreamException("The document ends within an element.");
+    }
+
+    /**
+     * Writes the document with its spilled reactions in place of the shells. The stream is flushed but not closed.
+     */
+    void write(SBMLDocument document, OutputStream out) throws IOException, XMLStreamException, SBMLException {
+        if (closed) throw new IllegalStateException("The spilled reactions of the document have been deleted.");
+        File shells = File.createTempFile("sbml-document-", ".xml");
+        try {
+            new TidySBMLWriter().write(document, shells);
+            XMLEventWriter target = OUTPUT_FACTORY.createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+            try (InputStream in = Files.newInputStream(shells.toPath());
+                 InputStream spilled = Files.newInputStream(file.toPath())) {
+                XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+                StartElement list = findReactions(reader, target, new ArrayList<>());
+                if (list == null) throw new XMLStreamException("No listOfReactions in the model of a spilled document.");
+                XMLEventReader reactions = INPUT_FACTORY.createXMLEventReader(spilled);
+                StartElement spilledRoot = null;
+                while (spilledRoot == null && reactions.hasNext()) {
+                    XMLEvent event = reactions.nextEvent();
+                    if (event.isStartElement()) spilledRoot = event.asStartElement();
+                }
+                target.add(declare(list, spilledRoot));
+                // Skip the shells
+                Characters whitespace = copyContent(reader, null);
+                if (spilledRoot != null) copyContent(reactions, target);
+                reactions.close();
+                if (whitespace != null) target.add(whitespace);
+                target.add(EVENT_FACTORY.createEndElement(list.getName(), null));
+                while (reader.hasNext()) target.add(reader.nextEvent());
+                reader.close();
+            }
+            target.flush();
+            target.close(); // Does not close the stream
+        } finally {
+            shells.delete();
+        }
+    }
+
+    /**
+     * Deletes the spilled reactions, closing the file first if it is still being written. The document cannot be
+     * written afterwards.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            os.close();
+        } catch (IOException e) {
+            // Nothing is read from the file anymore
+        }
+        file.delete();
+    }
+
+    /**
+     * @return the listOfReactions of the document declaring the namespaces of the spilled reactions that are not
+     * bound the same way in the document
+     */
+    private static StartElement declare(StartElement list, StartElement spilledRoot) {
+        if (spilledRoot == null) return list;
+        List<Namespace> namespaces = getNamespaces(list);
+        boolean changed = false;
+        for (Namespace ns : getNamespaces(spilledRoot)) {
+            if (ns.getNamespaceURI().equals(list.getNamespaceContext().getNamespaceURI(ns.getPrefix()))) continue;
+            namespaces.add(ns);
+            changed = true;
+        }
+        if (!changed) return list;
+        return EVENT_FACTORY.createStartElement(list.getName(), list.getAttributes(), byPrefix(namespaces));
+    }
+
+    /**
+     * @return one namespace per prefix, the last one passed for it
+     */
+    private static Iterator<Namespace> byPrefix(List<Namespace> namespaces) {
+        Map<String, Namespace> rtn = new LinkedHashMap<>();
+        for (Namespace ns : namespaces) rtn.put(ns.getPrefix(), ns);
+        return rtn.values().iterator();
+    }
+}
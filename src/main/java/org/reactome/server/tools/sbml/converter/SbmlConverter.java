@@ -1,9 +1,26 @@
 package org.reactome.server.tools.sbml.converter;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import org.reactome.server.graph.domain.model.Event;
 import org.reactome.server.graph.domain.model.NegativeRegulation;
@@ -12,9 +29,12 @@ import org.reactome.server.graph.domain.model.PhysicalEntity;
 import org.reactome.server.graph.domain.model.PositiveRegulation;
 import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
 import org.reactome.server.tools.sbml.data.DataFactory;
+import org.reactome.server.tools.sbml.data.SpeciesData;
 import org.reactome.server.tools.sbml.data.model.Participant;
 import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
 import org.reactome.server.tools.sbml.data.model.ReactionBase;
+import org.reactome.server.tools.sbml.util.FlightRecorder;
+import org.reactome.server.tools.sbml.util.Metrics;
 import org.reactome.server.tools.sbml.util.Utils;
 import org.sbml.jsbml.CVTerm;
 import org.sbml.jsbml.Compartment;
@@ -23,13 +43,17 @@ import org.sbml.jsbml.Model;
 import org.sbml.jsbml.ModifierSpeciesReference;
 import org.sbml.jsbml.Reaction;
 import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SBMLException;
 import org.sbml.jsbml.SBMLWriter;
+import org.sbml.jsbml.SBase;
 import org.sbml.jsbml.Species;
 import org.sbml.jsbml.SpeciesReference;
 import org.sbml.jsbml.TidySBMLWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.stream.XMLStreamException;
+
 /**
  * For a given event this converter uses the {@link DataFactory} to retrieve its target data and proceeds with the
  * conversion to a {@link SBMLDocument} taking advantage of the methods in the {@link Helper} class.
@@ -38,7 +62,7 @@ import org.slf4j.LoggerFactory;
  * @author Kostas Sidiropoulos (ksidiro@ebi.ac.uk)
  * @author Sarah Keating (skeating@ebi.ac.uk)
  */
-public class SbmlConverter {
+public class SbmlConverter implements AutoCloseable {
 
     private static Logger logger = LoggerFactory.getLogger("sbml-exporter");
 
@@ -53,11 +77,34 @@ public class SbmlConverter {
     public static final String SPECIES_PREFIX = "species_";
     public static final String COMPARTMENT_PREFIX = "compartment_";
 
+    // Default buffer size used when writing to streams
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
     private AdvancedDatabaseObjectService ads;
+    private SpeciesData speciesData;
     protected Pathway pathway;
     protected String targetStId;
 
     private SBMLDocument sbmlDocument = null;
+    // Options used by convert()
+    private ExportOptions options = ExportOptions.DEFAULT;
+    // Target data fetched once and shared by all documents converted from it
+    private Collection<ParticipantDetails> participantDetails;
+    private Collection<ReactionBase> reactionList;
+
+    // Models with more reactions spill them to a temporary file. 0 to keep them all on the heap.
+    private int spillThreshold = 0;
+    // Spills of the documents converted so far, deleted by close()
+    private final List<ReactionSpill> spills = new ArrayList<>();
+    // Models with more reactions fill in the annotations of their species and reactions in parallel. 0 for none.
+    private int parallelThreshold = 0;
+    // Species or reactions created before their annotations are filled in
+    private static final int BUILD_CHUNK = 256;
+
+    // Spans the fetch, builds and writes of the target on the converting thread. Committed by close().
+    private FlightRecorder.PathwayConversion conversionEvent;
+    private long fetchNanos = 0L;
+    private boolean fetchedAhead = false;
 
     private long metaid_count = 0L;
     private Set<String> existingObjects = new HashSet<>();
@@ -72,6 +119,21 @@ public class SbmlConverter {
         this.targetStId = event.getStId();
         this.reactomeVersion = version;
         this.ads = ads;
+        setPathway(event);
+    }
+
+    /**
+     * Creates a converter that assembles the target data from a species-wide snapshot retrieved
+     * once with {@link DataFactory#getSpeciesData} instead of querying the database per pathway.
+     */
+    public SbmlConverter(Event event, Integer version, SpeciesData speciesData) {
+        this.targetStId = event.getStId();
+        this.reactomeVersion = version;
+        this.speciesData = speciesData;
+        setPathway(event);
+    }
+
+    private void setPathway(Event event) {
         if (event instanceof Pathway) {
             this.pathway = (Pathway) event;
         } else {
@@ -80,11 +142,73 @@ public class SbmlConverter {
         }
     }
 
+    public ExportOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Sets the options used by {@link #convert()}.
+     */
+    public void setOptions(ExportOptions options) {
+        this.options = options;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Bounds the memory used by the largest models: when a pathway has more reactions than the threshold, its
+     * reactions are written to a temporary file in batches while the model is built and only their ids are kept
+     * in the model. They are put back in place whenever the document is written, until {@link #close()} deletes
+     * the temporary file.
+     *
+     * @param spillThreshold number of reactions. 0 to keep all reactions on the heap.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Speeds up the conversion of the largest pathways: when a pathway has more reactions than the threshold,
+     * the annotations, notes and CV terms of its species and reactions are built in parallel by the common
+     * fork-join pool, while the model is only changed by the calling thread. The document is the same as the
+     * one built sequentially. The target data has to be fetched completely, which is the case for the relational
+     * converter.
+     *
+     * @param parallelThreshold number of reactions. 0 to build everything on the calling thread.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     public SBMLDocument convert() {
         if (sbmlDocument != null) return sbmlDocument;
+        sbmlDocument = convert(options);
+        return sbmlDocument;
+    }
+
+    /**
+     * Creates a new SBMLDocument with the given options. The target data is retrieved by the first call only and
+     * reused by the following ones, so several variants of a pathway can be produced from a single fetch.
+     */
+    public SBMLDocument convert(ExportOptions options) {
+        if (conversionEvent == null) {
+            conversionEvent = new FlightRecorder.PathwayConversion();
+            conversionEvent.begin();
+        }
+        conversionEvent.variants++;
+        fetch();
+        long start = System.nanoTime();
+        metaid_count = 0L;
+        existingObjects.clear();
 
-        sbmlDocument = new SBMLDocument(SBML_LEVEL, SBML_VERSION);
+        SBMLDocument sbmlDocument = new SBMLDocument(SBML_LEVEL, SBML_VERSION);
 
         String modelId, pathwayName;
         if (pathway != null) {
@@ -99,34 +223,169 @@ public class SbmlConverter {
         model.setName(pathwayName);
         model.setMetaId(META_ID_PREFIX + metaid_count++);
         Helper.addProvenanceAnnotation(sbmlDocument, reactomeVersion);
-        Helper.addAnnotations(model, pathway);
-
-        Collection<ParticipantDetails> participants = getParticipantDetails();
-        for (ParticipantDetails p : participants) addParticipant(model, p);
-
-        for (ReactionBase rxn : getReactionList()) {
-            String id = REACTION_PREFIX + rxn.getDbId();
-            Reaction rn = model.createReaction(id);
-            rn.setMetaId(META_ID_PREFIX + metaid_count++);
-            //noinspection deprecation
-            rn.setFast(false);
-            rn.setReversible(false);
-            rn.setName(rxn.getDisplayName());
-
-            addCompartment(rn, rxn.getCompartments());
-
-            if (rxn.getInputs() != null && !rxn.getInputs().isEmpty()) addInputs(rxn.getDbId(), rn, rxn.getInputs());
-            if (rxn.getOutpus() != null && !rxn.getOutpus().isEmpty()) addOutputs(rxn.getDbId(), rn, rxn.getOutpus());
-            if (rxn.getCatalysts() != null && !rxn.getCatalysts().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getCatalysts(), Role.CATALYST);
-            if (rxn.getPositiveRegulators() != null && !rxn.getPositiveRegulators().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getPositiveRegulators(), Role.POSITIVE_REGULATOR);
-            if (rxn.getNegativeRegulators() != null && !rxn.getNegativeRegulators().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getNegativeRegulators(), Role.NEGATIVE_REGULATOR);
-
-            Helper.addAnnotations(rn, rxn.getReactionLikeEvent());
-            Helper.addCVTerms(rn, rxn);
+        Helper.addAnnotations(model, pathway, options);
+
+        boolean parallel = parallelThreshold > 0 && reactionList.size() > parallelThreshold;
+        build(participantDetails,
+              p -> createSpecies(model, p, options),
+              (p, s) -> Helper.addAnnotations(s, p, options),
+              model::addSpecies,
+              parallel);
+
+        ReactionSpill spill = spillThreshold > 0 && reactionList.size() > spillThreshold ? createSpill(sbmlDocument) : null;
+        try {
+            build(reactionList,
+                  rxn -> createReaction(model, rxn, options),
+                  (rxn, rn) -> {
+                      Helper.addAnnotations(rn, rxn.getReactionLikeEvent(), options);
+                      Helper.addCVTerms(rn, rxn, options);
+                  },
+                  rn -> {
+                      if (spill == null) {
+                          model.addReaction(rn);
+                          return;
+                      }
+                      spill.getModel().addReaction(rn);
+                      model.createReaction(rn.getId());
+                      flushSpill(spill, false);
+                  },
+                  parallel);
+            if (spill != null) flushSpill(spill, true);
+        } catch (RuntimeException e) {
+            if (spill != null) closeSpill(sbmlDocument);
+            throw e;
         }
 
+        Metrics.time(Metrics.MODEL_BUILDING, start);
+
+        if (options.isIncludeLayout()) {
+            start = System.nanoTime();
+            addLayout(model);
+            Metrics.time(Metrics.LAYOUT, start);
+        }
+        Metrics.count(Metrics.DOCUMENTS);
+
         return sbmlDocument;
     }
+
+    /**
+     * Builds the elements of the items in chunks of {@link #BUILD_CHUNK}. For each chunk, the elements are created
+     * in order by the calling thread, which also adds what they share (e.g. their compartments) to the model and
+     * assigns the meta ids. Their annotations, notes and CV terms are independent of each other and filled in
+     * next, by the common fork-join pool if parallel. The elements are then added to the model in order, so the
+     * document is the same either way.
+     */
+    private static <T, E extends SBase> void build(Collection<T> items, Function<T, E> create, BiConsumer<T, E> annotate, Consumer<E> add, boolean parallel) {
+        List<T> chunk = new ArrayList<>(BUILD_CHUNK);
+        List<E> elements = new ArrayList<>(BUILD_CHUNK);
+        Iterator<T> it = items.iterator();
+        while (it.hasNext()) {
+            chunk.clear();
+            elements.clear();
+            while (it.hasNext() && chunk.size() < BUILD_CHUNK) {
+                T item = it.next();
+                chunk.add(item);
+                elements.add(create.apply(item));
+            }
+            IntStream indices = IntStream.range(0, chunk.size());
+            if (parallel) indices = indices.parallel();
+            indices.forEach(i -> annotate.accept(chunk.get(i), elements.get(i)));
+            elements.forEach(add);
+        }
+    }
+
+    private ReactionSpill createSpill(SBMLDocument document) {
+        try {
+            ReactionSpill spill = ReactionSpill.create(document);
+            spills.add(spill);
+            return spill;
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Cannot spill the reactions of '%s'", targetStId), e);
+        }
+    }
+
+    /**
+     * Deletes the spilled reactions of a document, if any.
+     */
+    private void closeSpill(SBMLDocument document) {
+        ReactionSpill spill = ReactionSpill.get(document);
+        if (spill == null) return;
+        spill.close();
+        spills.remove(spill);
+    }
+
+    /**
+     * Deletes the temporary files of the reactions spilled by the conversions and ends the flight recorder event of
+     * the pathway. Has to be called once the converter is not used anymore if a spill threshold is set or the event
+     * is recorded. A converted document whose reactions are spilled cannot be written afterwards.
+     */
+    @Override
+    public void close() {
+        for (ReactionSpill spill : spills) spill.close();
+        spills.clear();
+        if (conversionEvent == null) return;
+        conversionEvent.fetchTime = fetchNanos;
+        conversionEvent.fetchedAhead = fetchedAhead;
+        conversionEvent.commit(targetStId, getDbId());
+        conversionEvent = null;
+    }
+
+    private void flushSpill(ReactionSpill spill, boolean finish) {
+        try {
+            if (finish) spill.finish();
+            else spill.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Cannot spill the reactions of '%s'", targetStId), e);
+        }
+    }
+
+    /**
+     * Retrieves the target data if it has not been done yet. This can be called ahead of the conversion, e.g. by
+     * another thread while the previous pathway is converted, so that the conversion does not wait for it.
+     */
+    public void fetch() {
+        if (participantDetails != null && reactionList != null) return;
+        long fetchStart = System.nanoTime();
+        if (participantDetails == null) {
+            long start = System.nanoTime();
+            participantDetails = getParticipantDetails();
+            Metrics.time(Metrics.PARTICIPANT_FETCH, start);
+            Metrics.count(Metrics.SPECIES, participantDetails.size());
+        }
+        if (reactionList == null) {
+            long start = System.nanoTime();
+            reactionList = getReactionList();
+            Metrics.time(Metrics.REACTION_LIST, start);
+            Metrics.count(Metrics.REACTIONS, reactionList.size());
+            Metrics.observe(Metrics.PATHWAY_REACTIONS, reactionList.size());
+        }
+        fetchNanos += System.nanoTime() - fetchStart;
+        // No conversion has started yet
+        if (conversionEvent == null) fetchedAhead = true;
+    }
+
+    /**
+     * @return DB_IDs of the pathway and of the reactions and participants fetched for it. The graph data does not
+     * reach any deeper, so the ReferenceEntities of the participants are not included.
+     */
+    public Set<Long> getTouchedIds() {
+        Set<Long> rtn = new HashSet<>();
+        if (pathway != null) rtn.add(pathway.getDbId());
+        if (reactionList != null) {
+            for (ReactionBase rxn : reactionList) rtn.add(rxn.getDbId());
+        }
+        if (participantDetails != null) {
+            for (ParticipantDetails participant : participantDetails) rtn.add(participant.getPhysicalEntity().getDbId());
+        }
+        return rtn;
+    }
+
+    /**
+     * Refactored method for subclassing. No layout is available from the graph database.
+     * @param model
+     */
+    protected void addLayout(Model model) {
+    }
     
     /**
      * Refactored method for subclassing.
@@ -134,6 +393,7 @@ public class SbmlConverter {
      * @return
      */
     protected Collection<ParticipantDetails> getParticipantDetails() {
+        if (speciesData != null) return speciesData.getParticipantDetails(targetStId);
         return DataFactory.getParticipantDetails(targetStId, ads);
     }
     
@@ -143,12 +403,64 @@ public class SbmlConverter {
      * @return
      */
     protected Collection<ReactionBase> getReactionList() {
+        if (speciesData != null) return speciesData.getReactionList(targetStId);
         return DataFactory.getReactionList(targetStId, ads);
     }
 
     public void writeToFile(String output) {
         if (sbmlDocument == null) throw new RuntimeException("Please call the convert method before writing to file");
-        Utils.writeSBML(output, targetStId, sbmlDocument);
+        writeSBML(output, targetStId, sbmlDocument);
+    }
+
+    /**
+     * Converts and writes one file per variant, named after the target and the suffix of the variant. Flags not
+     * specified by a variant are taken from {@link #getOptions()}. The document of the first variant is kept as
+     * the converted document, and the spilled reactions of the others are deleted once they are written.
+     */
+    public void writeToFile(String output, List<ExportOptions> variants) {
+        for (ExportOptions variant : variants) {
+            SBMLDocument document = convert(variant.withDefaults(options));
+            if (sbmlDocument == null) sbmlDocument = document;
+            writeSBML(output, targetStId + variant.getSuffix(), document);
+            if (document != sbmlDocument) closeSpill(document);
+        }
+    }
+
+    private void writeSBML(String output, String fileName, SBMLDocument document) {
+        FlightRecorder.FileWrite event = new FlightRecorder.FileWrite();
+        event.begin();
+        ReactionSpill spill = ReactionSpill.get(document);
+        if (spill == null) Utils.writeSBML(output, fileName, document);
+        else writeSpilled(output, fileName, document, spill);
+        if (event.isEnabled()) {
+            File file = new File(output + File.separator + fileName + ".sbml");
+            event.file = file.getPath();
+            event.bytes = file.length();
+        }
+        event.commit(targetStId, getDbId());
+    }
+
+    private void writeSpilled(String output, String fileName, SBMLDocument document, ReactionSpill spill) {
+        long start = System.nanoTime();
+        File sbmlFile = new File(output + File.separator + fileName + ".sbml");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(sbmlFile), DEFAULT_BUFFER_SIZE)) {
+            spill.write(document, os);
+        } catch (Exception e) {
+            Metrics.count(Metrics.WRITE_ERRORS);
+            logger.error(String.format("Error writing SBML file for '%s'", document.getModel().getId()), e);
+            return;
+        }
+        Metrics.time(Metrics.SERIALIZATION, start);
+        Metrics.count(Metrics.FILES_WRITTEN);
+        Metrics.count(Metrics.BYTES_WRITTEN, sbmlFile.length());
+        Metrics.observe(Metrics.DOCUMENT_BYTES, sbmlFile.length());
+    }
+
+    /**
+     * @return the DB_ID of the converted pathway or null if there is none
+     */
+    private Long getDbId() {
+        return pathway == null ? null : pathway.getDbId();
     }
 
     private void addInputs(Long reactionDbId, Reaction rn, List<Participant> participants) {
@@ -209,11 +521,14 @@ public class SbmlConverter {
         }
     }
 
-    private void addParticipant(Model model, ParticipantDetails participant) {
+    /**
+     * @return the species of a participant without its annotations, not added to the model yet
+     */
+    private Species createSpecies(Model model, ParticipantDetails participant, ExportOptions options) {
         String speciesId = SPECIES_PREFIX + participant.getPhysicalEntity().getDbId();
 
         PhysicalEntity pe = participant.getPhysicalEntity();
-        Species s = model.createSpecies(speciesId);
+        Species s = new Species(speciesId, SBML_LEVEL, SBML_VERSION);
         s.setMetaId(META_ID_PREFIX + metaid_count++);
         s.setName(pe.getDisplayName());
         // set other required fields for SBML L3
@@ -221,36 +536,122 @@ public class SbmlConverter {
         s.setHasOnlySubstanceUnits(false);
         s.setConstant(false);
         Helper.addSBOTerm(s, SBOTermLookup.get(pe));
-        Helper.addAnnotations(s, participant);
 
-        addCompartment(s, pe.getCompartment());
+        addCompartment(model, s, pe.getCompartment(), options);
+        return s;
+    }
+
+    /**
+     * @return the reaction with its participants but without its annotations, not added to the model yet
+     */
+    private Reaction createReaction(Model model, ReactionBase rxn, ExportOptions options) {
+        Reaction rn = new Reaction(REACTION_PREFIX + rxn.getDbId(), SBML_LEVEL, SBML_VERSION);
+        rn.setMetaId(META_ID_PREFIX + metaid_count++);
+        //noinspection deprecation
+        rn.setFast(false);
+        rn.setReversible(false);
+        rn.setName(rxn.getDisplayName());
+
+        addCompartment(model, rn, rxn.getCompartments(), options);
+
+        if (rxn.getInputs() != null && !rxn.getInputs().isEmpty()) addInputs(rxn.getDbId(), rn, rxn.getInputs());
+        if (rxn.getOutpus() != null && !rxn.getOutpus().isEmpty()) addOutputs(rxn.getDbId(), rn, rxn.getOutpus());
+        if (rxn.getCatalysts() != null && !rxn.getCatalysts().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getCatalysts(), Role.CATALYST);
+        if (rxn.getPositiveRegulators() != null && !rxn.getPositiveRegulators().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getPositiveRegulators(), Role.POSITIVE_REGULATOR);
+        if (rxn.getNegativeRegulators() != null && !rxn.getNegativeRegulators().isEmpty()) addModifier(rxn.getDbId(), rn, rxn.getNegativeRegulators(), Role.NEGATIVE_REGULATOR);
+        return rn;
     }
 
-    private void addCompartment(CompartmentalizedSBase s, List<org.reactome.server.graph.domain.model.Compartment> compartments) {
+    private void addCompartment(Model model, CompartmentalizedSBase s, List<org.reactome.server.graph.domain.model.Compartment> compartments, ExportOptions options) {
         if (compartments.size() > 0) {
             org.reactome.server.graph.domain.model.Compartment compartment = compartments.get(0);
-            addCompartment(s, compartment);
+            addCompartment(model, s, compartment, options);
 //            if (compartments.size() > 1) logger.warn(String.format("More than one compartment found for '%s'. ONLY the first one has been added", s.getId()));
         } else {
             logger.warn(String.format("No compartment found for '%s'", s.getId()));
         }
     }
 
-    private void addCompartment(CompartmentalizedSBase s, org.reactome.server.graph.domain.model.Compartment compartment) {
+    /**
+     * @param model the model of the document, which is not the one of a spilled reaction
+     */
+    private void addCompartment(Model model, CompartmentalizedSBase s, org.reactome.server.graph.domain.model.Compartment compartment, ExportOptions options) {
         String comp_id = COMPARTMENT_PREFIX + compartment.getDbId();
         if (!existingObjects.contains(comp_id)) {
-            Compartment c = sbmlDocument.getModel().createCompartment(comp_id);
+            Compartment c = model.createCompartment(comp_id);
             c.setMetaId(META_ID_PREFIX + metaid_count++);
             c.setName(compartment.getDisplayName());
             c.setConstant(true);
             Helper.addSBOTerm(c, SBOTermLookup.get(compartment));
 
-            Helper.addCVTerm(c, CVTerm.Qualifier.BQB_IS, compartment.getUrl());
+            Helper.addCVTerm(c, CVTerm.Qualifier.BQB_IS, options, compartment.getUrl());
             existingObjects.add(comp_id);
         }
         s.setCompartment(comp_id);
     }
 
+    /**
+     * Write the SBMLDocument to the given stream using a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @see #write(OutputStream, int)
+     */
+    public void write(OutputStream os) throws IOException, XMLStreamException, SBMLException {
+        write(os, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Write the SBMLDocument to the given stream. The stream is flushed but not closed, so the caller can keep
+     * using it (e.g. for an archive entry or an HTTP response).
+     *
+     * @param bufferSize size of the buffer in front of the stream. Use 0 when the stream is already buffered.
+     */
+    public void write(OutputStream os, int bufferSize) throws IOException, XMLStreamException, SBMLException {
+        if (sbmlDocument == null) throw new RuntimeException("Please call the convert method before writing");
+        FlightRecorder.FileWrite event = new FlightRecorder.FileWrite();
+        event.begin();
+        long start = System.nanoTime();
+        UnclosableOutputStream unclosable = new UnclosableOutputStream(os);
+        OutputStream target = unclosable;
+        if (bufferSize > 0) target = new BufferedOutputStream(target, bufferSize);
+        ReactionSpill spill = ReactionSpill.get(sbmlDocument);
+        if (spill == null) new TidySBMLWriter().write(sbmlDocument, target);
+        else spill.write(sbmlDocument, target);
+        target.flush();
+        Metrics.time(Metrics.SERIALIZATION, start);
+        Metrics.count(Metrics.BYTES_WRITTEN, unclosable.count);
+        Metrics.observe(Metrics.DOCUMENT_BYTES, unclosable.count);
+        event.bytes = unclosable.count;
+        event.commit(targetStId, getDbId());
+    }
+
+    /**
+     * Write the SBMLDocument to the given channel, which is not closed.
+     *
+     * @see #write(OutputStream, int)
+     */
+    public void write(WritableByteChannel channel, int bufferSize) throws IOException, XMLStreamException, SBMLException {
+        write(Channels.newOutputStream(channel), bufferSize);
+    }
+
+    /**
+     * Converts the events one at a time and writes each document to the stream opened for it by the provider,
+     * which is closed afterwards. Only one document is kept in memory at any time.
+     *
+     * @param provider returns the stream for an event stable identifier or null to skip the event, which is then
+     *                 not converted.
+     */
+    public static void write(Collection<? extends Event> events, Integer version, AdvancedDatabaseObjectService ads, OutputProvider provider, int bufferSize) throws IOException, XMLStreamException, SBMLException {
+        for (Event event : events) {
+            try (OutputStream os = provider.open(event.getStId())) {
+                if (os == null) continue;
+                try (SbmlConverter converter = new SbmlConverter(event, version, ads)) {
+                    converter.convert();
+                    converter.write(os, bufferSize);
+                }
+            }
+        }
+    }
+
     /**
      * Write the SBMLDocument to a String.
      *
@@ -260,11 +661,54 @@ public class SbmlConverter {
         SBMLWriter sbmlWriter = new TidySBMLWriter();
         String output;
         try {
-            output = sbmlWriter.writeSBMLToString(sbmlDocument);
+            ReactionSpill spill = ReactionSpill.get(sbmlDocument);
+            if (spill == null) output = sbmlWriter.writeSBMLToString(sbmlDocument);
+            else {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                spill.write(sbmlDocument, os);
+                output = os.toString(StandardCharsets.UTF_8.name());
+            }
         } catch (Exception e) {
+            logger.error(String.format("Error writing SBML for '%s'", targetStId), e);
             output = "failed to write";
         }
         return output;
     }
 
+    /**
+     * Opens the stream a converted document is written to.
+     */
+    @FunctionalInterface
+    public interface OutputProvider {
+        OutputStream open(String stId) throws IOException;
+    }
+
+    /**
+     * Keeps the SBMLWriter from closing streams owned by the caller and counts the bytes written.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+        private long count;
+
+        UnclosableOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
 }
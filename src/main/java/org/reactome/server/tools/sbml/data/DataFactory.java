@@ -1,5 +1,8 @@
 package org.reactome.server.tools.sbml.data;
 
+import org.reactome.server.graph.domain.model.DatabaseObject;
+import org.reactome.server.graph.domain.model.PhysicalEntity;
+import org.reactome.server.graph.domain.model.ReactionLikeEvent;
 import org.reactome.server.graph.exception.CustomQueryException;
 import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
 import org.reactome.server.graph.service.DatabaseObjectService;
@@ -9,14 +12,20 @@ import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
 import org.reactome.server.tools.sbml.data.model.ReactionBase;
 import org.reactome.server.tools.sbml.data.result.ParticipantDetailsResult;
 import org.reactome.server.tools.sbml.data.result.ParticipantResult;
+import org.reactome.server.tools.sbml.data.result.PathwayHierarchyResult;
 import org.reactome.server.tools.sbml.data.result.ReactionBaseResult;
+import org.reactome.server.tools.sbml.data.result.ReactionParticipantsResult;
+import org.reactome.server.tools.sbml.util.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Retrieves the data in an efficient way in order to speed up the conversion process
@@ -29,11 +38,8 @@ public abstract class DataFactory {
 
     private static DatabaseObjectService ds;
 
-    private static final String REACTIONS_QUERY = "" +
-            "OPTIONAL MATCH (rle1:ReactionLikeEvent{stId:$stId}) " +
-            "OPTIONAL MATCH (:Pathway{stId:$stId})-[:hasEvent*]->(rle2:ReactionLikeEvent) " +
-            "WITH DISTINCT COLLECT(DISTINCT rle1) + COLLECT(DISTINCT rle2) AS rles " +
-            "UNWIND rles AS rle " +
+    //Expects "rle" to be bound to the target ReactionLikeEvent(s)
+    private static final String REACTION_DETAILS = "" +
             "OPTIONAL MATCH (rle)-[:goBiologicalProcess]->(gobp:GO_BiologicalProcess)  " +
             "OPTIONAL MATCH (rle)-[:catalystActivity]->(cat:CatalystActivity) " +
             "OPTIONAL MATCH (cat)-[:activity]->(gomf:GO_MolecularFunction)  " +
@@ -56,14 +62,8 @@ public abstract class DataFactory {
             "OPTIONAL MATCH (rle)-[:regulatedBy]->(:NegativeRegulation)-[:regulator]->(penr:PhysicalEntity) " +
             "RETURN DISTINCT rle.stId AS rle, goTerms, ecNumbers, literatureRefs, xrefs, diseases, inputs, outputs, catalysts, positiveRegulators, COLLECT(DISTINCT CASE penr WHEN NULL THEN NULL ELSE {n: 0,  pe: penr.stId} END) AS negativeRegulators";
 
-    private static final String PARTICIPANTS_QUERY = "" +
-            "OPTIONAL MATCH (rle1:ReactionLikeEvent{stId:$stId}) " +
-            "OPTIONAL MATCH (:Pathway{stId:$stId})-[:hasEvent*]->(rle2:ReactionLikeEvent) " +
-            "WITH DISTINCT COLLECT(DISTINCT rle1) + COLLECT(DISTINCT rle2) AS rles " +
-            "UNWIND rles AS rle " +
-            "MATCH (rle)-[:input|output|catalystActivity|physicalEntity|regulatedBy|regulator*]->(pe:PhysicalEntity) " +
-            "WITH COLLECT(DISTINCT pe) AS pes " +
-            "UNWIND pes AS pe " +
+    //Expects "pe" to be bound to the target PhysicalEntity(s)
+    private static final String PARTICIPANT_DETAILS = "" +
             //GEE do not have RE but they must be in the species (without identifier)
             "OPTIONAL MATCH path=(pe)-[:hasComponent|hasMember|repeatedUnit|referenceEntity|proteinMarker|RNAMarker*]->(re:ReferenceEntity) " +
             "WITH pe, re, REDUCE(s = 1, x IN RELATIONSHIPS(path) | s * x.stoichiometry) AS n " +
@@ -76,6 +76,46 @@ public abstract class DataFactory {
             "       }) AS ids, " +
             "       COLLECT(DISTINCT re.url) AS urls";
 
+    private static final String TARGET_REACTIONS = "" +
+            "OPTIONAL MATCH (rle1:ReactionLikeEvent{stId:$stId}) " +
+            "OPTIONAL MATCH (:Pathway{stId:$stId})-[:hasEvent*]->(rle2:ReactionLikeEvent) " +
+            "WITH DISTINCT COLLECT(DISTINCT rle1) + COLLECT(DISTINCT rle2) AS rles " +
+            "UNWIND rles AS rle ";
+
+    private static final String REACTIONS_QUERY = TARGET_REACTIONS + REACTION_DETAILS;
+
+    private static final String PARTICIPANTS_QUERY = TARGET_REACTIONS +
+            "MATCH (rle)-[:input|output|catalystActivity|physicalEntity|regulatedBy|regulator*]->(pe:PhysicalEntity) " +
+            "WITH COLLECT(DISTINCT pe) AS pes " +
+            "UNWIND pes AS pe " +
+            PARTICIPANT_DETAILS;
+
+    // Species-wide bulk mode: the hierarchy is retrieved one level at a time and its closure is calculated in memory
+    private static final String SPECIES_HIERARCHY_QUERY = "" +
+            "MATCH (p:Pathway)-[:species]->(:Species{dbId:$dbId}) " +
+            "OPTIONAL MATCH (p)-[:hasEvent]->(sub:Pathway) " +
+            "WITH p, COLLECT(DISTINCT sub.stId) AS pathways " +
+            "OPTIONAL MATCH (p)-[:hasEvent]->(rle:ReactionLikeEvent) " +
+            "RETURN p.stId AS pathway, pathways, COLLECT(DISTINCT rle.stId) AS reactions";
+
+    private static final String SPECIES_REACTIONS_QUERY = "" +
+            "UNWIND $stIds AS stId " +
+            "MATCH (rle:ReactionLikeEvent{stId:stId}) " +
+            REACTION_DETAILS;
+
+    private static final String SPECIES_REACTION_PARTICIPANTS_QUERY = "" +
+            "UNWIND $stIds AS stId " +
+            "MATCH (rle:ReactionLikeEvent{stId:stId})-[:input|output|catalystActivity|physicalEntity|regulatedBy|regulator*]->(pe:PhysicalEntity) " +
+            "RETURN rle.stId AS rle, COLLECT(DISTINCT pe.stId) AS pes";
+
+    private static final String SPECIES_PARTICIPANTS_QUERY = "" +
+            "UNWIND $stIds AS stId " +
+            "MATCH (pe:PhysicalEntity{stId:stId}) " +
+            PARTICIPANT_DETAILS;
+
+    // Number of stIds sent in every UNWIND of the species-wide bulk mode
+    private static final int BATCH_SIZE = 500;
+
     //work with DataFactoryHelper to autowire the DatabaseObjectService
     public DataFactory(DatabaseObjectService ds) {
         DataFactory.ds = ds;
@@ -84,21 +124,10 @@ public abstract class DataFactory {
     public static Collection<ReactionBase> getReactionList(String eventStId, AdvancedDatabaseObjectService ads) {
 
         try {
-            Collection<ReactionBaseResult> reactionBaseResults = ads.getCustomQueryResults(ReactionBaseResult.class, REACTIONS_QUERY, Collections.singletonMap("stId", eventStId));
+            Collection<ReactionBaseResult> reactionBaseResults = query(ads, ReactionBaseResult.class, REACTIONS_QUERY, Collections.singletonMap("stId", eventStId));
             Collection<ReactionBase> reactionBases = new ArrayList<>();
             for (ReactionBaseResult reactionBaseResult : reactionBaseResults) {
-                ReactionBase reactionBase = new ReactionBase();
-                reactionBase.setRle(ds.findByIdNoRelations(reactionBaseResult.getRle()));
-                reactionBase.setGoTerms(reactionBaseResult.getGoTerms());
-                reactionBase.setEcNumbers(reactionBaseResult.getEcNumbers());
-                reactionBase.setLiteratureRefs(reactionBaseResult.getLiteratureRefs());
-                reactionBase.setXrefs(reactionBaseResult.getXrefs());
-                reactionBase.setDiseases(reactionBaseResult.getDiseases());
-                reactionBase.setInputs(getParticipantResults(ds, reactionBaseResult.getInputs()));
-                reactionBase.setOutputs(getParticipantResults(ds, reactionBaseResult.getOutputs()));
-                reactionBase.setCatalysts(getParticipantResults(ds, reactionBaseResult.getPositiveRegulators()));
-                reactionBase.setNegativeRegulators(getParticipantResults(ds, reactionBaseResult.getPositiveRegulators()));
-                reactionBases.add(reactionBase);
+                reactionBases.add(getReactionBase(reactionBaseResult, stId -> findById(stId)));
             }
             return reactionBases;
         } catch (CustomQueryException e) {
@@ -109,7 +138,7 @@ public abstract class DataFactory {
 
     public static Collection<ParticipantDetails> getParticipantDetails(String eventStId, AdvancedDatabaseObjectService ads) {
         try {
-            Collection<ParticipantDetailsResult> participantDetailsResults = ads.getCustomQueryResults(ParticipantDetailsResult.class, PARTICIPANTS_QUERY, Collections.singletonMap("stId", eventStId));
+            Collection<ParticipantDetailsResult> participantDetailsResults = query(ads, ParticipantDetailsResult.class, PARTICIPANTS_QUERY, Collections.singletonMap("stId", eventStId));
             Collection<ParticipantDetails> participantDetails = new ArrayList<>();
             for (ParticipantDetailsResult participantDetailsResult : participantDetailsResults) {
                 ParticipantDetails participantDetail = new ParticipantDetails();
@@ -121,7 +150,7 @@ public abstract class DataFactory {
                     participantDetail.addUrl(url);
                 }
 
-                participantDetail.setPhysicalEntity(ds.findByIdNoRelations(participantDetailsResult.getPeStId()));
+                participantDetail.setPhysicalEntity(findById(participantDetailsResult.getPeStId()));
                 participantDetails.add(participantDetail);
             }
             return participantDetails;
@@ -131,12 +160,99 @@ public abstract class DataFactory {
         }
     }
 
+    /**
+     * Retrieves every reaction and participant of a given species in a few batched queries, so the data for each
+     * of its pathways can be assembled in memory instead of traversing the hierarchy once per pathway.
+     *
+     * @param speciesDbId the DB_ID of the target species
+     * @return the data of the species (empty if the queries fail)
+     */
+    public static SpeciesData getSpeciesData(Long speciesDbId, AdvancedDatabaseObjectService ads) {
+        SpeciesData speciesData = new SpeciesData();
+        try {
+            Collection<PathwayHierarchyResult> hierarchy = query(ads, PathwayHierarchyResult.class, SPECIES_HIERARCHY_QUERY, Collections.singletonMap("dbId", speciesDbId));
+            for (PathwayHierarchyResult pathwayHierarchyResult : hierarchy) {
+                speciesData.addPathway(pathwayHierarchyResult.getPathway(), pathwayHierarchyResult.getPathways(), pathwayHierarchyResult.getReactions());
+            }
+
+            // Objects shared by several reactions are only retrieved once per species
+            Map<String, DatabaseObject> objects = new HashMap<>();
+            Function<String, DatabaseObject> resolver = stId -> objects.computeIfAbsent(stId, id -> findById(id));
+
+            List<String> reactions = new ArrayList<>(speciesData.getReactionStIds());
+            for (List<String> batch : getBatches(reactions)) {
+                Map<String, Object> params = Collections.singletonMap("stIds", batch);
+                for (ReactionBaseResult reactionBaseResult : query(ads, ReactionBaseResult.class, SPECIES_REACTIONS_QUERY, params)) {
+                    speciesData.addReaction(getReactionBase(reactionBaseResult, resolver));
+                }
+                for (ReactionParticipantsResult participantsResult : query(ads, ReactionParticipantsResult.class, SPECIES_REACTION_PARTICIPANTS_QUERY, params)) {
+                    speciesData.addReactionParticipants(participantsResult.getRle(), participantsResult.getPes());
+                }
+            }
+
+            List<String> participants = new ArrayList<>(speciesData.getParticipantStIds(reactions));
+            for (List<String> batch : getBatches(participants)) {
+                Map<String, Object> params = Collections.singletonMap("stIds", batch);
+                for (ParticipantDetailsResult participantDetailsResult : query(ads, ParticipantDetailsResult.class, SPECIES_PARTICIPANTS_QUERY, params)) {
+                    PhysicalEntity pe = (PhysicalEntity) resolver.apply(participantDetailsResult.getPeStId());
+                    speciesData.addParticipant(pe, participantDetailsResult.getIds(), participantDetailsResult.getUrls());
+                }
+            }
+            logger.info(String.format("Retrieved %d pathways, %d reactions and %d participants for species %d",
+                    speciesData.getPathways().size(), reactions.size(), participants.size(), speciesDbId));
+        } catch (CustomQueryException e) {
+            logger.error(e.getMessage(), e);
+        }
+        return speciesData;
+    }
+
+    private static List<List<String>> getBatches(List<String> stIds) {
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < stIds.size(); i += BATCH_SIZE) {
+            batches.add(stIds.subList(i, Math.min(i + BATCH_SIZE, stIds.size())));
+        }
+        return batches;
+    }
+
+    private static ReactionBase getReactionBase(ReactionBaseResult reactionBaseResult, Function<String, DatabaseObject> resolver) {
+        ReactionBase reactionBase = new ReactionBase();
+        reactionBase.setRle((ReactionLikeEvent) resolver.apply(reactionBaseResult.getRle()));
+        reactionBase.setGoTerms(reactionBaseResult.getGoTerms());
+        reactionBase.setEcNumbers(reactionBaseResult.getEcNumbers());
+        reactionBase.setLiteratureRefs(reactionBaseResult.getLiteratureRefs());
+        reactionBase.setXrefs(reactionBaseResult.getXrefs());
+        reactionBase.setDiseases(reactionBaseResult.getDiseases());
+        reactionBase.setInputs(getParticipantResults(resolver, reactionBaseResult.getInputs()));
+        reactionBase.setOutputs(getParticipantResults(resolver, reactionBaseResult.getOutputs()));
+        reactionBase.setCatalysts(getParticipantResults(resolver, reactionBaseResult.getCatalysts()));
+        reactionBase.setPositiveRegulators(getParticipantResults(resolver, reactionBaseResult.getPositiveRegulators()));
+        reactionBase.setNegativeRegulators(getParticipantResults(resolver, reactionBaseResult.getNegativeRegulators()));
+        return reactionBase;
+    }
+
+    /**
+     * Runs a custom query counting it in {@link Metrics#GRAPH_QUERIES}.
+     */
+    private static <T> Collection<T> query(AdvancedDatabaseObjectService ads, Class<T> clazz, String query, Map<String, Object> params) throws CustomQueryException {
+        Metrics.count(Metrics.GRAPH_QUERIES);
+        return ads.getCustomQueryResults(clazz, query, params);
+    }
+
+    private static <T extends DatabaseObject> T findById(String stId) {
+        Metrics.count(Metrics.GRAPH_QUERIES);
+        return ds.findByIdNoRelations(stId);
+    }
+
     public static List<Participant> getParticipantResults(DatabaseObjectService ds, List<ParticipantResult> participantsQueryResults) {
+        return getParticipantResults(stId -> ds.findByIdNoRelations(stId), participantsQueryResults);
+    }
+
+    private static List<Participant> getParticipantResults(Function<String, DatabaseObject> resolver, List<ParticipantResult> participantsQueryResults) {
         List<Participant> participants = new ArrayList<>();
-        Participant participant = new Participant();
         for (ParticipantResult participantResult : participantsQueryResults) {
+            Participant participant = new Participant();
             participant.setStoichiometry(participantResult.getStoichiometry());
-            participant.setPhysicalEntity(ds.findByIdNoRelations(participantResult.getPhysicalEntity()));
+            participant.setPhysicalEntity((PhysicalEntity) resolver.apply(participantResult.getPhysicalEntity()));
             participants.add(participant);
         }
         return participants;
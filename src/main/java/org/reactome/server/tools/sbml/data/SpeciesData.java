@@ -0,0 +1,124 @@
+package org.reactome.server.tools.sbml.data;
+
+import org.reactome.server.graph.domain.model.PhysicalEntity;
+import org.reactome.server.tools.sbml.data.model.IdentifierBase;
+import org.reactome.server.tools.sbml.data.model.ParticipantDetails;
+import org.reactome.server.tools.sbml.data.model.ReactionBase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory snapshot of every reaction and participant of a species. It is retrieved once by
+ * {@link DataFactory#getSpeciesData} and used to assemble the data for each pathway of the species
+ * without querying the database again.
+ * <p>
+ * Note: ParticipantDetails are modified during the conversion, so a fresh copy is provided for every request.
+ */
+public class SpeciesData {
+
+    private final Map<String, List<String>> subPathways = new HashMap<>();
+    private final Map<String, List<String>> directReactions = new HashMap<>();
+    private final Map<String, ReactionBase> reactions = new HashMap<>();
+    private final Map<String, List<String>> reactionParticipants = new HashMap<>();
+    private final Map<String, PhysicalEntity> physicalEntities = new HashMap<>();
+    private final Map<String, List<IdentifierBase>> participantIds = new HashMap<>();
+    private final Map<String, List<String>> participantUrls = new HashMap<>();
+
+    // Reactions contained (at any level) in a pathway, calculated on demand
+    private final Map<String, Set<String>> containedReactions = new HashMap<>();
+
+    public void addPathway(String pathway, List<String> pathways, List<String> reactions) {
+        subPathways.put(pathway, pathways == null ? Collections.emptyList() : pathways);
+        directReactions.put(pathway, reactions == null ? Collections.emptyList() : reactions);
+    }
+
+    public void addReaction(ReactionBase reactionBase) {
+        reactions.put(reactionBase.getStId(), reactionBase);
+    }
+
+    public void addReactionParticipants(String reaction, List<String> pes) {
+        reactionParticipants.put(reaction, pes == null ? Collections.emptyList() : pes);
+    }
+
+    public void addParticipant(PhysicalEntity pe, List<IdentifierBase> ids, List<String> urls) {
+        physicalEntities.put(pe.getStId(), pe);
+        participantIds.put(pe.getStId(), ids == null ? Collections.emptyList() : ids);
+        participantUrls.put(pe.getStId(), urls == null ? Collections.emptyList() : urls);
+    }
+
+    public Set<String> getPathways() {
+        return directReactions.keySet();
+    }
+
+    /**
+     * @return the stIds of every reaction contained in any pathway of the species
+     */
+    public Set<String> getReactionStIds() {
+        Set<String> rtn = new LinkedHashSet<>();
+        for (List<String> rles : directReactions.values()) rtn.addAll(rles);
+        return rtn;
+    }
+
+    /**
+     * @return the stIds of every participant of the given reactions
+     */
+    public Set<String> getParticipantStIds(Collection<String> reactions) {
+        Set<String> rtn = new LinkedHashSet<>();
+        for (String reaction : reactions) {
+            List<String> pes = reactionParticipants.get(reaction);
+            if (pes != null) rtn.addAll(pes);
+        }
+        return rtn;
+    }
+
+    public Collection<ReactionBase> getReactionList(String eventStId) {
+        Collection<ReactionBase> rtn = new ArrayList<>();
+        for (String stId : getContainedReactions(eventStId)) {
+            ReactionBase reactionBase = reactions.get(stId);
+            if (reactionBase != null) rtn.add(reactionBase);
+        }
+        return rtn;
+    }
+
+    public Collection<ParticipantDetails> getParticipantDetails(String eventStId) {
+        Collection<ParticipantDetails> rtn = new ArrayList<>();
+        for (String stId : getParticipantStIds(getContainedReactions(eventStId))) {
+            PhysicalEntity pe = physicalEntities.get(stId);
+            if (pe == null) continue;
+            ParticipantDetails participantDetails = new ParticipantDetails();
+            for (IdentifierBase identifierBase : participantIds.get(stId)) participantDetails.addIdentifierBase(identifierBase);
+            for (String url : participantUrls.get(stId)) participantDetails.addUrl(url);
+            participantDetails.setPhysicalEntity(pe);
+            rtn.add(participantDetails);
+        }
+        return rtn;
+    }
+
+    private Set<String> getContainedReactions(String eventStId) {
+        if (reactions.containsKey(eventStId)) return Collections.singleton(eventStId);
+        return getContainedReactions(eventStId, new HashSet<>());
+    }
+
+    private Set<String> getContainedReactions(String pathway, Set<String> visiting) {
+        Set<String> rtn = containedReactions.get(pathway);
+        if (rtn != null) return rtn;
+        rtn = new LinkedHashSet<>();
+        // Guards against cycles in the event hierarchy
+        if (!visiting.add(pathway)) return rtn;
+        rtn.addAll(directReactions.getOrDefault(pathway, Collections.emptyList()));
+        for (String sub : subPathways.getOrDefault(pathway, Collections.emptyList())) {
+            rtn.addAll(getContainedReactions(sub, visiting));
+        }
+        visiting.remove(pathway);
+        containedReactions.put(pathway, rtn);
+        return rtn;
+    }
+}
@@ -0,0 +1,50 @@
+package org.reactome.server.tools.sbml.data.result;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.reactome.server.graph.domain.result.CustomQuery;
+
+import java.util.List;
+
+/**
+ * Holds the direct children (sub-pathways and reactions) of a given pathway
+ */
+public class PathwayHierarchyResult implements CustomQuery {
+
+    private String pathway;
+    private List<String> pathways;
+    private List<String> reactions;
+
+    public String getPathway() {
+        return pathway;
+    }
+
+    public void setPathway(String pathway) {
+        this.pathway = pathway;
+    }
+
+    public List<String> getPathways() {
+        return pathways;
+    }
+
+    public void setPathways(List<String> pathways) {
+        this.pathways = pathways;
+    }
+
+    public List<String> getReactions() {
+        return reactions;
+    }
+
+    public void setReactions(List<String> reactions) {
+        this.reactions = reactions;
+    }
+
+    @Override
+    public CustomQuery build(Record r) {
+        PathwayHierarchyResult pathwayHierarchyResult = new PathwayHierarchyResult();
+        pathwayHierarchyResult.setPathway(r.get("pathway").asString(null));
+        pathwayHierarchyResult.setPathways(r.get("pathways").asList(Value::asString));
+        pathwayHierarchyResult.setReactions(r.get("reactions").asList(Value::asString));
+        return pathwayHierarchyResult;
+    }
+}
@@ -0,0 +1,40 @@
+package org.reactome.server.tools.sbml.data.result;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.reactome.server.graph.domain.result.CustomQuery;
+
+import java.util.List;
+
+/**
+ * Holds the stIds of every PhysicalEntity taking part (as input, output, catalyst or regulator) in a given reaction
+ */
+public class ReactionParticipantsResult implements CustomQuery {
+
+    private String rle;
+    private List<String> pes;
+
+    public String getRle() {
+        return rle;
+    }
+
+    public void setRle(String rle) {
+        this.rle = rle;
+    }
+
+    public List<String> getPes() {
+        return pes;
+    }
+
+    public void setPes(List<String> pes) {
+        this.pes = pes;
+    }
+
+    @Override
+    public CustomQuery build(Record r) {
+        ReactionParticipantsResult reactionParticipantsResult = new ReactionParticipantsResult();
+        reactionParticipantsResult.setRle(r.get("rle").asString(null));
+        reactionParticipantsResult.setPes(r.get("pes").asList(Value::asString));
+        return reactionParticipantsResult;
+    }
+}
@@ -0,0 +1,117 @@
+package org.reactome.server.tools.sbml.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A queue of conversions shared by parallel workers that admits a conversion only when its estimated memory
+ * footprint fits into what is left of a byte budget. Conversions are taken in order, but a conversion that does
+ * not fit can be overtaken by smaller ones behind it, so small pathways keep flowing while large ones wait for
+ * the budget they need. After being overtaken {@link #MAX_OVERTAKEN} times a conversion is not overtaken any
+ * more and the workers wait until it fits. Footprints above the budget are capped to it, so that the largest
+ * pathways are converted alone.
+ * <p>
+ * Waits are timed in {@link Metrics#ADMISSION_WAIT} and overtaking is counted in {@link Metrics#ADMISSIONS_REORDERED}.
+ *
+ * @param <T> the conversions
+ */
+public class AdmissionQueue<T> {
+
+    private static final int MAX_OVERTAKEN = 16;
+
+    private final long budget;
+    private long available;
+    private final List<Ticket<T>> pending = new LinkedList<>();
+    private long added = 0L;
+
+    /**
+     * @param budget bytes shared by all admitted conversions
+     */
+    public AdmissionQueue(long budget) {
+        if (budget <= 0) throw new IllegalArgumentException("The memory budget should be positive: " + budget);
+        this.budget = budget;
+        this.available = budget;
+    }
+
+    public synchronized void add(T item, long bytes) {
+        pending.add(new Ticket<>(item, Math.max(0L, Math.min(bytes, budget)), added++));
+        notifyAll();
+    }
+
+    /**
+     * Waits until a pending conversion fits into the budget and admits it. The ticket has to be passed to
+     * {@link #release(Ticket)} once the conversion is done.
+     *
+     * @return null when there is no pending conversion any more
+     */
+    public synchronized Ticket<T> take() throws InterruptedException {
+        long start = System.nanoTime();
+        boolean waited = false;
+        while (!pending.isEmpty()) {
+            Ticket<T> admitted = null;
+            for (Iterator<Ticket<T>> it = pending.iterator(); it.hasNext(); ) {
+                Ticket<T> ticket = it.next();
+                if (ticket.bytes <= available) {
+                    it.remove();
+                    admitted = ticket;
+                    break;
+                }
+                if (ticket.overtaken >= MAX_OVERTAKEN) break;
+            }
+            if (admitted != null) {
+                // Everything in front of it has been overtaken
+                int overtaken = 0;
+                for (Ticket<T> ticket : pending) {
+                    if (ticket.index > admitted.index) break;
+                    ticket.overtaken++;
+                    overtaken++;
+                }
+                if (overtaken > 0) Metrics.count(Metrics.ADMISSIONS_REORDERED);
+                if (waited) Metrics.time(Metrics.ADMISSION_WAIT, start);
+                available -= admitted.bytes;
+                return admitted;
+            }
+            waited = true;
+            wait();
+        }
+        return null;
+    }
+
+    public synchronized void release(Ticket<T> ticket) {
+        available += ticket.bytes;
+        notifyAll();
+    }
+
+    /**
+     * @return the bytes of the budget not used by admitted conversions
+     */
+    public synchronized long getAvailable() {
+        return available;
+    }
+
+    /**
+     * A conversion with its estimated footprint.
+     */
+    public static class Ticket<T> {
+        private final T item;
+        private final long bytes;
+        // Position in the order of addition
+        private final long index;
+        private int overtaken = 0;
+
+        private Ticket(T item, long bytes, long index) {
+            this.item = item;
+            this.bytes = bytes;
+            this.index = index;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.reactome.server.tools.sbml.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * JDK Flight Recorder events around the conversion of a pathway, its database heavy phases, the layout validation
+ * and the writing of each file. The events are disabled unless a recording is started with {@link #start(String)}
+ * or they are enabled in the settings of a recording started with -XX:StartFlightRecording. Disabled events cost
+ * a check per phase only.
+ * <p>
+ * The recording uses the "profile" settings of the JVM, so garbage collections, lock contention, thread parking,
+ * allocation and method samples are recorded next to the conversion events. Per instance events are only recorded
+ * when they take longer than their threshold.
+ */
+public class FlightRecorder {
+
+    // The settings shipped with the JVM including GC, lock and allocation events
+    private static final String SETTINGS = "profile";
+
+    private static Recording recording;
+
+    private FlightRecorder() {
+    }
+
+    /**
+     * Starts a recording of the conversion events with the JVM profiling events. The recording is written to the
+     * file by {@link #stop()} or when the JVM exits.
+     */
+    public static synchronized void start(String file) throws IOException, ParseException {
+        if (recording != null) return;
+        recording = new Recording(Configuration.getConfiguration(SETTINGS));
+        recording.setName("sbml-exporter");
+        recording.enable(PathwayConversion.class);
+        recording.enable(PathwayDetails.class);
+        recording.enable(ParticipantDetails.class);
+        recording.enable(ReactionDetails.class);
+        recording.enable(ReactionParticipants.class);
+        recording.enable(LayoutValidation.class);
+        recording.enable(FileWrite.class);
+        recording.setDestination(Paths.get(file));
+        recording.setToDisk(true);
+        recording.setDumpOnExit(true);
+        recording.start();
+    }
+
+    /**
+     * Stops the recording, which is written to its file.
+     */
+    public static synchronized void stop() {
+        if (recording == null) return;
+        recording.stop();
+        recording.close();
+        recording = null;
+    }
+
+    @Enabled(false)
+    @StackTrace(false)
+    @Category({"Reactome", "SBML Exporter"})
+    public abstract static class ConversionEvent extends Event {
+        @Label("Stable Identifier")
+        public String stId;
+
+        @Label("DB_ID")
+        public long dbId;
+
+        /**
+         * Ends the event and commits it with the identifiers of the converted object if it is enabled and
+         * above its threshold.
+         */
+        public void commit(String stId, Long dbId) {
+            end();
+            if (!shouldCommit()) return;
+            this.stId = stId;
+            this.dbId = dbId == null ? 0L : dbId;
+            commit();
+        }
+    }
+
+    @Name("org.reactome.sbml.PathwayConversion")
+    @Label("Pathway Conversion")
+    @Description("Conversion of an event into its SBML documents: the fetch of its data unless it was fetched ahead, and the build and writing of each variant")
+    public static class PathwayConversion extends ConversionEvent {
+        @Label("Variants")
+        @Description("Documents converted from the fetched data")
+        public int variants;
+
+        @Label("Fetch Time")
+        @Description("Time taken to fetch the data, which is part of the duration unless it was fetched ahead")
+        @Timespan
+        public long fetchTime;
+
+        @Label("Fetched Ahead")
+        @Description("Whether the data was fetched before the conversion started, e.g. by the prefetch thread")
+        public boolean fetchedAhead;
+    }
+
+    @Name("org.reactome.sbml.PathwayDetails")
+    @Label("Pathway Details")
+    @Description("Loading of the attributes and instance edits of the converted pathway")
+    public static class PathwayDetails extends ConversionEvent {
+    }
+
+    @Name("org.reactome.sbml.ParticipantDetails")
+    @Label("Participant Details")
+    @Description("Loading of the attributes, reference entities and modifications of a reaction participant")
+    @Threshold("1 ms")
+    public static class ParticipantDetails extends ConversionEvent {
+    }
+
+    @Name("org.reactome.sbml.ReactionDetails")
+    @Label("Reaction Details")
+    @Description("Loading of the attributes, participants, GO terms, literature and cross references of a reaction")
+    @Threshold("1 ms")
+    public static class ReactionDetails extends ConversionEvent {
+    }
+
+    @Name("org.reactome.sbml.ReactionParticipants")
+    @Label("Reaction Participants")
+    @Description("Loading of the inputs, outputs, catalysts and regulators of a reaction")
+    @Threshold("1 ms")
+    public static class ReactionParticipants extends ConversionEvent {
+    }
+
+    @Name("org.reactome.sbml.LayoutValidation")
+    @Label("Layout Validation")
+    @Description("Painting of the pathway diagram to validate its coordinates before the layout is converted")
+    public static class LayoutValidation extends ConversionEvent {
+    }
+
+    @Name("org.reactome.sbml.FileWrite")
+    @Label("File Write")
+    @Description("Serialization of an SBML document into a file or a stream")
+    public static class FileWrite extends ConversionEvent {
+        @Label("File")
+        public String file;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
@@ -0,0 +1,231 @@
+package org.reactome.server.tools.sbml.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A process-wide registry of the counters, timers and histograms recorded during an export. Timers measure the
+ * phases of a conversion and are nested where the phases are: e.g. {@link #PARTICIPANT_FETCH} includes
+ * {@link #REACTION_FETCH} for the relational conversion, which fetches the reactions on first use.
+ * Everything is kept in adders so that recording is cheap from any thread. The registry is written as a
+ * Prometheus text file (e.g. for the node exporter textfile collector) and as a JSON summary. While a
+ * {@link PathwayReport} row is open in the recording thread, timers and counters are also added to that row.
+ */
+public class Metrics {
+
+    // Timers
+    public static final String EVENT_LOOKUP = "event_lookup";
+    public static final String REACTION_FETCH = "reaction_fetch";
+    public static final String DIAGRAM_FETCH = "diagram_fetch";
+    public static final String PARTICIPANT_FETCH = "participant_fetch";
+    public static final String REACTION_LIST = "reaction_list";
+    public static final String MODEL_BUILDING = "model_building";
+    public static final String LAYOUT = "layout";
+    public static final String LAYOUT_VALIDATION = "layout_validation";
+    public static final String SERIALIZATION = "serialization";
+    // Time parallel workers wait for memory to be available for their next pathway
+    public static final String ADMISSION_WAIT = "admission_wait";
+
+    // Counters
+    public static final String DOCUMENTS = "documents";
+    public static final String SPECIES = "species";
+    public static final String REACTIONS = "reactions";
+    public static final String FILES_WRITTEN = "files_written";
+    public static final String BYTES_WRITTEN = "bytes_written";
+    public static final String WRITE_ERRORS = "write_errors";
+    // Calls of the MySQLAdaptor by MySQLInstanceSource. Some are answered from the cache of the adaptor and
+    // attribute values loaded lazily by instances are not included.
+    public static final String MYSQL_QUERIES = "mysql_queries";
+    public static final String GRAPH_QUERIES = "graph_queries";
+    public static final String CACHE_HITS = "cache_hits";
+    public static final String CACHE_MISSES = "cache_misses";
+    public static final String LAYOUTS = "layouts";
+    // Evictions of the caches under heap pressure
+    public static final String EVICTIONS = "evictions";
+    // Pathways admitted before larger ones waiting for memory
+    public static final String ADMISSIONS_REORDERED = "admissions_reordered";
+    // Reactions of large models written to a temporary file while their models were built
+    public static final String SPILLED_REACTIONS = "spilled_reactions";
+
+    // Histograms
+    public static final String DOCUMENT_BYTES = "document_bytes";
+    public static final String PATHWAY_REACTIONS = "pathway_reactions";
+
+    public static final String PROMETHEUS_FILE = "metrics.prom";
+    public static final String JSON_FILE = "metrics.json";
+
+    private static final String PREFIX = "sbml_exporter_";
+    // Upper bounds of the buckets in seconds for timers and in units for histograms
+    private static final double[] TIME_BOUNDS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300};
+    private static final double[] SIZE_BOUNDS = {1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
+
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> timers = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static void count(String counter) {
+        count(counter, 1L);
+    }
+
+    public static void count(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+        PathwayReport.Row row = PathwayReport.getCurrent();
+        if (row != null) row.addCount(counter, delta);
+    }
+
+    /**
+     * Records the time elapsed since start.
+     * @param start the value of {@link System#nanoTime()} when the phase started
+     */
+    public static void time(String timer, long start) {
+        long elapsed = System.nanoTime() - start;
+        timers.computeIfAbsent(timer, k -> new Histogram(TIME_BOUNDS, 1.0e-9)).record(elapsed);
+        PathwayReport.Row row = PathwayReport.getCurrent();
+        if (row != null) row.addTime(timer, elapsed);
+    }
+
+    public static void observe(String histogram, long value) {
+        histograms.computeIfAbsent(histogram, k -> new Histogram(SIZE_BOUNDS, 1.0)).record(value);
+    }
+
+    public static long getCount(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0L : adder.sum();
+    }
+
+    public static void reset() {
+        counters.clear();
+        timers.clear();
+        histograms.clear();
+    }
+
+    /**
+     * @return the registry in the Prometheus text exposition format
+     */
+    public static String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            String name = PREFIX + entry.getKey() + "_total";
+            builder.append("# TYPE ").append(name).append(" counter\n");
+            builder.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : timers.entrySet())
+            entry.getValue().appendPrometheus(builder, PREFIX + entry.getKey() + "_seconds");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            entry.getValue().appendPrometheus(builder, PREFIX + entry.getKey());
+        return builder.toString();
+    }
+
+    /**
+     * @return a summary of the registry as a JSON object with counters, timers in seconds and histograms
+     */
+    public static String toJson() {
+        StringBuilder builder = new StringBuilder("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            builder.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().sum());
+            separator = ",\n";
+        }
+        builder.append("\n  },\n  \"timers\": {");
+        appendJson(builder, timers);
+        builder.append("\n  },\n  \"histograms\": {");
+        appendJson(builder, histograms);
+        builder.append("\n  }\n}\n");
+        return builder.toString();
+    }
+
+    private static void appendJson(StringBuilder builder, Map<String, Histogram> histograms) {
+        String separator = "\n";
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            builder.append(separator).append("    \"").append(entry.getKey()).append("\": ");
+            entry.getValue().appendJson(builder);
+            separator = ",\n";
+        }
+    }
+
+    /**
+     * Writes {@link #PROMETHEUS_FILE} and {@link #JSON_FILE} into the directory. Each file is replaced in one
+     * move so that a collector never reads a partial file.
+     */
+    public static void write(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        write(dir.resolve(PROMETHEUS_FILE), toPrometheus());
+        write(dir.resolve(JSON_FILE), toJson());
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Counts the recorded values in buckets with fixed upper bounds. Values are recorded in their raw unit
+     * (e.g. nanoseconds) and exported multiplied by the scale (e.g. as seconds).
+     */
+    private static class Histogram {
+        private final double[] bounds;
+        private final double scale;
+        // The last bucket counts the values above all bounds
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+        Histogram(double[] bounds, double scale) {
+            this.bounds = bounds;
+            this.scale = scale;
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long value) {
+            double scaled = value * scale;
+            int i = 0;
+            while (i < bounds.length && scaled > bounds[i]) i++;
+            buckets[i].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        void appendPrometheus(StringBuilder builder, String name) {
+            builder.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                builder.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            builder.append(name).append("_sum ").append(format(sum.sum() * scale)).append('\n');
+            builder.append(name).append("_count ").append(count.sum()).append('\n');
+        }
+
+        void appendJson(StringBuilder builder) {
+            long n = count.sum();
+            double total = sum.sum() * scale;
+            builder.append("{\"count\": ").append(n)
+                   .append(", \"sum\": ").append(format(total))
+                   .append(", \"mean\": ").append(format(n == 0 ? 0.0 : total / n))
+                   .append(", \"max\": ").append(format(max.get() * scale))
+                   .append('}');
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package org.reactome.server.tools.sbml.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * A report with one row per converted pathway: its size, whether a layout was added, the wall time of every phase
+ * recorded via {@link Metrics} while the row is open in the converting thread, the output bytes, and the CPU time
+ * and heap allocated by that thread. Reports are written as CSV with a JSON copy next to it. Two CSV reports can be
+ * compared to find the pathways that regressed between runs, also from the command line:
+ * <pre>
+ * java -cp sbml-exporter.jar org.reactome.server.tools.sbml.util.PathwayReport baseline.csv current.csv [top]
+ * </pre>
+ */
+public class PathwayReport {
+
+    private static final String[] PHASES = {
+            Metrics.EVENT_LOOKUP,
+            Metrics.REACTION_FETCH,
+            Metrics.DIAGRAM_FETCH,
+            Metrics.PARTICIPANT_FETCH,
+            Metrics.REACTION_LIST,
+            Metrics.MODEL_BUILDING,
+            Metrics.LAYOUT,
+            Metrics.LAYOUT_VALIDATION,
+            Metrics.SERIALIZATION
+    };
+    private static final String[] COLUMNS = {"stId", "reactions", "species", "layout", "wall_ms", "cpu_ms", "allocated_bytes", "output_bytes"};
+    private static final String PHASE_SUFFIX = "_ms";
+    // Changes below these are noise and not reported as regressions
+    private static final double MIN_DELTA_MS = 50.0;
+    private static final double MIN_RATIO = 1.1;
+
+    private static final ThreadLocal<Row> current = new ThreadLocal<>();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final List<Row> rows = Collections.synchronizedList(new ArrayList<>());
+
+    public PathwayReport() {
+        if (threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && !sunThreads.isThreadAllocatedMemoryEnabled()) {
+                sunThreads.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+    }
+
+    /**
+     * Opens the row of a pathway in the current thread. Everything recorded via {@link Metrics} by this thread
+     * until {@link #finish()} is accounted to it.
+     */
+    public void start(String stId) {
+        Row row = new Row(stId);
+        row.open();
+        current.set(row);
+    }
+
+    /**
+     * Closes the row opened by the current thread and adds it to the report.
+     */
+    public void finish() {
+        Row row = current.get();
+        if (row == null) return;
+        current.remove();
+        row.account();
+        rows.add(row);
+    }
+
+    /**
+     * Detaches the row opened by the current thread, e.g. after fetching the data of a pathway ahead of its
+     * conversion. The times and allocations of this thread so far stay accounted to it.
+     *
+     * @return null if no row is open
+     */
+    public Row suspend() {
+        Row row = current.get();
+        if (row == null) return null;
+        current.remove();
+        row.account();
+        return row;
+    }
+
+    /**
+     * Opens a row detached by {@link #suspend()} in the current thread. The time the row was detached is not
+     * accounted to it.
+     */
+    public void resume(Row row) {
+        if (row == null) return;
+        row.open();
+        current.set(row);
+    }
+
+    static Row getCurrent() {
+        return current.get();
+    }
+
+    public List<Row> getRows() {
+        synchronized (rows) {
+            return new ArrayList<>(rows);
+        }
+    }
+
+    /**
+     * Writes the rows into the CSV file and into a JSON file of the same name with the .json extension.
+     */
+    public void write(File csv) throws IOException {
+        List<Row> rows = getRows();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8))) {
+            List<String> header = new ArrayList<>();
+            Collections.addAll(header, COLUMNS);
+            for (String phase : PHASES) header.add(phase + PHASE_SUFFIX);
+            writer.println(String.join(",", header));
+            for (Row row : rows) {
+                StringBuilder line = new StringBuilder();
+                line.append(row.stId).append(',')
+                    .append(row.reactions).append(',')
+                    .append(row.species).append(',')
+                    .append(row.layout).append(',')
+                    .append(toMillis(row.wallNanos)).append(',')
+                    .append(row.hasCpuTime ? String.valueOf(toMillis(row.cpuNanos)) : "").append(',')
+                    .append(row.hasAllocatedBytes ? String.valueOf(row.allocatedBytes) : "").append(',')
+                    .append(row.outputBytes);
+                for (String phase : PHASES) line.append(',').append(toMillis(row.getPhaseNanos(phase)));
+                writer.println(line);
+            }
+        }
+        File json = new File(csv.getParentFile(), csv.getName().replaceFirst("\\.csv$", "") + ".json");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(json.toPath(), StandardCharsets.UTF_8))) {
+            writer.println("[");
+            for (int i = 0; i < rows.size(); i++) {
+                Row row = rows.get(i);
+                StringBuilder line = new StringBuilder("  {");
+                line.append("\"stId\": \"").append(row.stId).append('"')
+                    .append(", \"reactions\": ").append(row.reactions)
+                    .append(", \"species\": ").append(row.species)
+                    .append(", \"layout\": ").append(row.layout)
+                    .append(", \"wall_ms\": ").append(toMillis(row.wallNanos))
+                    .append(", \"cpu_ms\": ").append(row.hasCpuTime ? String.valueOf(toMillis(row.cpuNanos)) : "null")
+                    .append(", \"allocated_bytes\": ").append(row.hasAllocatedBytes ? String.valueOf(row.allocatedBytes) : "null")
+                    .append(", \"output_bytes\": ").append(row.outputBytes)
+                    .append(", \"phases_ms\": {");
+                for (int j = 0; j < PHASES.length; j++) {
+                    if (j > 0) line.append(", ");
+                    line.append('"').append(PHASES[j]).append("\": ").append(toMillis(row.getPhaseNanos(PHASES[j])));
+                }
+                line.append("}}");
+                if (i < rows.size() - 1) line.append(',');
+                writer.println(line);
+            }
+            writer.println("]");
+        }
+    }
+
+    /**
+     * Reads a CSV report written by {@link #write(File)}. Columns are matched by their names, so reports written
+     * before phases were added can still be read.
+     */
+    public static List<Row> read(File csv) throws IOException {
+        List<Row> rtn = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) return rtn;
+            Map<String, Integer> columns = new HashMap<>();
+            String[] header = line.split(",");
+            for (int i = 0; i < header.length; i++) columns.put(header[i], i);
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] values = line.split(",");
+                Row row = new Row(values[columns.get("stId")]);
+                row.reactions = Long.parseLong(get(values, columns, "reactions", "0"));
+                row.species = Long.parseLong(get(values, columns, "species", "0"));
+                row.layout = Boolean.parseBoolean(get(values, columns, "layout", "false"));
+                row.wallNanos = fromMillis(get(values, columns, "wall_ms", "0"));
+                // Empty if unavailable, or negative in older reports
+                String cpu = get(values, columns, "cpu_ms", "");
+                row.hasCpuTime = !cpu.isEmpty() && !cpu.startsWith("-");
+                if (row.hasCpuTime) row.cpuNanos = fromMillis(cpu);
+                String allocated = get(values, columns, "allocated_bytes", "");
+                row.hasAllocatedBytes = !allocated.isEmpty() && !allocated.startsWith("-");
+                if (row.hasAllocatedBytes) row.allocatedBytes = Long.parseLong(allocated);
+                row.outputBytes = Long.parseLong(get(values, columns, "output_bytes", "0"));
+                for (String phase : PHASES) {
+                    String value = get(values, columns, phase + PHASE_SUFFIX, null);
+                    if (value != null) row.phaseNanos.put(phase, fromMillis(value));
+                }
+                rtn.add(row);
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the pathways in both reports that became slower by at least {@link #MIN_DELTA_MS} and
+     * {@link #MIN_RATIO}, the biggest regression first
+     */
+    public static List<Regression> compare(List<Row> baseline, List<Row> current) {
+        Map<String, Row> stIdToBaseline = new HashMap<>();
+        for (Row row : baseline) stIdToBaseline.put(row.stId, row);
+        List<Regression> rtn = new ArrayList<>();
+        for (Row row : current) {
+            Row base = stIdToBaseline.get(row.stId);
+            if (base == null) continue;
+            Regression regression = new Regression(base, row);
+            if (regression.getDeltaMillis() >= MIN_DELTA_MS && regression.getRatio() >= MIN_RATIO) rtn.add(regression);
+        }
+        rtn.sort(Comparator.comparingDouble(Regression::getDeltaMillis).reversed());
+        return rtn;
+    }
+
+    /**
+     * @return a summary of the two runs and a table of the top regressions
+     */
+    public static String formatComparison(List<Row> baseline, List<Row> current, int top) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "Baseline: %d pathways in %.1f s, current: %d pathways in %.1f s%n",
+                baseline.size(), getTotalMillis(baseline) / 1000.0,
+                current.size(), getTotalMillis(current) / 1000.0));
+        List<Regression> regressions = compare(baseline, current);
+        builder.append(String.format("%d pathways regressed", regressions.size()));
+        if (regressions.isEmpty()) return builder.append('\n').toString();
+        builder.append(String.format(", top %d:%n", Math.min(top, regressions.size())));
+        builder.append(String.format("%-16s %10s %10s %10s %6s  %-24s %12s%n", "stId", "base ms", "current ms", "delta ms", "ratio", "worst phase (delta ms)", "alloc delta"));
+        for (Regression regression : regressions.subList(0, Math.min(top, regressions.size()))) {
+            builder.append(String.format(Locale.ROOT, "%-16s %10.1f %10.1f %10.1f %6.2f  %-24s %12d%n",
+                    regression.current.stId,
+                    toMillis(regression.baseline.wallNanos),
+                    toMillis(regression.current.wallNanos),
+                    regression.getDeltaMillis(),
+                    regression.getRatio(),
+                    String.format(Locale.ROOT, "%s (%.1f)", regression.getWorstPhase(), regression.getWorstPhaseDeltaMillis()),
+                    regression.getAllocatedBytesDelta()));
+        }
+        return builder.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: PathwayReport baseline.csv current.csv [top]");
+            System.exit(1);
+        }
+        int top = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        System.out.print(formatComparison(read(new File(args[0])), read(new File(args[1])), top));
+    }
+
+    private static double getTotalMillis(List<Row> rows) {
+        return rows.stream().mapToDouble(row -> toMillis(row.wallNanos)).sum();
+    }
+
+    private static String get(String[] values, Map<String, Integer> columns, String column, String defaultValue) {
+        Integer index = columns.get(column);
+        if (index == null || index >= values.length) return defaultValue;
+        return values[index];
+    }
+
+    /**
+     * @return the CPU time of the current thread, empty if it is not measured
+     */
+    private static OptionalLong readCpuTime() {
+        if (!threads.isCurrentThreadCpuTimeSupported()) return OptionalLong.empty();
+        long rtn = threads.getCurrentThreadCpuTime();
+        return rtn < 0 ? OptionalLong.empty() : OptionalLong.of(rtn);
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, empty if they are not measured
+     */
+    private static OptionalLong readAllocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return OptionalLong.empty();
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported()) return OptionalLong.empty();
+        long rtn = sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        return rtn < 0 ? OptionalLong.empty() : OptionalLong.of(rtn);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos < 0 ? -1.0 : Math.round(nanos / 1.0e3) / 1.0e3;
+    }
+
+    private static long fromMillis(String millis) {
+        return Math.round(Double.parseDouble(millis) * 1.0e6);
+    }
+
+    /**
+     * The accounting of one pathway. wallNanos, cpuNanos and allocatedBytes add up the periods the row has been
+     * open, in whichever threads, and the readings of the thread it is open in are kept until it is detached.
+     * The CPU time or allocated bytes are unavailable if any of these threads could not measure them.
+     */
+    public static class Row {
+        private final String stId;
+        private long reactions;
+        private long species;
+        private boolean layout;
+        private long wallNanos;
+        private long cpuNanos;
+        private boolean hasCpuTime = true;
+        private long allocatedBytes;
+        private boolean hasAllocatedBytes = true;
+        private long outputBytes;
+        private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+        // Readings of the current thread when the row was opened in it
+        private long openedWallNanos;
+        private OptionalLong openedCpuNanos;
+        private OptionalLong openedAllocatedBytes;
+
+        private Row(String stId) {
+            this.stId = stId;
+        }
+
+        private void open() {
+            openedWallNanos = System.nanoTime();
+            openedCpuNanos = readCpuTime();
+            openedAllocatedBytes = readAllocatedBytes();
+        }
+
+        /**
+         * Adds what the current thread has used since the row was opened in it.
+         */
+        private void account() {
+            wallNanos += System.nanoTime() - openedWallNanos;
+            OptionalLong cpu = readCpuTime();
+            if (cpu.isPresent() && openedCpuNanos.isPresent()) cpuNanos += cpu.getAsLong() - openedCpuNanos.getAsLong();
+            else hasCpuTime = false;
+            OptionalLong allocated = readAllocatedBytes();
+            if (allocated.isPresent() && openedAllocatedBytes.isPresent()) allocatedBytes += allocated.getAsLong() - openedAllocatedBytes.getAsLong();
+            else hasAllocatedBytes = false;
+        }
+
+        void addTime(String timer, long nanos) {
+            phaseNanos.merge(timer, nanos, Long::sum);
+        }
+
+        void addCount(String counter, long delta) {
+            switch (counter) {
+                case Metrics.REACTIONS: reactions += delta; break;
+                case Metrics.SPECIES: species += delta; break;
+                case Metrics.BYTES_WRITTEN: outputBytes += delta; break;
+                case Metrics.LAYOUTS: layout = true; break;
+                default: break;
+            }
+        }
+
+        public String getStId() {
+            return stId;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return the CPU time of the converting threads, empty if it is not measured
+         */
+        public OptionalLong getCpuNanos() {
+            return hasCpuTime ? OptionalLong.of(cpuNanos) : OptionalLong.empty();
+        }
+
+        /**
+         * @return the bytes allocated by the converting threads, empty if they are not measured
+         */
+        public OptionalLong getAllocatedBytes() {
+            return hasAllocatedBytes ? OptionalLong.of(allocatedBytes) : OptionalLong.empty();
+        }
+
+        public long getPhaseNanos(String phase) {
+            return phaseNanos.getOrDefault(phase, 0L);
+        }
+    }
+
+    /**
+     * A pathway that is slower in the current run than in the baseline.
+     */
+    public static class Regression {
+        private final Row baseline;
+        private final Row current;
+
+        Regression(Row baseline, Row current) {
+            this.baseline = baseline;
+            this.current = current;
+        }
+
+        public String getStId() {
+            return current.stId;
+        }
+
+        public double getDeltaMillis() {
+            return toMillis(current.wallNanos) - toMillis(baseline.wallNanos);
+        }
+
+        /**
+         * @return the difference of the bytes allocated by the converting thread or 0 if either run has none
+         */
+        public long getAllocatedBytesDelta() {
+            if (!current.hasAllocatedBytes || !baseline.hasAllocatedBytes) return 0L;
+            return current.allocatedBytes - baseline.allocatedBytes;
+        }
+
+        public double getRatio() {
+            return baseline.wallNanos <= 0 ? Double.POSITIVE_INFINITY : (double) current.wallNanos / baseline.wallNanos;
+        }
+
+        /**
+         * @return the phase whose time increased most
+         */
+        public String getWorstPhase() {
+            String rtn = null;
+            long worst = Long.MIN_VALUE;
+            for (String phase : PHASES) {
+                long delta = current.getPhaseNanos(phase) - baseline.getPhaseNanos(phase);
+                if (delta > worst) {
+                    worst = delta;
+                    rtn = phase;
+                }
+            }
+            return rtn;
+        }
+
+        public double getWorstPhaseDeltaMillis() {
+            String phase = getWorstPhase();
+            return toMillis(current.getPhaseNanos(phase)) - toMillis(baseline.getPhaseNanos(phase));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.reactome.server.tools.sbml.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of an export over any number of species converted at the same time by any number of workers.
+ * Workers only update adders and a concurrent map of the pathways in flight; a single daemon thread renders
+ * an aggregated view from them at a fixed interval: pathways, reactions and bytes written per second, an ETA
+ * from the estimated cost of the remaining pathways (e.g. their number of reactions), the progress of each
+ * species and worker, and the slowest pathways in flight.
+ * <p>
+ * On a console the view is redrawn in place. Otherwise a summary line is printed every {@link #LOG_INTERVAL} ms.
+ * Nothing is printed unless verbose.
+ */
+public class ProgressDashboard {
+
+    private static final long RENDER_INTERVAL = 500;
+    private static final long LOG_INTERVAL = 30000;
+    private static final int WIDTH = 120;
+    private static final int SLOWEST = 3;
+
+    private final boolean verbose;
+    private final boolean console;
+    private final long start = System.nanoTime();
+    private final long startReactions = Metrics.getCount(Metrics.REACTIONS);
+    private final long startBytes = Metrics.getCount(Metrics.BYTES_WRITTEN);
+
+    private final List<Species> species = new CopyOnWriteArrayList<>();
+    private final Map<Long, Task> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> workerToDone = new ConcurrentSkipListMap<>();
+    private final AtomicLong taskIds = new AtomicLong();
+    // Lines printed once above the view, e.g. when a species is finished
+    private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService renderer;
+    // Guarded by this
+    private int renderedLines = 0;
+    private long lastLog = 0L;
+
+    public ProgressDashboard(boolean verbose) {
+        this.verbose = verbose;
+        this.console = System.console() != null;
+    }
+
+    /**
+     * Adds a species whose pathways are going to be converted. Species can be added at any time; the ETA
+     * covers the species added so far.
+     *
+     * @param total number of pathways
+     * @param cost  estimated cost of all of its pathways, in the unit used for {@link Species#start(String, long)}
+     */
+    public Species addSpecies(String name, int total, long cost) {
+        Species rtn = new Species(name, total, cost);
+        species.add(rtn);
+        startRenderer();
+        return rtn;
+    }
+
+    private synchronized void startRenderer() {
+        if (!verbose || renderer != null) return;
+        renderer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renderer.scheduleWithFixedDelay(this::render, RENDER_INTERVAL, RENDER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops rendering after a last update of the view.
+     */
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = renderer;
+            renderer = null;
+        }
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(RENDER_INTERVAL * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            lastLog = 0L;
+            render();
+            // Output following the view must not be redrawn over
+            renderedLines = 0;
+        }
+    }
+
+    private synchronized void render() {
+        List<String> lines = getView();
+        StringBuilder builder = new StringBuilder();
+        if (console) {
+            // Move back to the first line of the view and redraw it
+            if (renderedLines > 0) builder.append("\033[").append(renderedLines).append('F');
+            for (String message = messages.poll(); message != null; message = messages.poll()) {
+                builder.append("\033[K").append(message).append('\n');
+            }
+            for (String line : lines) builder.append("\033[K").append(line).append('\n');
+            renderedLines = lines.size();
+        } else {
+            for (String message = messages.poll(); message != null; message = messages.poll()) {
+                builder.append(message).append('\n');
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastLog >= LOG_INTERVAL) {
+                builder.append(String.join(" | ", lines.subList(0, 2))).append('\n');
+                lastLog = now;
+            }
+        }
+        System.out.print(builder);
+        System.out.flush();
+    }
+
+    /**
+     * @return the lines of the aggregated view
+     */
+    public List<String> getView() {
+        long elapsed = System.nanoTime() - start;
+        double seconds = Math.max(elapsed / 1.0e9, 1.0e-3);
+        long done = 0, total = 0, doneCost = 0, totalCost = 0;
+        for (Species s : species) {
+            done += s.done.sum();
+            total += s.total;
+            doneCost += Math.min(s.doneCost.sum(), s.cost);
+            totalCost += s.cost;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Progress  %s  %d/%d pathways (%d%%)  ETA %s",
+                Utils.getTimeFormatted(TimeUnit.NANOSECONDS.toMillis(elapsed)),
+                done,
+                total,
+                total == 0 ? 0 : done * 100 / total,
+                getEta(elapsed, doneCost, totalCost)));
+        lines.add(String.format(Locale.ROOT, "Rate      %.1f pathways/s  %.1f reactions/s  %.2f MB/s",
+                done / seconds,
+                (Metrics.getCount(Metrics.REACTIONS) - startReactions) / seconds,
+                (Metrics.getCount(Metrics.BYTES_WRITTEN) - startBytes) / seconds / (1024 * 1024)));
+        StringBuilder line = new StringBuilder("Species ");
+        int finished = 0;
+        for (Species s : species) {
+            if (s.finished) {
+                finished++;
+                continue;
+            }
+            line.append(String.format(Locale.ROOT, " %s %d/%d", s.name, s.done.sum(), s.total));
+        }
+        if (finished > 0) line.append(String.format(" (%d finished)", finished));
+        lines.add(truncate(line));
+        line = new StringBuilder("Workers ");
+        for (Map.Entry<String, LongAdder> entry : workerToDone.entrySet()) {
+            line.append(' ').append(entry.getKey()).append(' ').append(entry.getValue().sum());
+        }
+        lines.add(truncate(line));
+        StringBuilder slowest = new StringBuilder("Slowest ");
+        long now = System.nanoTime();
+        inFlight.values().stream()
+                .sorted(Comparator.comparingLong(task -> task.start))
+                .limit(SLOWEST)
+                .forEach(task -> slowest.append(String.format(Locale.ROOT, " %s %.1fs (%s)", task.stId, Math.max(now - task.start, 0L) / 1.0e9, task.worker)));
+        lines.add(truncate(slowest));
+        return lines;
+    }
+
+    private String getEta(long elapsed, long doneCost, long totalCost) {
+        if (doneCost == 0) return "--:--:--";
+        long remaining = (long) ((double) elapsed * (totalCost - doneCost) / doneCost);
+        return Utils.getTimeFormatted(TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    private String truncate(StringBuilder line) {
+        return line.length() <= WIDTH ? line.toString() : line.substring(0, WIDTH - 3) + "...";
+    }
+
+    /**
+     * The progress of one species. Its pathways can be converted by any number of threads.
+     */
+    public class Species {
+        private final String name;
+        private final int total;
+        private final long cost;
+        private final long start = System.nanoTime();
+        private final LongAdder done = new LongAdder();
+        private final LongAdder doneCost = new LongAdder();
+        private volatile boolean finished = false;
+
+        private Species(String name, int total, long cost) {
+            this.name = name;
+            this.total = total;
+            this.cost = cost;
+        }
+
+        /**
+         * Registers a pathway conversion started by the current thread.
+         *
+         * @param cost estimated cost of the pathway. Use 1 when nothing is known.
+         */
+        public Task start(String stId, long cost) {
+            Task task = new Task(this, stId, cost);
+            inFlight.put(task.id, task);
+            return task;
+        }
+
+        /**
+         * Marks the species as finished. Pathways never done are reported as skipped.
+         */
+        public void finish() {
+            if (finished) return;
+            finished = true;
+            if (!verbose) return;
+            long count = done.sum();
+            String skipped = count < total ? String.format(" (%d skipped)", total - count) : "";
+            messages.add(String.format("%-30s %d pathways in %s%s", name, count, Utils.getTimeFormatted(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)), skipped));
+        }
+    }
+
+    /**
+     * A pathway in flight.
+     */
+    public class Task {
+        private final long id = taskIds.incrementAndGet();
+        private final Species species;
+        private final String stId;
+        private final long cost;
+        private final String worker = Thread.currentThread().getName();
+        private final long start = System.nanoTime();
+
+        private Task(Species species, String stId, long cost) {
+            this.species = species;
+            this.stId = stId;
+            this.cost = cost;
+        }
+
+        /**
+         * Marks the pathway as done, whether it could be converted or not.
+         */
+        public void done() {
+            if (inFlight.remove(id) == null) return;
+            species.done.increment();
+            species.doneCost.add(cost);
+            workerToDone.computeIfAbsent(worker, k -> new LongAdder()).increment();
+        }
+    }
+}
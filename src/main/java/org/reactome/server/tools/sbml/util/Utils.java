@@ -7,6 +7,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.concurrent.TimeUnit;
 
 public class Utils {
@@ -25,10 +28,16 @@ public class Utils {
     }
 
     public static void writeSBML(String outputDirectory, String fileName, SBMLDocument sbmlDocument){
+        long start = System.nanoTime();
         try {
             File sbmlFile = new File(outputDirectory + File.separator + fileName + ".sbml");
             writer.write(sbmlDocument, sbmlFile);
+            Metrics.time(Metrics.SERIALIZATION, start);
+            Metrics.count(Metrics.FILES_WRITTEN);
+            Metrics.count(Metrics.BYTES_WRITTEN, sbmlFile.length());
+            Metrics.observe(Metrics.DOCUMENT_BYTES, sbmlFile.length());
         } catch (Exception e) {
+            Metrics.count(Metrics.WRITE_ERRORS);
             logger.error(String.format("Error writing SBML file for '%s'", sbmlDocument.getModel().getId()), e);
         }
     }
@@ -38,4 +47,15 @@ public class Utils {
                 TimeUnit.MILLISECONDS.toMinutes(millis) % TimeUnit.HOURS.toMinutes(1),
                 TimeUnit.MILLISECONDS.toSeconds(millis) % TimeUnit.MINUTES.toSeconds(1));
     }
+
+    /**
+     * @return the sum of the peak usages of the heap pools since the JVM started, in MB
+     */
+    public static String getPeakHeapFormatted() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return String.format("%d MB", peak / (1024 * 1024));
+    }
 }